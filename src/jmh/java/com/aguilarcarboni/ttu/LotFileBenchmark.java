@@ -0,0 +1,79 @@
+package com.aguilarcarboni.ttu;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Binary lot file reads and writes at 10 to 100k vehicles
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class LotFileBenchmark {
+    private static final String[] TYPES = {"SEDAN", "SUV", "VAN"};
+
+    @Param({"10", "1000", "100000"})
+    int vehicles;
+
+    private File directory;
+    private LotFile lot;
+    private List<Vehicle> fleet;
+    private int rewrites;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("jmh-lots").toFile();
+        fleet = fleet(vehicles);
+        lot = LotFile.open(new File(directory, "lot").getPath());
+        lot.checkinAll(fleet);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        lot.close();
+        for(File f : directory.listFiles()) {
+            f.delete();
+        }
+        directory.delete();
+    }
+
+    @Benchmark
+    public List<Vehicle> readAll() {
+        return lot.readAll();
+    }
+
+    // One record lock, one record write and a free-list update each way
+    @Benchmark
+    public Vehicle checkoutCheckin() {
+        Vehicle vehicle = lot.checkout("SEDAN");
+        lot.checkin(vehicle);
+        return vehicle;
+    }
+
+    // Creates a lot file and writes the whole fleet in one batch
+    @Benchmark
+    public int writeAll() throws IOException {
+        File file = new File(directory, "rewrite-" + (rewrites++));
+        int count;
+        try (LotFile fresh = LotFile.open(file.getPath())) {
+            fresh.checkinAll(fleet);
+            count = fresh.count();
+        }
+        new File(file.getPath() + LotFile.EXTENSION).delete();
+        return count;
+    }
+
+    private static List<Vehicle> fleet(int size) {
+        List<Vehicle> vehicles = new ArrayList<>(size);
+        for(int i = 0; i < size; i++) {
+            // A stride coprime with the plate space spreads plates without a registry
+            vehicles.add(new Vehicle(PlateCodec.decode((int) ((i * 7_919L) % PlateCodec.PLATE_SPACE)), TYPES[i % TYPES.length], i % 5000));
+        }
+        return vehicles;
+    }
+}
@@ -0,0 +1,53 @@
+package com.aguilarcarboni.ttu;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Random plate reservation against registries at increasing fill levels
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class PlateRegistryBenchmark {
+
+    @Param({"0.0", "0.5", "0.9"})
+    double fill;
+
+    private File bitmapFile;
+    private PlateRegistry registry;
+    private final Random rng = new Random(42);
+
+    // Refilled every iteration so the fill level does not drift as plates are reserved
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException {
+        bitmapFile = File.createTempFile("jmh-plates", ".bin");
+        Files.write(bitmapFile.toPath(), prefilledBitmap(fill, new Random(7)));
+        registry = PlateRegistry.open(bitmapFile.getPath(), null);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        registry.close();
+        bitmapFile.delete();
+    }
+
+    @Benchmark
+    public String reserveRandom() throws IOException {
+        return registry.reserveRandom(rng);
+    }
+
+    private static byte[] prefilledBitmap(double fill, Random random) {
+        byte[] bitmap = new byte[(PlateCodec.PLATE_SPACE + 7) / 8];
+        for(int code = 0; code < PlateCodec.PLATE_SPACE; code++) {
+            if(random.nextDouble() < fill) {
+                bitmap[code >>> 3] |= (byte) (1 << (code & 7));
+            }
+        }
+        return bitmap;
+    }
+}
@@ -0,0 +1,100 @@
+package com.aguilarcarboni.ttu;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Rent/return against shop inventories of different sizes, and full snapshot save/load cycles.
+// Runs against outputs/ in the working directory using jmh-* shop and lot names.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ShopBenchmark {
+    private static final String[] TYPES = {"SEDAN", "SUV", "VAN"};
+
+    @Param({"100", "10000"})
+    int inventorySize;
+
+    private String location;
+    private List<String> lots;
+    private RentalShop shop;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        RentalShop.ensureDirectoriesExist();
+        location = "jmh-shop-" + inventorySize;
+        deleteShopState(location);
+        lots = LoadGenerator.provisionLots("jmh-" + inventorySize, 1, inventorySize + 16);
+        shop = new RentalShop(location, inventorySize * 2 + 16, lots);
+
+        // Pull the fleet through the shop once so it ends up in shop inventory
+        List<String> rented = new ArrayList<>();
+        for(int i = 0; i < inventorySize; i++) {
+            CommandResult result = shop.rent(TYPES[i % TYPES.length]);
+            if(result instanceof CommandResult.Rented) {
+                rented.add(((CommandResult.Rented) result).vehicle.getLicensePlate());
+            }
+        }
+        for(String plate : rented) {
+            shop.returnVehicle(plate, 1);
+        }
+        shop.checkpoint();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        shop.close();
+        deleteShopState(location);
+        for(String lot : lots) {
+            new File(lot + LotFile.EXTENSION).delete();
+        }
+    }
+
+    // Appends to the command log without forcing it, as grouped commands do
+    @Benchmark
+    public CommandResult rentReturn() {
+        CommandResult result = shop.rent(TYPES[next++ % TYPES.length]);
+        if(result instanceof CommandResult.Rented) {
+            return shop.returnVehicle(((CommandResult.Rented) result).vehicle.getLicensePlate(), 10);
+        }
+        return result;
+    }
+
+    // What a console or server command pays when every command is acknowledged individually
+    @Benchmark
+    public CommandResult rentReturnDurable() {
+        CommandResult result = rentReturn();
+        shop.sync();
+        return result;
+    }
+
+    @Benchmark
+    public void saveState() {
+        shop.checkpoint();
+    }
+
+    // Opening an existing shop loads its snapshot; closing it writes a fresh one
+    @Benchmark
+    @Warmup(iterations = 2, time = 2)
+    public RentalShop loadSaveCycle() {
+        shop.close();
+        shop = new RentalShop(location, inventorySize * 2 + 16, lots);
+        return shop;
+    }
+
+    private static void deleteShopState(String location) {
+        File shops = new File("outputs" + File.separator + "shops");
+        File[] files = shops.listFiles((dir, name) -> name.startsWith(location + "."));
+        if(files != null) {
+            for(File f : files) {
+                f.delete();
+            }
+        }
+    }
+}
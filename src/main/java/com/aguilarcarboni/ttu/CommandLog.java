@@ -0,0 +1,197 @@
+package com.aguilarcarboni.ttu;
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+// Append-only write-ahead log of the state changes a shop makes between snapshots.
+// Appends are serialized; concurrent sync() calls share one fsync when it already covers their records.
+public class CommandLog implements Closeable {
+    public static final byte STOCK = 1;         // vehicle added to shop inventory from a lot
+    public static final byte RENT = 2;          // vehicle handed to a customer
+    public static final byte RETURN = 3;        // vehicle returned and charged
+    public static final byte MOVE_TO_LOT = 4;   // vehicle taken out of shop inventory and queued for a lot
+    public static final byte OFFLOADED = 5;     // queued vehicle written to its lot
+
+    private final File file;
+    private FileOutputStream fileStream;
+    private FileChannel channel;
+    private DataOutputStream out;
+    private final ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream(64);
+    private final DataOutputStream recordOut = new DataOutputStream(recordBuffer);
+    private final CRC32 crc = new CRC32();
+    private long nextSequence = 1;
+    private volatile int recordsSinceReset = 0;
+    private volatile long syncedSequence = 0;
+    private final Object forceLock = new Object();
+
+    public CommandLog(String path) {
+        this.file = new File(path);
+    }
+
+    public boolean exists() {
+        return file.exists() && file.length() > 0;
+    }
+
+    // Replays every intact record after the given sequence, cuts off a torn tail, then opens the log for appending
+    public void recover(long snapshotSequence, Consumer<Entry> applier) throws IOException {
+        long lastSequence = snapshotSequence;
+        long validLength = 0;
+        if(file.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                Entry entry;
+                while((entry = readEntry(in)) != null) {
+                    validLength += entry.encodedLength;
+                    if(entry.sequence > snapshotSequence) {
+                        applier.accept(entry);
+                        lastSequence = entry.sequence;
+                        recordsSinceReset++;
+                    }
+                }
+            }
+        }
+        nextSequence = lastSequence + 1;
+        syncedSequence = lastSequence;
+        openForAppend();
+        if(channel.size() > validLength) {
+            System.err.println("Command log " + file + " has a torn tail, truncating to " + validLength + " bytes.");
+            channel.truncate(validLength);
+        }
+    }
+
+    // Reads intact records after the given sequence without opening the log for writing or repairing it,
+    // for readers outside the shop that owns the log
+    public static void scan(String path, long afterSequence, Consumer<Entry> consumer) throws IOException {
+        CommandLog log = new CommandLog(path);
+        if(!log.file.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(log.file)))) {
+            Entry entry;
+            while((entry = log.readEntry(in)) != null) {
+                if(entry.sequence > afterSequence) {
+                    consumer.accept(entry);
+                }
+            }
+        }
+    }
+
+    public synchronized void append(byte op, String plate, String type, int kilometers, boolean discount) {
+        try {
+            recordBuffer.reset();
+            recordOut.writeLong(nextSequence);
+            recordOut.writeByte(op);
+            recordOut.writeUTF(plate);
+            recordOut.writeUTF(type == null ? "" : type);
+            recordOut.writeInt(kilometers);
+            recordOut.writeBoolean(discount);
+            crc.reset();
+            crc.update(recordBuffer.toByteArray());
+            out.writeInt(recordBuffer.size());
+            recordBuffer.writeTo(out);
+            out.writeInt((int) crc.getValue());
+            nextSequence++;
+            recordsSinceReset++;
+        } catch(IOException e) {
+            System.err.println("Error appending to command log: " + e.getMessage());
+        }
+    }
+
+    // Pushes buffered records to the OS and forces them to disk. A caller whose records were
+    // already covered by another thread's force returns without forcing again.
+    public void sync() {
+        try {
+            long target;
+            synchronized (this) {
+                target = nextSequence - 1;
+                if(target <= syncedSequence) {
+                    return;
+                }
+                out.flush();
+            }
+            synchronized (forceLock) {
+                if(target <= syncedSequence) {
+                    return;
+                }
+                channel.force(false);
+                syncedSequence = target;
+            }
+        } catch(IOException e) {
+            System.err.println("Error syncing command log: " + e.getMessage());
+        }
+    }
+
+    public synchronized long lastSequence() {
+        return nextSequence - 1;
+    }
+
+    public int recordsSinceReset() {
+        return recordsSinceReset;
+    }
+
+    // Called once a snapshot covering every appended record is durable
+    public synchronized void reset() {
+        try {
+            out.flush();
+            channel.truncate(0);
+            channel.force(false);
+            recordsSinceReset = 0;
+            syncedSequence = nextSequence - 1;
+        } catch(IOException e) {
+            System.err.println("Error truncating command log: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(out != null) {
+            sync();
+            out.close();
+        }
+    }
+
+    private void openForAppend() throws IOException {
+        fileStream = new FileOutputStream(file, true);
+        channel = fileStream.getChannel();
+        out = new DataOutputStream(new BufferedOutputStream(fileStream));
+    }
+
+    private Entry readEntry(DataInputStream in) throws IOException {
+        try {
+            int length = in.readInt();
+            if(length <= 0 || length > 4096) {
+                return null;
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            int checksum = in.readInt();
+            crc.reset();
+            crc.update(payload);
+            if((int) crc.getValue() != checksum) {
+                return null;
+            }
+            DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+            Entry entry = new Entry();
+            entry.sequence = record.readLong();
+            entry.op = record.readByte();
+            entry.plate = record.readUTF();
+            entry.type = record.readUTF();
+            entry.kilometers = record.readInt();
+            entry.discount = record.readBoolean();
+            entry.encodedLength = 8 + length;
+            return entry;
+        } catch(EOFException e) {
+            return null;
+        }
+    }
+
+    public static class Entry {
+        long sequence;
+        byte op;
+        String plate;
+        String type;
+        int kilometers;
+        boolean discount;
+        int encodedLength;
+    }
+}
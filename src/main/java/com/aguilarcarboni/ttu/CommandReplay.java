@@ -0,0 +1,271 @@
+package com.aguilarcarboni.ttu;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Arrays;
+
+// Replays a recorded command file (the commands/shop*-commands.txt format) against one shop.
+// The file is memory-mapped in windows and each line is tokenized in place: RENT and RETURN lines go
+// straight to the shop without building strings, plates are decoded through a small cache, and results
+// are appended to one buffer that is encoded into a reused byte buffer and written to the output channel.
+// Output is only written once the command log covering it has been synced, as in the console loop.
+// Anything else (LIST, TRANSACTIONS, STATS, batched RENT and RETURN, malformed lines) goes through the
+// regular command parser.
+public class CommandReplay {
+    private static final long WINDOW_BYTES = 64L << 20;
+    private static final int OUTPUT_FLUSH_CHARS = 64 << 10;
+    private static final int PLATE_CACHE_SIZE = 1 << 14;
+    // Replay output is not an acknowledgement to a waiting customer, so by default one fsync covers many commands
+    static final int DEFAULT_SYNC_COMMANDS = 4096;
+
+    private static final byte[] RENT = ascii("RENT");
+    private static final byte[] RETURN = ascii("RETURN");
+    private static final byte[] EXIT = ascii("EXIT");
+    private static final VehicleType[] TYPES = VehicleType.values();
+    private static final byte[][] TYPE_NAMES = new byte[TYPES.length][];
+    static {
+        for(int i = 0; i < TYPES.length; i++) {
+            TYPE_NAMES[i] = ascii(TYPES[i].name());
+        }
+    }
+
+    private final RentalShop shop;
+    private final ShopMetrics metrics;
+    private final DurabilityPolicy policy;
+    private final WritableByteChannel out;
+    private final StringBuilder pending = new StringBuilder(OUTPUT_FLUSH_CHARS * 2);
+    private final ByteBuffer encoded = ByteBuffer.allocateDirect(OUTPUT_FLUSH_CHARS * 4);
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+    private final int[] plateCodes = new int[PLATE_CACHE_SIZE];
+    private final String[] plates = new String[PLATE_CACHE_SIZE];
+
+    private int pendingCommands;
+    private long oldestPendingNanos;
+    private long commands;
+    private boolean exited;
+
+    public CommandReplay(RentalShop shop, DurabilityPolicy policy, WritableByteChannel out) {
+        this.shop = shop;
+        this.metrics = shop.metrics();
+        this.policy = policy;
+        this.out = out;
+        Arrays.fill(plateCodes, PlateCodec.INVALID);
+    }
+
+    // Replays the file up to EXIT or its end and returns the number of commands run
+    public long replay(Path commandFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(commandFile, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+            while(position < size && !exited) {
+                long length = Math.min(WINDOW_BYTES, size - position);
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                boolean last = position + length == size;
+                int consumed = replayWindow(window, (int) length, last);
+                if(consumed == 0) {
+                    System.err.println("Error replaying " + commandFile + ": line at byte " + position + " is longer than " + WINDOW_BYTES + " bytes");
+                    break;
+                }
+                position += consumed;
+            }
+        }
+        commit();
+        return commands;
+    }
+
+    // Runs every complete line in the window and returns the bytes consumed; a line cut by the window's end
+    // is left for the next window unless this is the end of the file
+    private int replayWindow(ByteBuffer buffer, int length, boolean last) throws IOException {
+        int lineStart = 0;
+        for(int i = 0; i < length && !exited; i++) {
+            if(buffer.get(i) == '\n') {
+                replayLine(buffer, lineStart, i);
+                lineStart = i + 1;
+            }
+        }
+        if(last && lineStart < length && !exited) {
+            replayLine(buffer, lineStart, length);
+            return length;
+        }
+        return exited ? length : lineStart;
+    }
+
+    private void replayLine(ByteBuffer buffer, int start, int end) throws IOException {
+        if(end > start && buffer.get(end - 1) == '\r') {
+            end--;
+        }
+        int commandStart = skipSpaces(buffer, start, end);
+        if(commandStart == end) {
+            return;
+        }
+        int commandEnd = tokenEnd(buffer, commandStart, end);
+        int argStart = skipSpaces(buffer, commandEnd, end);
+        int argEnd = tokenEnd(buffer, argStart, end);
+
+        if(matches(buffer, commandStart, commandEnd, EXIT)) {
+            exited = true;
+            return;
+        }
+        CommandResult result = null;
+        long began = System.nanoTime();
+        if(matches(buffer, commandStart, commandEnd, RENT)) {
+            VehicleType type = parseType(buffer, argStart, argEnd);
+            if(type != null && skipSpaces(buffer, argEnd, end) == end) {
+                result = shop.rent(type.name());
+                metrics.recordSince(ShopMetrics.Timer.RENT, began);
+            }
+        } else if(matches(buffer, commandStart, commandEnd, RETURN)) {
+            int plateCode = parsePlate(buffer, argStart, argEnd);
+            int kmStart = skipSpaces(buffer, argEnd, end);
+            int kmEnd = tokenEnd(buffer, kmStart, end);
+            int km = parseKilometers(buffer, kmStart, kmEnd);
+            if(plateCode != PlateCodec.INVALID && km >= 0 && skipSpaces(buffer, kmEnd, end) == end) {
+                result = shop.returnVehicle(plate(plateCode), km);
+                metrics.recordSince(ShopMetrics.Timer.RETURN, began);
+            }
+        }
+        if(result == null) {
+            result = shop.execute(decode(buffer, start, end));
+        }
+        result.appendTo(pending);
+        commands++;
+        if(pendingCommands++ == 0) {
+            oldestPendingNanos = began;
+        }
+        if(policy.shouldSync(pendingCommands, oldestPendingNanos) || pending.length() >= OUTPUT_FLUSH_CHARS * 16) {
+            commit();
+        }
+    }
+
+    // Makes the pending commands durable, then writes their output
+    private void commit() throws IOException {
+        if(pendingCommands > 0) {
+            shop.sync();
+            pendingCommands = 0;
+        }
+        int offset = 0;
+        while(offset < pending.length()) {
+            int chunk = Math.min(OUTPUT_FLUSH_CHARS, pending.length() - offset);
+            if(offset + chunk < pending.length() && Character.isHighSurrogate(pending.charAt(offset + chunk - 1))) {
+                chunk--;
+            }
+            CharBuffer chars = CharBuffer.wrap(pending, offset, offset + chunk);
+            encoded.clear();
+            CoderResult coded = encoder.encode(chars, encoded, true);
+            if(coded.isError()) {
+                coded.throwException();
+            }
+            encoder.reset();
+            encoded.flip();
+            while(encoded.hasRemaining()) {
+                out.write(encoded);
+            }
+            offset += chunk;
+        }
+        pending.setLength(0);
+    }
+
+    private String plate(int code) {
+        int slot = code & (PLATE_CACHE_SIZE - 1);
+        if(plateCodes[slot] != code) {
+            plates[slot] = PlateCodec.decode(code);
+            plateCodes[slot] = code;
+        }
+        return plates[slot];
+    }
+
+    private static VehicleType parseType(ByteBuffer buffer, int start, int end) {
+        for(int i = 0; i < TYPES.length; i++) {
+            if(matches(buffer, start, end, TYPE_NAMES[i])) {
+                return TYPES[i];
+            }
+        }
+        return null;
+    }
+
+    // Same rules as PlateCodec.encode: three letters in either case, a dash, three digits
+    private static int parsePlate(ByteBuffer buffer, int start, int end) {
+        if(end - start != 7 || buffer.get(start + 3) != '-') {
+            return PlateCodec.INVALID;
+        }
+        int code = 0;
+        for(int i = start; i < start + 3; i++) {
+            int c = buffer.get(i) & 0xDF;
+            if(c < 'A' || c > 'Z') {
+                return PlateCodec.INVALID;
+            }
+            code = code * 26 + (c - 'A');
+        }
+        for(int i = start + 4; i < end; i++) {
+            int c = buffer.get(i);
+            if(c < '0' || c > '9') {
+                return PlateCodec.INVALID;
+            }
+            code = code * 10 + (c - '0');
+        }
+        return code;
+    }
+
+    // -1 for anything Integer.parseInt would reject, so the regular parser reports it
+    private static int parseKilometers(ByteBuffer buffer, int start, int end) {
+        if(start == end || end - start > 9) {
+            return -1;
+        }
+        int value = 0;
+        for(int i = start; i < end; i++) {
+            int c = buffer.get(i);
+            if(c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static boolean matches(ByteBuffer buffer, int start, int end, byte[] upperCaseWord) {
+        if(end - start != upperCaseWord.length) {
+            return false;
+        }
+        for(int i = 0; i < upperCaseWord.length; i++) {
+            int c = buffer.get(start + i);
+            if(c >= 'a' && c <= 'z') {
+                c -= 'a' - 'A';
+            }
+            if(c != upperCaseWord[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int skipSpaces(ByteBuffer buffer, int i, int end) {
+        while(i < end && (buffer.get(i) == ' ' || buffer.get(i) == '\t')) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int tokenEnd(ByteBuffer buffer, int i, int end) {
+        while(i < end && buffer.get(i) != ' ' && buffer.get(i) != '\t') {
+            i++;
+        }
+        return i;
+    }
+
+    private static String decode(ByteBuffer buffer, int start, int end) {
+        byte[] line = new byte[end - start];
+        buffer.get(start, line);
+        return new String(line, StandardCharsets.UTF_8).trim();
+    }
+
+    private static byte[] ascii(String word) {
+        return word.getBytes(StandardCharsets.US_ASCII);
+    }
+}
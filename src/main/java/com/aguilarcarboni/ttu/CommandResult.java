@@ -0,0 +1,276 @@
+package com.aguilarcarboni.ttu;
+import java.util.List;
+
+// What a shop command did, as data; render() gives the text the console shell prints for it
+public abstract class CommandResult {
+    private static final String RULE = "----------------------------------------";
+
+    public abstract String render();
+
+    // Appends the rendered text; the per-car results override it so bulk output builds no intermediate strings
+    public void appendTo(StringBuilder out) {
+        out.append(render());
+    }
+
+    private static String renderAppended(CommandResult result) {
+        StringBuilder sb = new StringBuilder(128);
+        result.appendTo(sb);
+        return sb.toString();
+    }
+
+    // Same text as String.format("%.2f") for the amounts a shop charges
+    static void appendMoney(StringBuilder out, double amount) {
+        long cents = Math.round(amount * 100);
+        if(cents < 0) {
+            out.append('-');
+            cents = -cents;
+        }
+        out.append(cents / 100).append('.');
+        if(cents % 100 < 10) {
+            out.append('0');
+        }
+        out.append(cents % 100);
+    }
+
+    // A vehicle handed to the customer, from shop inventory or from a lot
+    public static final class Rented extends CommandResult {
+        public final Vehicle vehicle;
+        public final boolean fromLot;
+
+        Rented(Vehicle vehicle, boolean fromLot) {
+            this.vehicle = vehicle;
+            this.fromLot = fromLot;
+        }
+
+        @Override
+        public String render() {
+            return renderAppended(this);
+        }
+
+        @Override
+        public void appendTo(StringBuilder out) {
+            out.append("RENT: Vehicle ").append(vehicle.getLicensePlate()).append(" (").append(vehicle.getType());
+            out.append(fromLot ? ") has been obtained from lot with 10% discount.\n" : ") has been provided from shop inventory.\n");
+        }
+    }
+
+    public static final class NoVehicleAvailable extends CommandResult {
+        public final String vehicleType;
+
+        NoVehicleAvailable(String vehicleType) {
+            this.vehicleType = vehicleType;
+        }
+
+        @Override
+        public String render() {
+            return renderAppended(this);
+        }
+
+        @Override
+        public void appendTo(StringBuilder out) {
+            out.append("RENT: No vehicles of type ").append(vehicleType).append(" are available in shop or lots.\n");
+        }
+    }
+
+    // A charged return; movedVehicle is set when the return pushed a car out to a lot
+    public static final class Returned extends CommandResult {
+        public final String licensePlate;
+        public final int kilometers;
+        public final double charge;
+        public final boolean discountApplied;
+        public final Vehicle movedVehicle;
+        public final String movedToLot;
+
+        Returned(String licensePlate, int kilometers, double charge, boolean discountApplied, Vehicle movedVehicle, String movedToLot) {
+            this.licensePlate = licensePlate;
+            this.kilometers = kilometers;
+            this.charge = charge;
+            this.discountApplied = discountApplied;
+            this.movedVehicle = movedVehicle;
+            this.movedToLot = movedToLot;
+        }
+
+        @Override
+        public String render() {
+            return renderAppended(this);
+        }
+
+        @Override
+        public void appendTo(StringBuilder out) {
+            out.append("RETURN: Vehicle ").append(licensePlate).append(" has been returned. Distance added: ").append(kilometers).append(" km. Charge: $");
+            appendMoney(out, charge);
+            out.append('\n');
+            if(movedVehicle != null) {
+                out.append("RETURN: Vehicle ").append(movedVehicle.getLicensePlate()).append(" (").append(movedVehicle.getType())
+                    .append(") has been moved to lot ").append(movedToLot).append(" due to limited parking space.\n");
+            }
+        }
+    }
+
+    public static final class NotRented extends CommandResult {
+        public final String licensePlate;
+
+        NotRented(String licensePlate) {
+            this.licensePlate = licensePlate;
+        }
+
+        @Override
+        public String render() {
+            return renderAppended(this);
+        }
+
+        @Override
+        public void appendTo(StringBuilder out) {
+            out.append("RETURN: Vehicle ").append(licensePlate).append(" is not rented by any shop.\n");
+        }
+    }
+
+    // A batched RENT or RETURN: one result per car, in command order
+    public static final class Batch extends CommandResult {
+        public final List<CommandResult> results;
+
+        Batch(List<CommandResult> results) {
+            this.results = results;
+        }
+
+        @Override
+        public String render() {
+            return renderAppended(this);
+        }
+
+        @Override
+        public void appendTo(StringBuilder out) {
+            for(CommandResult result : results) {
+                result.appendTo(out);
+            }
+        }
+    }
+
+    public static final class StatusReport extends CommandResult {
+        public final String location;
+        public final int availableSpaces;
+        public final List<Vehicle> inventory;
+        public final List<Vehicle> rented;
+        // From the shop's revenue aggregates
+        public final double totalRevenue;
+
+        StatusReport(String location, int availableSpaces, List<Vehicle> inventory, List<Vehicle> rented, double totalRevenue) {
+            this.location = location;
+            this.availableSpaces = availableSpaces;
+            this.inventory = inventory;
+            this.rented = rented;
+            this.totalRevenue = totalRevenue;
+        }
+
+        @Override
+        public String render() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("LIST: Requesting shop status report for").append(location).append('\n');
+            sb.append(RULE).append('\n');
+            sb.append("Shop Status Report  \n");
+            sb.append("Available Parking Spaces: ").append(availableSpaces).append('\n');
+            sb.append("\nVehicles in Shop Inventory:\n");
+            for(Vehicle v : inventory) {
+                sb.append("   ").append(v).append('\n');
+            }
+            sb.append("\nVehicles Currently Rented:\n");
+            for(Vehicle v : rented) {
+                sb.append("   ").append(v).append('\n');
+            }
+            sb.append("\nTotal Revenue: $").append(String.format("%.2f", totalRevenue)).append('\n');
+            sb.append(RULE).append('\n');
+            return sb.toString();
+        }
+    }
+
+    // One page of the history, so the report stays the same size however long the history grows; the totals
+    // cover the whole history
+    public static final class TransactionReport extends CommandResult {
+        public final String location;
+        public final List<Transaction> transactions;
+        // Index of the first listed transaction, and how many there are in all
+        public final long first;
+        public final long total;
+        public final RevenueAggregates revenue;
+
+        TransactionReport(String location, List<Transaction> transactions, long first, long total, RevenueAggregates revenue) {
+            this.location = location;
+            this.transactions = transactions;
+            this.first = first;
+            this.total = total;
+            this.revenue = revenue;
+        }
+
+        @Override
+        public String render() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("TRANSACTIONS: Requesting transaction history for").append(location).append('\n');
+            sb.append(RULE).append('\n');
+            sb.append("Transaction History\n");
+            if(transactions.size() < total) {
+                sb.append("(Transactions ").append(first + 1).append(" to ").append(first + transactions.size()).append(" of ").append(total)
+                    .append("; TRANSACTIONS <n> lists from transaction n)\n");
+            }
+            for(Transaction t : transactions) {
+                sb.append(t).append('\n');
+            }
+            sb.append("\nTotal Earnings: $").append(String.format("%.2f", revenue.totalRevenue())).append('\n');
+            sb.append("Total Discounts Given: $").append(String.format("%.2f", revenue.totalDiscount())).append('\n');
+            sb.append("\nRevenue by Vehicle Type:\n");
+            for(VehicleType type : VehicleType.values()) {
+                appendBreakdown(sb, type.name(), revenue.countByType(type), revenue.revenueByType(type));
+            }
+            if(revenue.countByType(null) > 0) {
+                appendBreakdown(sb, "UNRECORDED", revenue.countByType(null), revenue.revenueByType(null));
+            }
+            sb.append("Revenue by Source:\n");
+            appendBreakdown(sb, "Shop inventory", revenue.countBySource(RevenueAggregates.SOURCE_SHOP), revenue.revenueBySource(RevenueAggregates.SOURCE_SHOP));
+            appendBreakdown(sb, "Lot (10% discount)", revenue.countBySource(RevenueAggregates.SOURCE_LOT), revenue.revenueBySource(RevenueAggregates.SOURCE_LOT));
+            sb.append(RULE).append('\n');
+            return sb.toString();
+        }
+    }
+
+    private static void appendBreakdown(StringBuilder sb, String label, long count, double amount) {
+        sb.append("   ").append(label).append(": ").append(count).append(" rentals, $").append(String.format("%.2f", amount)).append('\n');
+    }
+
+    // Latency per command, I/O phase and lock, in microseconds
+    public static final class StatsReport extends CommandResult {
+        public final String location;
+        public final List<ShopMetrics.Row> rows;
+
+        StatsReport(String location, List<ShopMetrics.Row> rows) {
+            this.location = location;
+            this.rows = rows;
+        }
+
+        @Override
+        public String render() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("STATS: Latency report for ").append(location).append('\n');
+            sb.append(RULE).append('\n');
+            sb.append(String.format("%-16s %10s %10s %10s %10s %10s %10s%n", "TIMER", "COUNT", "MEAN us", "P50 us", "P99 us", "P999 us", "MAX us"));
+            for(ShopMetrics.Row r : rows) {
+                sb.append(String.format("%-16s %10d %10.1f %10.1f %10.1f %10.1f %10.1f%n", r.name, r.count, r.meanNanos / 1000.0,
+                    r.p50Nanos / 1000.0, r.p99Nanos / 1000.0, r.p999Nanos / 1000.0, r.maxNanos / 1000.0));
+            }
+            sb.append(RULE).append('\n');
+            return sb.toString();
+        }
+    }
+
+    // Usage errors and unknown commands
+    public static final class Message extends CommandResult {
+        public final String text;
+
+        Message(String text) {
+            this.text = text;
+        }
+
+        @Override
+        public String render() {
+            return text + "\n";
+        }
+    }
+}
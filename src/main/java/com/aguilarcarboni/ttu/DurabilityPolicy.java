@@ -0,0 +1,71 @@
+package com.aguilarcarboni.ttu;
+
+// When a group of commands shares one command log fsync: "always", "every:<commands>" or "interval:<millis>"
+public class DurabilityPolicy {
+    public enum Mode { ALWAYS, EVERY_N, INTERVAL }
+
+    private final Mode mode;
+    private final long limit;
+
+    private DurabilityPolicy(Mode mode, long limit) {
+        this.mode = mode;
+        this.limit = limit;
+    }
+
+    public static DurabilityPolicy always() {
+        return new DurabilityPolicy(Mode.ALWAYS, 1);
+    }
+
+    public static DurabilityPolicy everyCommands(int commands) {
+        return new DurabilityPolicy(Mode.EVERY_N, Math.max(1, commands));
+    }
+
+    public static DurabilityPolicy everyMillis(long millis) {
+        return new DurabilityPolicy(Mode.INTERVAL, Math.max(0, millis));
+    }
+
+    public static DurabilityPolicy parse(String spec) {
+        if(spec == null || spec.isEmpty() || spec.equalsIgnoreCase("always")) {
+            return always();
+        }
+        int colon = spec.indexOf(':');
+        if(colon > 0) {
+            String kind = spec.substring(0, colon).toLowerCase();
+            long value = Long.parseLong(spec.substring(colon + 1));
+            if(kind.equals("every")) {
+                return everyCommands((int) value);
+            }
+            if(kind.equals("interval")) {
+                return everyMillis(value);
+            }
+        }
+        throw new IllegalArgumentException("Unknown sync policy '" + spec + "', expected always, every:<commands> or interval:<millis>");
+    }
+
+    // Decides whether the group collected so far must be made durable before taking another queued command
+    public boolean shouldSync(int pendingCommands, long oldestPendingNanos) {
+        if(pendingCommands == 0) {
+            return false;
+        }
+        switch(mode) {
+            case EVERY_N:
+                return pendingCommands >= limit;
+            case INTERVAL:
+                return System.nanoTime() - oldestPendingNanos >= limit * 1_000_000L;
+            default:
+                return true;
+        }
+    }
+
+    @Override
+    public String toString() {
+        switch(mode) {
+            case EVERY_N:
+                return "every:" + limit;
+            case INTERVAL:
+                return "interval:" + limit;
+            default:
+                return "always";
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package com.aguilarcarboni.ttu;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+// Fleet-wide totals by vehicle type, location and lot. Every shop snapshot (plus its command log) and
+// every lot file, binary or not yet converted from text, is loaded in parallel. Nothing is written and
+// only shared locks are taken, so shops can keep running. A checkpoint
+// replaces the snapshot before it empties the command log, so a shop whose snapshot changed while its
+// log was read is loaded again. A shop only learns that another shop took one of its rentals back when
+// it restarts, so rentals are checked against the rented registry, opened read-only, the same way.
+//
+//   --outputs=<dir>        outputs tree to read, default outputs
+//   --parallelism=<n>      worker threads, default one per core
+public class FleetReport {
+    private static final String[] TYPE_LABELS = {"UNKNOWN", "SEDAN", "SUV", "VAN"};
+    // Checkpoints run every few seconds, so one retry nearly always suffices
+    private static final int SHOP_READ_ATTEMPTS = 5;
+
+    public static void main(String[] args) throws InterruptedException {
+        Map<String, String> flags = RentalShop.parseArgs(args);
+        File outputs = new File(flags.getOrDefault("--outputs", "outputs"));
+        int parallelism = Integer.parseInt(flags.getOrDefault("--parallelism", String.valueOf(Runtime.getRuntime().availableProcessors())));
+
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try (ShardedRentedRegistry registry = openRegistry(outputs)) {
+            List<ShopSummary> shops = pool.submit(() -> listSnapshots(new File(outputs, "shops")).parallelStream()
+                .map(file -> loadShop(file, registry))
+                .filter(Objects::nonNull)
+                .sorted(Comparator.comparing(s -> s.location))
+                .collect(Collectors.toList())).get();
+            List<LotSummary> lots = pool.submit(() -> listLots(new File(outputs, "lots")).parallelStream()
+                .map(FleetReport::loadLot)
+                .filter(Objects::nonNull)
+                .sorted(Comparator.comparing(l -> l.name))
+                .collect(Collectors.toList())).get();
+            double elapsedMs = (System.nanoTime() - start) / 1_000_000.0;
+            System.out.println("Fleet report: " + shops.size() + " shops, " + lots.size() + " lots, loaded in " + String.format("%.1f", elapsedMs) + " ms");
+            printByType(shops, lots);
+            printByLocation(shops);
+            printLots(lots);
+        } catch (ExecutionException e) {
+            System.err.println("Error building fleet report: " + e.getCause().getMessage());
+        } catch (IOException e) {
+            System.err.println("Error opening rented registry: " + e.getMessage());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // Null when no shop has rented anything yet
+    private static ShardedRentedRegistry openRegistry(File outputs) throws IOException {
+        File base = new File(new File(outputs, "registry"), "rented_registry");
+        return ShardedRentedRegistry.openReadOnly(base.getPath());
+    }
+
+    private static List<File> listFiles(File directory, String extension) {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(extension));
+        return files == null ? Collections.emptyList() : Arrays.asList(files);
+    }
+
+    // One snapshot per shop, the binary one when a shop has not yet migrated away from its .ser
+    private static List<File> listSnapshots(File directory) {
+        Map<String, File> byLocation = new HashMap<>();
+        for(File f : listFiles(directory, ShopSnapshot.LEGACY_EXTENSION)) {
+            byLocation.put(baseName(f, ShopSnapshot.LEGACY_EXTENSION), f);
+        }
+        for(File f : listFiles(directory, ShopSnapshot.EXTENSION)) {
+            byLocation.put(baseName(f, ShopSnapshot.EXTENSION), f);
+        }
+        return new ArrayList<>(byLocation.values());
+    }
+
+    // One file per lot, the binary one when a shop or LotManager has already converted the text lot
+    private static List<File> listLots(File directory) {
+        Map<String, File> byName = new HashMap<>();
+        for(File f : listFiles(directory, LotFile.TEXT_EXTENSION)) {
+            byName.put(baseName(f, LotFile.TEXT_EXTENSION), f);
+        }
+        for(File f : listFiles(directory, LotFile.EXTENSION)) {
+            byName.put(baseName(f, LotFile.EXTENSION), f);
+        }
+        return new ArrayList<>(byName.values());
+    }
+
+    private static String baseName(File file, String extension) {
+        String name = file.getName();
+        return name.substring(0, name.length() - extension.length());
+    }
+
+    private static ShopSummary loadShop(File snapshotFile, ShardedRentedRegistry registry) {
+        String extension = snapshotFile.getName().endsWith(ShopSnapshot.EXTENSION) ? ShopSnapshot.EXTENSION : ShopSnapshot.LEGACY_EXTENSION;
+        String location = baseName(snapshotFile, extension);
+        try {
+            ShopSnapshot snapshot = readConsistent(location, snapshotFile);
+            if(snapshot == null) {
+                System.err.println("Error reading shop " + location + ": it kept checkpointing while being read");
+                return null;
+            }
+            if(registry != null) {
+                // Backwards, so the row moved into a removed slot has already been checked
+                for(int row = snapshot.rentals.size() - 1; row >= 0; row--) {
+                    if(!registry.contains(snapshot.rentals.plateStringAt(row))) {
+                        snapshot.rentals.removeRow(row);
+                    }
+                }
+            }
+            return new ShopSummary(snapshot);
+        } catch (IOException e) {
+            System.err.println("Error reading shop " + location + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    // The snapshot plus its command log, read again whenever a checkpoint replaced the snapshot in between:
+    // the log read may then have missed records the old snapshot lacks
+    private static ShopSnapshot readConsistent(String location, File snapshotFile) throws IOException {
+        String logPath = new File(snapshotFile.getParentFile(), location + ".wal").getPath();
+        for(int attempt = 0; attempt < SHOP_READ_ATTEMPTS; attempt++) {
+            Object generation = fileGeneration(snapshotFile);
+            ShopSnapshot snapshot = ShopSnapshot.read(location, snapshotFile.getPath());
+            snapshot.replay(logPath);
+            if(generation.equals(fileGeneration(snapshotFile))) {
+                return snapshot;
+            }
+        }
+        return null;
+    }
+
+    // A checkpoint renames a new file into place, so the file key changes; the time and size cover file
+    // systems without one
+    private static Object fileGeneration(File file) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        return Arrays.asList(attributes.fileKey(), attributes.lastModifiedTime(), attributes.size());
+    }
+
+    private static LotSummary loadLot(File lotFile) {
+        boolean text = lotFile.getName().endsWith(LotFile.TEXT_EXTENSION);
+        String name = baseName(lotFile, text ? LotFile.TEXT_EXTENSION : LotFile.EXTENSION);
+        if(text) {
+            try {
+                return loadTextLot(name, lotFile);
+            } catch (NoSuchFileException e) {
+                // Converted since the directory was listed; the binary file has the cars now
+            } catch (IOException e) {
+                System.err.println("Error reading lot " + name + ": " + e.getMessage());
+                return null;
+            }
+        }
+        String lotPath = new File(lotFile.getParentFile(), name).getPath();
+        try (LotFile lot = LotFile.openReadOnly(lotPath)) {
+            LotSummary summary = new LotSummary(name);
+            VehicleTable vehicles = lot.readTable();
+            for(int row = 0; row < vehicles.size(); row++) {
+                summary.byType[vehicles.typeAt(row)]++;
+            }
+            return summary;
+        } catch (IOException e) {
+            System.err.println("Error reading lot " + name + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static LotSummary loadTextLot(String name, File lotFile) throws IOException {
+        LotSummary summary = new LotSummary(name);
+        for(String line : Files.readAllLines(lotFile.toPath())) {
+            if(line.isBlank()) {
+                continue;
+            }
+            Vehicle vehicle = LotFile.parseTextLine(line);
+            if(vehicle != null) {
+                summary.byType[VehicleType.codeOf(vehicle.getType())]++;
+            }
+        }
+        return summary;
+    }
+
+    private static void printByType(List<ShopSummary> shops, List<LotSummary> lots) {
+        long[] inLots = new long[TYPE_LABELS.length];
+        long[] inShops = new long[TYPE_LABELS.length];
+        long[] rented = new long[TYPE_LABELS.length];
+        for(LotSummary lot : lots) {
+            add(inLots, lot.byType);
+        }
+        RevenueAggregates revenue = new RevenueAggregates();
+        for(ShopSummary shop : shops) {
+            add(inShops, shop.inventoryByType);
+            add(rented, shop.rentedByType);
+            revenue.merge(shop.revenue);
+        }
+
+        System.out.println();
+        System.out.println("By vehicle type:");
+        System.out.println(String.format("  %-8s %10s %10s %10s %10s %10s %14s", "TYPE", "IN LOTS", "IN SHOPS", "RENTED", "TOTAL", "RENTALS", "REVENUE"));
+        long fleet = 0;
+        long fleetRented = 0;
+        for(int code = 0; code < TYPE_LABELS.length; code++) {
+            long total = inLots[code] + inShops[code] + rented[code];
+            VehicleType type = VehicleType.fromCode((byte) code);
+            long rentals = revenue.countByType(type);
+            if(total == 0 && rentals == 0) {
+                continue;
+            }
+            fleet += total;
+            fleetRented += rented[code];
+            System.out.println(String.format("  %-8s %10d %10d %10d %10d %10d %14.2f", TYPE_LABELS[code], inLots[code], inShops[code],
+                rented[code], total, rentals, revenue.revenueByType(type)));
+        }
+        System.out.println(String.format("  Fleet: %d vehicles, %d rented (%.1f%%), revenue $%.2f, discounts given $%.2f", fleet, fleetRented,
+            fleet == 0 ? 0.0 : 100.0 * fleetRented / fleet, revenue.totalRevenue(), revenue.totalDiscount()));
+    }
+
+    private static void printByLocation(List<ShopSummary> shops) {
+        System.out.println();
+        System.out.println("By location:");
+        System.out.println(String.format("  %-24s %8s %8s %8s %10s %12s %14s", "LOCATION", "SPACES", "IN SHOP", "RENTED", "OCCUPANCY", "UTILIZATION", "REVENUE"));
+        for(ShopSummary shop : shops) {
+            long inShop = sum(shop.inventoryByType);
+            long rented = sum(shop.rentedByType);
+            long held = inShop + rented;
+            System.out.println(String.format("  %-24s %8d %8d %8d %9.1f%% %11.1f%% %14.2f", shop.location, shop.parkingCapacity, inShop, rented,
+                shop.parkingCapacity == 0 ? 0.0 : 100.0 * held / shop.parkingCapacity, held == 0 ? 0.0 : 100.0 * rented / held, shop.revenue.totalRevenue()));
+        }
+    }
+
+    private static void printLots(List<LotSummary> lots) {
+        System.out.println();
+        System.out.println("Lots:");
+        System.out.println(String.format("  %-24s %8s %8s %8s %8s", "LOT", "SEDAN", "SUV", "VAN", "TOTAL"));
+        for(LotSummary lot : lots) {
+            System.out.println(String.format("  %-24s %8d %8d %8d %8d", lot.name, lot.byType[1], lot.byType[2], lot.byType[3], sum(lot.byType)));
+        }
+    }
+
+    private static void add(long[] into, long[] values) {
+        for(int i = 0; i < into.length; i++) {
+            into[i] += values[i];
+        }
+    }
+
+    private static long sum(long[] values) {
+        long total = 0;
+        for(long v : values) {
+            total += v;
+        }
+        return total;
+    }
+
+    // Per-shop counts, computed on the worker that loaded the snapshot so the merge is cheap
+    private static class ShopSummary {
+        final String location;
+        final int parkingCapacity;
+        final RevenueAggregates revenue;
+        final long[] inventoryByType = new long[TYPE_LABELS.length];
+        final long[] rentedByType = new long[TYPE_LABELS.length];
+
+        ShopSummary(ShopSnapshot snapshot) {
+            this.location = snapshot.location;
+            this.parkingCapacity = snapshot.parkingCapacity;
+            this.revenue = snapshot.revenue;
+            for(int row = 0; row < snapshot.inventory.size(); row++) {
+                inventoryByType[snapshot.inventory.typeAt(row)]++;
+            }
+            // Queued for a lot but still parked at the shop
+            for(int row = 0; row < snapshot.offloading.size(); row++) {
+                inventoryByType[snapshot.offloading.typeAt(row)]++;
+            }
+            for(int row = 0; row < snapshot.rentals.size(); row++) {
+                rentedByType[snapshot.rentals.typeAt(row)]++;
+            }
+        }
+    }
+
+    private static class LotSummary {
+        final String name;
+        final long[] byType = new long[TYPE_LABELS.length];
+
+        LotSummary(String name) {
+            this.name = name;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package com.aguilarcarboni.ttu;
+import java.util.*;
+
+// Shop inventory keyed by plate, with per-type buckets and a kilometer ordering kept in step on every change.
+// Vehicles live in a VehicleTable; each type is a doubly linked list of rows in arrival order, and a max-heap
+// of rows orders them by kilometers then plate. Every structure is int arrays indexed by row.
+public class InventoryIndex {
+    private static final int TYPE_CODES = VehicleType.values().length + 1;
+
+    private final VehicleTable table;
+    private int[] typeNext;
+    private int[] typePrev;
+    private final int[] typeHead = new int[TYPE_CODES];
+    private final int[] typeTail = new int[TYPE_CODES];
+    private final int[] typeCount = new int[TYPE_CODES];
+    private int[] heap;
+    private int[] heapPosition;
+    private int heapSize;
+
+    public InventoryIndex() {
+        this(new VehicleTable());
+    }
+
+    // Takes ownership of the table
+    private InventoryIndex(VehicleTable table) {
+        this.table = table;
+        allocateLinks(table.capacity());
+        Arrays.fill(typeHead, VehicleTable.NO_ROW);
+        Arrays.fill(typeTail, VehicleTable.NO_ROW);
+        for(int row = 0; row < table.size(); row++) {
+            link(row);
+        }
+    }
+
+    public static InventoryIndex of(VehicleTable vehicles) {
+        return new InventoryIndex(vehicles.copy());
+    }
+
+    // Stores a copy of the vehicle; later changes to the object are not seen
+    public void put(Vehicle vehicle) {
+        put(vehicle, (byte) 0);
+    }
+
+    public void put(Vehicle vehicle, byte flags) {
+        remove(vehicle.getLicensePlate());
+        int row = table.put(vehicle, flags);
+        if(typeNext.length < table.capacity()) {
+            allocateLinks(table.capacity());
+        }
+        link(row);
+    }
+
+    public Vehicle remove(String plate) {
+        int row = table.find(plate);
+        if(row == VehicleTable.NO_ROW) {
+            return null;
+        }
+        Vehicle removed = table.vehicleAt(row);
+        removeRow(row);
+        return removed;
+    }
+
+    public Vehicle get(String plate) {
+        int row = table.find(plate);
+        return row == VehicleTable.NO_ROW ? null : table.vehicleAt(row);
+    }
+
+    // The flags the vehicle was stored with, or 0 when it is not here
+    public byte flags(String plate) {
+        int row = table.find(plate);
+        return row == VehicleTable.NO_ROW ? 0 : table.flagsAt(row);
+    }
+
+    public boolean contains(String plate) {
+        return table.contains(plate);
+    }
+
+    // The type's longest-waiting vehicle
+    public Vehicle findByType(String type) {
+        int row = typeHead[VehicleType.codeOf(type)];
+        return row == VehicleTable.NO_ROW ? null : table.vehicleAt(row);
+    }
+
+    public int countByType(String type) {
+        return typeCount[VehicleType.codeOf(type)];
+    }
+
+    public Vehicle highestKilometers() {
+        return table.isEmpty() ? null : table.vehicleAt(heap[0]);
+    }
+
+    public Collection<Vehicle> values() {
+        return table.vehicles();
+    }
+
+    public int size() {
+        return table.size();
+    }
+
+    public boolean isEmpty() {
+        return table.isEmpty();
+    }
+
+    // The backing table, for the snapshot writer; callers must not change it
+    VehicleTable table() {
+        return table;
+    }
+
+    private void removeRow(int row) {
+        unlink(row);
+        int moved = table.removeRow(row);
+        if(moved != VehicleTable.NO_ROW) {
+            relocate(moved, row);
+        }
+    }
+
+    private void link(int row) {
+        byte type = table.typeAt(row);
+        typeNext[row] = VehicleTable.NO_ROW;
+        typePrev[row] = typeTail[type];
+        if(typeTail[type] == VehicleTable.NO_ROW) {
+            typeHead[type] = row;
+        } else {
+            typeNext[typeTail[type]] = row;
+        }
+        typeTail[type] = row;
+        typeCount[type]++;
+
+        int position = heapSize++;
+        heap[position] = row;
+        heapPosition[row] = position;
+        siftUp(position);
+    }
+
+    private void unlink(int row) {
+        byte type = table.typeAt(row);
+        int next = typeNext[row];
+        int prev = typePrev[row];
+        if(prev == VehicleTable.NO_ROW) {
+            typeHead[type] = next;
+        } else {
+            typeNext[prev] = next;
+        }
+        if(next == VehicleTable.NO_ROW) {
+            typeTail[type] = prev;
+        } else {
+            typePrev[next] = prev;
+        }
+        typeCount[type]--;
+
+        int position = heapPosition[row];
+        int last = --heapSize;
+        if(position != last) {
+            swap(position, last);
+            siftUp(position);
+            siftDown(position, last);
+        }
+    }
+
+    // The table moved row `from` into `to`; point every link and heap entry at its new row
+    private void relocate(int from, int to) {
+        byte type = table.typeAt(to);
+        int next = typeNext[from];
+        int prev = typePrev[from];
+        typeNext[to] = next;
+        typePrev[to] = prev;
+        if(prev == VehicleTable.NO_ROW) {
+            typeHead[type] = to;
+        } else {
+            typeNext[prev] = to;
+        }
+        if(next == VehicleTable.NO_ROW) {
+            typeTail[type] = to;
+        } else {
+            typePrev[next] = to;
+        }
+        heapPosition[to] = heapPosition[from];
+        heap[heapPosition[to]] = to;
+    }
+
+    private void siftUp(int position) {
+        while(position > 0) {
+            int parent = (position - 1) / 2;
+            if(!above(heap[position], heap[parent])) {
+                return;
+            }
+            swap(position, parent);
+            position = parent;
+        }
+    }
+
+    private void siftDown(int position, int size) {
+        while(true) {
+            int largest = position;
+            int left = position * 2 + 1;
+            int right = left + 1;
+            if(left < size && above(heap[left], heap[largest])) {
+                largest = left;
+            }
+            if(right < size && above(heap[right], heap[largest])) {
+                largest = right;
+            }
+            if(largest == position) {
+                return;
+            }
+            swap(position, largest);
+            position = largest;
+        }
+    }
+
+    // Kilometers, then plate; plate codes sort the same way as the plate strings
+    private boolean above(int a, int b) {
+        int kmA = table.kilometersAt(a);
+        int kmB = table.kilometersAt(b);
+        if(kmA != kmB) {
+            return kmA > kmB;
+        }
+        return table.plateAt(a) > table.plateAt(b);
+    }
+
+    private void swap(int i, int j) {
+        int rowI = heap[i];
+        int rowJ = heap[j];
+        heap[i] = rowJ;
+        heap[j] = rowI;
+        heapPosition[rowJ] = i;
+        heapPosition[rowI] = j;
+    }
+
+    private void allocateLinks(int capacity) {
+        typeNext = typeNext == null ? new int[capacity] : Arrays.copyOf(typeNext, capacity);
+        typePrev = typePrev == null ? new int[capacity] : Arrays.copyOf(typePrev, capacity);
+        heap = heap == null ? new int[capacity] : Arrays.copyOf(heap, capacity);
+        heapPosition = heapPosition == null ? new int[capacity] : Arrays.copyOf(heapPosition, capacity);
+    }
+}
@@ -0,0 +1,333 @@
+package com.aguilarcarboni.ttu;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Drives many shops and lots with a RENT/RETURN/LIST mix from thousands of concurrent clients and reports
+// throughput and latency percentiles per command type.
+//
+//   --shops=<n> --lots=<n> --vehicles-per-lot=<n> --spaces-available=<n>
+//   --clients=<n> --duration=<seconds> --mix=<rent>,<return>,<list>
+//   --mode=in-process|process   shops inside this JVM, or one RentalShop JVM per shop on the same outputs/ tree
+//   --prefix=<name>             names shops and lots <prefix>-shop-N / <prefix>-lot-N
+//   --sync=<policy>             durability policy handed to every shop
+//   --report-interval=<ms>      how often each shop may rewrite its text report
+//   --prefetch=<n>              per-type stock each shop keeps pulled from the lots ahead of demand
+public class LoadGenerator {
+    private static final String OUTPUTS_DIRECTORY = "outputs";
+    private static final String REGISTRY_DIRECTORY = OUTPUTS_DIRECTORY + File.separator + "registry";
+    private static final String LOTS_DIRECTORY = OUTPUTS_DIRECTORY + File.separator + "lots";
+    private static final String PLATE_REGISTRY_PATH = REGISTRY_DIRECTORY + File.separator + "plates_registry.bin";
+    private static final String LEGACY_PLATE_REGISTRY_PATH = REGISTRY_DIRECTORY + File.separator + "plates_registry.txt";
+    private static final String[] VEHICLE_TYPES = {"SEDAN", "SUV", "VAN"};
+    private static final Pattern RENTED_PLATE = Pattern.compile("RENT: Vehicle ([A-Z]{3}-[0-9]{3})");
+
+    private final Map<String, LatencyHistogram> latencies = new LinkedHashMap<>();
+    private final Map<String, AtomicLong> misses = new LinkedHashMap<>();
+    private final int rentWeight;
+    private final int returnWeight;
+    private final int listWeight;
+
+    LoadGenerator(int rentWeight, int returnWeight, int listWeight) {
+        this.rentWeight = rentWeight;
+        this.returnWeight = returnWeight;
+        this.listWeight = listWeight;
+        for(String command : new String[]{"RENT", "RETURN", "LIST"}) {
+            latencies.put(command, new LatencyHistogram());
+            misses.put(command, new AtomicLong());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> flags = RentalShop.parseArgs(args);
+        int shopCount = Integer.parseInt(flags.getOrDefault("--shops", "4"));
+        int lotCount = Integer.parseInt(flags.getOrDefault("--lots", "4"));
+        int vehiclesPerLot = Integer.parseInt(flags.getOrDefault("--vehicles-per-lot", "1000"));
+        int spaces = Integer.parseInt(flags.getOrDefault("--spaces-available", "50"));
+        int clients = Integer.parseInt(flags.getOrDefault("--clients", "1000"));
+        int durationSeconds = Integer.parseInt(flags.getOrDefault("--duration", "10"));
+        String mode = flags.getOrDefault("--mode", "in-process");
+        String prefix = flags.getOrDefault("--prefix", "load");
+        String[] mix = flags.getOrDefault("--mix", "45,45,10").split(",");
+
+        RentalShop.ensureDirectoriesExist();
+        RentalShop.configureRegistryShards(flags);
+        RentalShop.configureReportInterval(flags);
+        RentalShop.configurePrefetch(flags);
+        List<String> lots = provisionLots(prefix, lotCount, vehiclesPerLot);
+
+        List<ShopTarget> shops = new ArrayList<>();
+        for(int i = 0; i < shopCount; i++) {
+            String location = prefix + "-shop-" + i;
+            // Each shop overflows into two neighbouring lots so lots see contention from several shops
+            List<String> shopLots = new ArrayList<>();
+            shopLots.add(lots.get(i % lotCount));
+            if(lotCount > 1) {
+                shopLots.add(lots.get((i + 1) % lotCount));
+            }
+            if(mode.equals("process")) {
+                shops.add(new ProcessShop(location, spaces, shopLots, flags));
+            } else {
+                RentalShop shop = new RentalShop(location, spaces, shopLots);
+                shop.setDurabilityPolicy(DurabilityPolicy.parse(flags.get("--sync")));
+                shops.add(new InProcessShop(shop));
+            }
+        }
+
+        LoadGenerator generator = new LoadGenerator(Integer.parseInt(mix[0]), Integer.parseInt(mix[1]), Integer.parseInt(mix[2]));
+        System.out.println("Driving " + shopCount + " " + mode + " shops over " + lotCount + " lots with " + clients + " clients for " + durationSeconds + " s");
+        long elapsedNanos = generator.run(shops, clients, TimeUnit.SECONDS.toNanos(durationSeconds));
+
+        for(ShopTarget shop : shops) {
+            shop.close();
+        }
+        generator.report(elapsedNanos);
+    }
+
+    // Fills every lot with an even mix of types, reserving plates from the shared plate registry
+    static List<String> provisionLots(String prefix, int lotCount, int vehiclesPerLot) throws IOException {
+        new File(LOTS_DIRECTORY).mkdirs();
+        List<String> lots = new ArrayList<>();
+        Random rng = new Random();
+        try (PlateRegistry registry = PlateRegistry.open(PLATE_REGISTRY_PATH, LEGACY_PLATE_REGISTRY_PATH)) {
+            for(int i = 0; i < lotCount; i++) {
+                String lotPath = LOTS_DIRECTORY + File.separator + prefix + "-lot-" + i;
+                try (LotFile lot = LotFile.open(lotPath)) {
+                    int missing = vehiclesPerLot - lot.count();
+                    List<Vehicle> vehicles = new ArrayList<>();
+                    for(int v = 0; v < missing; v++) {
+                        vehicles.add(new Vehicle(registry.reserveRandom(rng), VEHICLE_TYPES[v % VEHICLE_TYPES.length], 0));
+                    }
+                    lot.checkinAll(vehicles);
+                }
+                lots.add(lotPath);
+            }
+        }
+        return lots;
+    }
+
+    long run(List<ShopTarget> shops, int clients, long durationNanos) throws InterruptedException {
+        ExecutorService executor = newClientExecutor(clients);
+        long start = System.nanoTime();
+        long deadline = start + durationNanos;
+        for(int i = 0; i < clients; i++) {
+            executor.execute(() -> runClient(shops, deadline));
+        }
+        executor.shutdown();
+        executor.awaitTermination(durationNanos + TimeUnit.MINUTES.toNanos(1), TimeUnit.NANOSECONDS);
+        return System.nanoTime() - start;
+    }
+
+    // One virtual thread per client where the runtime has them (Java 21+), one platform thread otherwise
+    static ExecutorService newClientExecutor(int clients) {
+        try {
+            ExecutorService executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            System.out.println("Using virtual-thread clients");
+            return executor;
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Virtual threads unavailable, using " + clients + " platform-thread clients");
+            return Executors.newFixedThreadPool(clients, r -> {
+                Thread t = new Thread(r, "load-client");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    // A client keeps the plates it holds so its returns are for real rentals, possibly at another shop
+    private void runClient(List<ShopTarget> shops, long deadline) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Deque<String> rented = new ArrayDeque<>();
+        int totalWeight = rentWeight + returnWeight + listWeight;
+        while(System.nanoTime() < deadline) {
+            ShopTarget shop = shops.get(random.nextInt(shops.size()));
+            int pick = random.nextInt(totalWeight);
+            try {
+                if(pick < rentWeight || (pick < rentWeight + returnWeight && rented.isEmpty())) {
+                    String type = VEHICLE_TYPES[random.nextInt(VEHICLE_TYPES.length)];
+                    long begin = System.nanoTime();
+                    String plate = shop.rent(type);
+                    latencies.get("RENT").record(System.nanoTime() - begin);
+                    if(plate == null) {
+                        misses.get("RENT").incrementAndGet();
+                    } else {
+                        rented.add(plate);
+                    }
+                } else if(pick < rentWeight + returnWeight) {
+                    String plate = rented.poll();
+                    long begin = System.nanoTime();
+                    boolean returned = shop.returnVehicle(plate, 1 + random.nextInt(500));
+                    latencies.get("RETURN").record(System.nanoTime() - begin);
+                    if(!returned) {
+                        misses.get("RETURN").incrementAndGet();
+                    }
+                } else {
+                    long begin = System.nanoTime();
+                    shop.list();
+                    latencies.get("LIST").record(System.nanoTime() - begin);
+                }
+            } catch (IOException e) {
+                System.err.println("Error driving shop " + shop.location() + ": " + e.getMessage());
+                return;
+            }
+        }
+        // Give the fleet back so repeated runs start from the same state
+        for(String plate : rented) {
+            try {
+                shops.get(random.nextInt(shops.size())).returnVehicle(plate, 1);
+            } catch (IOException e) {
+                System.err.println("Error returning " + plate + ": " + e.getMessage());
+            }
+        }
+    }
+
+    void report(long elapsedNanos) {
+        double seconds = elapsedNanos / 1_000_000_000.0;
+        long total = 0;
+        System.out.println(String.format("%-8s %10s %10s %10s %10s %10s %10s %8s", "COMMAND", "COUNT", "OPS/S", "P50 us", "P99 us", "P999 us", "MAX us", "MISSES"));
+        for(Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+            LatencyHistogram h = entry.getValue();
+            total += h.count();
+            System.out.println(String.format("%-8s %10d %10.0f %10.1f %10.1f %10.1f %10.1f %8d", entry.getKey(), h.count(), h.count() / seconds,
+                h.percentileNanos(0.50) / 1000.0, h.percentileNanos(0.99) / 1000.0, h.percentileNanos(0.999) / 1000.0,
+                h.maxNanos() / 1000.0, misses.get(entry.getKey()).get()));
+        }
+        System.out.println(String.format("Total: %d commands in %.1f s (%.0f commands/s)", total, seconds, total / seconds));
+    }
+
+    private static String javaBinary() {
+        return System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+    }
+
+    interface ShopTarget extends Closeable {
+        String location();
+
+        // Returns the rented plate, or null when no vehicle of that type was available
+        String rent(String type) throws IOException;
+
+        boolean returnVehicle(String plate, int kilometers) throws IOException;
+
+        void list() throws IOException;
+    }
+
+    static class InProcessShop implements ShopTarget {
+        private final RentalShop shop;
+
+        InProcessShop(RentalShop shop) {
+            this.shop = shop;
+        }
+
+        @Override
+        public String location() {
+            return shop.getLocation();
+        }
+
+        @Override
+        public String rent(String type) {
+            CommandResult result = shop.rent(type);
+            shop.sync();
+            return result instanceof CommandResult.Rented ? ((CommandResult.Rented) result).vehicle.getLicensePlate() : null;
+        }
+
+        @Override
+        public boolean returnVehicle(String plate, int kilometers) {
+            CommandResult result = shop.returnVehicle(plate, kilometers);
+            shop.sync();
+            return result instanceof CommandResult.Returned;
+        }
+
+        @Override
+        public void list() {
+            shop.status();
+        }
+
+        @Override
+        public void close() {
+            shop.close();
+        }
+    }
+
+    // A separate RentalShop JVM driven over its stdin; it reads one command at a time, so clients take turns
+    static class ProcessShop implements ShopTarget {
+        private final String location;
+        private final Process process;
+        private final Writer in;
+        private final Reader out;
+
+        ProcessShop(String location, int spaces, List<String> lots, Map<String, String> flags) throws IOException {
+            this.location = location;
+            List<String> command = new ArrayList<>(List.of(
+                javaBinary(), "-cp", System.getProperty("java.class.path"), RentalShop.class.getName(),
+                "--location=" + location, "--spaces-available=" + spaces, "--lots=" + String.join(",", lots)));
+            for(String flag : new String[]{"--sync", "--registry-shards", "--report-interval", "--prefetch"}) {
+                if(flags.containsKey(flag)) {
+                    command.add(flag + "=" + flags.get(flag));
+                }
+            }
+            this.process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+            this.in = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+            this.out = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+            readUntilPrompt();
+        }
+
+        @Override
+        public String location() {
+            return location;
+        }
+
+        @Override
+        public String rent(String type) throws IOException {
+            Matcher m = RENTED_PLATE.matcher(send("RENT " + type));
+            return m.find() ? m.group(1) : null;
+        }
+
+        @Override
+        public boolean returnVehicle(String plate, int kilometers) throws IOException {
+            return send("RETURN " + plate + " " + kilometers).contains("has been returned");
+        }
+
+        @Override
+        public void list() throws IOException {
+            send("LIST");
+        }
+
+        private synchronized String send(String command) throws IOException {
+            in.write(command);
+            in.write('\n');
+            in.flush();
+            return readUntilPrompt();
+        }
+
+        // The shell prints "> " at the start of a line once the previous command is durable
+        private String readUntilPrompt() throws IOException {
+            StringBuilder response = new StringBuilder();
+            int c;
+            while((c = out.read()) != -1) {
+                response.append((char) c);
+                int n = response.length();
+                if(n >= 2 && response.charAt(n - 1) == ' ' && response.charAt(n - 2) == '>' && (n == 2 || response.charAt(n - 3) == '\n')) {
+                    return response.toString();
+                }
+            }
+            throw new EOFException("Shop " + location + " exited");
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            in.write("EXIT\n");
+            in.flush();
+            try {
+                process.waitFor(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
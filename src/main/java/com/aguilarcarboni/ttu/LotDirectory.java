@@ -0,0 +1,111 @@
+package com.aguilarcarboni.ttu;
+import java.util.Arrays;
+
+// In-memory index of which lot slots hold which vehicle type, tagged with the lot header's modification
+// count it was built at. Anything that changes the occupied slots bumps that count, so a stale directory
+// is detected with one header read and rebuilt; changes made by this JVM are applied in place instead.
+// Slots are only hints: a claim re-reads the record under its lock before taking the car.
+class LotDirectory {
+    private static final int TYPE_CODES = VehicleType.values().length + 1;
+    private static final byte EMPTY = -1;
+
+    private long modCount = -1;
+    // Per type code, a dense stack of slots; types/positions map a slot back to its stack entry
+    private final int[][] slotsByType = new int[TYPE_CODES][];
+    private final int[] sizes = new int[TYPE_CODES];
+    private byte[] types = new byte[0];
+    private int[] positions = new int[0];
+
+    LotDirectory() {
+        for(int i = 0; i < TYPE_CODES; i++) {
+            slotsByType[i] = new int[16];
+        }
+    }
+
+    synchronized boolean isCurrent(long headerModCount) {
+        return modCount == headerModCount;
+    }
+
+    // Starts a rebuild; the caller then adds every occupied slot it scans
+    synchronized void reset(long headerModCount) {
+        modCount = headerModCount;
+        Arrays.fill(sizes, 0);
+        Arrays.fill(types, EMPTY);
+    }
+
+    synchronized void add(int slot, byte typeCode) {
+        if(typeCode < 0 || typeCode >= TYPE_CODES) {
+            return;
+        }
+        ensureSlot(slot);
+        if(types[slot] != EMPTY) {
+            removeSlot(slot);
+        }
+        if(sizes[typeCode] == slotsByType[typeCode].length) {
+            slotsByType[typeCode] = Arrays.copyOf(slotsByType[typeCode], sizes[typeCode] * 2);
+        }
+        positions[slot] = sizes[typeCode];
+        slotsByType[typeCode][sizes[typeCode]++] = slot;
+        types[slot] = typeCode;
+    }
+
+    // Applies a change this JVM made while holding the header lock; previousModCount is the count it
+    // bumped. If the directory was not current before that change it is left stale and rebuilt later.
+    synchronized void added(int[] slots, byte[] typeCodes, long previousModCount) {
+        if(modCount != previousModCount) {
+            return;
+        }
+        for(int i = 0; i < slots.length; i++) {
+            add(slots[i], typeCodes[i]);
+        }
+        modCount = previousModCount + 1;
+    }
+
+    synchronized void removed(int[] slots, int count, long previousModCount) {
+        if(modCount != previousModCount) {
+            return;
+        }
+        for(int i = 0; i < count; i++) {
+            int slot = slots[i];
+            if(slot < types.length && types[slot] != EMPTY) {
+                removeSlot(slot);
+            }
+        }
+        modCount = previousModCount + 1;
+    }
+
+    synchronized int count(byte typeCode) {
+        return sizes[typeCode];
+    }
+
+    // Up to max slots believed to hold the type, most recently checked in first
+    synchronized int[] candidates(byte typeCode, int max) {
+        int size = sizes[typeCode];
+        int n = Math.min(max, size);
+        int[] result = new int[n];
+        for(int i = 0; i < n; i++) {
+            result[i] = slotsByType[typeCode][size - 1 - i];
+        }
+        return result;
+    }
+
+    private void removeSlot(int slot) {
+        byte typeCode = types[slot];
+        int position = positions[slot];
+        int last = slotsByType[typeCode][--sizes[typeCode]];
+        slotsByType[typeCode][position] = last;
+        positions[last] = position;
+        types[slot] = EMPTY;
+    }
+
+    private void ensureSlot(int slot) {
+        if(slot < types.length) {
+            return;
+        }
+        int length = Math.max(slot + 1, types.length * 2);
+        int oldLength = types.length;
+        types = Arrays.copyOf(types, length);
+        Arrays.fill(types, oldLength, length, EMPTY);
+        positions = Arrays.copyOf(positions, length);
+    }
+}
@@ -0,0 +1,941 @@
+package com.aguilarcarboni.ttu;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+// Binary lot storage: a header followed by fixed-size vehicle slots, so checkout and check-in touch one record.
+//
+// Header (32 bytes): magic, format version, record size, slot count, free-list head, live count, modification count.
+// Record (24 bytes): state, type code, plate code, kilometers, version stamp, next free slot.
+// The modification count is bumped under the header lock after every change to the occupied slots is written,
+// so a reader that saw a count also sees every change made before it.
+// A shop takes cars with claim: the records turn CLAIMED, stamped with the shop in place of the free-slot link,
+// and only become free once the shop has logged the cars durably. A shop restarting after a crash releases
+// its claims on cars its log has and puts the others back.
+public class LotFile implements Closeable {
+    public static final String EXTENSION = ".lot";
+    public static final String TEXT_EXTENSION = ".txt";
+
+    static final int MAGIC = 0x4C4F5431; // "LOT1"
+    static final short FORMAT_VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final int RECORD_SIZE = 24;
+    static final int NO_SLOT = -1;
+
+    static final byte FREE = 0;
+    static final byte OCCUPIED = 1;
+    static final byte CLAIMED = 2;
+
+    private static final int H_SLOT_COUNT = 8;
+    private static final int H_FREE_HEAD = 12;
+    private static final int H_LIVE_COUNT = 16;
+    private static final int H_MOD_COUNT = 20;
+
+    private static final int R_STATE = 0;
+    private static final int R_TYPE = 1;
+    private static final int R_PLATE = 4;
+    private static final int R_KILOMETERS = 8;
+    private static final int R_VERSION = 12;
+    private static final int R_NEXT_FREE = 16;
+    // Only in CLAIMED records, which are never on the free list
+    private static final int R_OWNER = 16;
+    private static final long NO_OWNER = 0;
+
+    private static final int SCAN_BATCH_RECORDS = 2048;
+
+    private static final int RECORD_LOCK_STRIPES = 64;
+    // Slots tried from the directory before asking it again
+    private static final int CHECKOUT_CANDIDATES = 8;
+    private static final int CHECKOUT_ATTEMPTS = 4;
+
+    // Lot files shared by every shop in this JVM; FileChannel locks cannot be taken twice by one process
+    private static final Map<String, LotFile> SHARED = new ConcurrentHashMap<>();
+
+    private final String lotPath;
+    private final Path binaryPath;
+    private final boolean readOnly;
+    private final Object openLock = new Object();
+    private volatile FileChannel channel;
+    // FileLocks on byte ranges keep other processes out; these keep the threads of this JVM out of the same ranges
+    private final ReentrantLock headerLock = new ReentrantLock();
+    private long headerLockedAt;
+    private final ReentrantLock[] recordLocks = new ReentrantLock[RECORD_LOCK_STRIPES];
+    private final LotDirectory directory = new LotDirectory();
+
+    private LotFile(String lotPath) {
+        this(lotPath, false);
+    }
+
+    private LotFile(String lotPath, boolean readOnly) {
+        this.lotPath = lotPath;
+        this.binaryPath = Paths.get(lotPath + EXTENSION);
+        this.readOnly = readOnly;
+        for(int i = 0; i < RECORD_LOCK_STRIPES; i++) {
+            recordLocks[i] = new ReentrantLock();
+        }
+    }
+
+    // Long-lived handle for shops; lotPath is the lot file path without extension
+    public static LotFile shared(String lotPath) {
+        return SHARED.computeIfAbsent(lotPath, LotFile::new);
+    }
+
+    // Private handle for one-off tools; close it when done
+    public static LotFile open(String lotPath) {
+        return new LotFile(lotPath);
+    }
+
+    // Private handle for reports run next to live shops: only the binary file is read, never created or
+    // converted from text, and the only lock taken is a shared one while opening. Changes fail.
+    public static LotFile openReadOnly(String lotPath) {
+        return new LotFile(lotPath, true);
+    }
+
+    public String getLotPath() {
+        return lotPath;
+    }
+
+    public boolean exists() {
+        return Files.exists(binaryPath) || Files.exists(Paths.get(lotPath + TEXT_EXTENSION));
+    }
+
+    // Lock-free read of every occupied slot; each record is validated on its own, so concurrent checkouts are safe
+    public List<Vehicle> readAll() {
+        List<Vehicle> vehicles = new ArrayList<>();
+        try {
+            if(!ensureOpen(false)) {
+                return vehicles;
+            }
+            scanRecords((slot, record) -> {
+                if(record.get(R_STATE) == OCCUPIED) {
+                    vehicles.add(toVehicle(record));
+                }
+                return false;
+            });
+        } catch(IOException e) {
+            System.err.println("Error reading lot file (" + binaryPath + "): " + e.getMessage());
+        }
+        return vehicles;
+    }
+
+    // The parked vehicles as table rows, without building a Vehicle per car
+    public VehicleTable readTable() {
+        VehicleTable vehicles = new VehicleTable();
+        try {
+            if(!ensureOpen(false)) {
+                return vehicles;
+            }
+            scanRecords((slot, record) -> {
+                if(record.get(R_STATE) == OCCUPIED) {
+                    vehicles.put(record.getInt(R_PLATE), record.get(R_TYPE), record.getInt(R_KILOMETERS), (byte) 0);
+                }
+                return false;
+            });
+        } catch(IOException e) {
+            System.err.println("Error reading lot file (" + binaryPath + "): " + e.getMessage());
+        }
+        return vehicles;
+    }
+
+    public int count() {
+        try {
+            if(!ensureOpen(false)) {
+                return 0;
+            }
+            return readHeaderInt(H_LIVE_COUNT);
+        } catch(IOException e) {
+            System.err.println("Error reading lot file (" + binaryPath + "): " + e.getMessage());
+            return 0;
+        }
+    }
+
+    // Vehicles of the given type in the lot, answered from the directory; only reads the records when
+    // the lot has changed outside this JVM since they were last read
+    public int available(String vehicleType) {
+        byte typeCode = VehicleType.codeOf(vehicleType);
+        try {
+            if(!ensureOpen(false)) {
+                return 0;
+            }
+            synchronized(directory) {
+                refreshDirectory();
+                return directory.count(typeCode);
+            }
+        } catch(IOException e) {
+            System.err.println("Error reading lot file (" + binaryPath + "): " + e.getMessage());
+            return 0;
+        }
+    }
+
+    // Atomically takes one vehicle of the given type out of the lot, or returns null if there is none.
+    // Candidate slots come from the directory, so a lot without the type is ruled out by one header read.
+    // Only the chosen record is locked, so shops sharing a lot can check out different cars at once.
+    public Vehicle checkout(String vehicleType) {
+        byte typeCode = VehicleType.codeOf(vehicleType);
+        RecordMatcher matcher = record -> record.get(R_TYPE) == typeCode;
+        try {
+            if(!ensureOpen(false)) {
+                return null;
+            }
+            for(int attempt = 0; attempt < CHECKOUT_ATTEMPTS; attempt++) {
+                int[] candidates;
+                synchronized(directory) {
+                    refreshDirectory();
+                    candidates = directory.candidates(typeCode, CHECKOUT_CANDIDATES);
+                }
+                if(candidates.length == 0) {
+                    return null;
+                }
+                Vehicle claimed = claimAny(candidates, matcher);
+                if(claimed != null) {
+                    return claimed;
+                }
+            }
+            // Every candidate kept going to other shops; fall back to a full scan
+            return claimFirst(matcher);
+        } catch(IOException e) {
+            System.err.println("Error updating lot file (" + binaryPath + "): " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Takes up to max vehicles of the type out of the lot. Records are claimed one lock at a time as in
+    // checkout, and each round of claims goes back on the free list under a single header lock.
+    public List<Vehicle> checkoutAll(String vehicleType, int max) {
+        byte typeCode = VehicleType.codeOf(vehicleType);
+        RecordMatcher matcher = record -> record.get(R_TYPE) == typeCode;
+        List<Vehicle> claimed = new ArrayList<>();
+        try {
+            if(max <= 0 || !ensureOpen(false)) {
+                return claimed;
+            }
+            int[] slots = new int[max];
+            for(int attempt = 0; attempt < CHECKOUT_ATTEMPTS && claimed.size() < max; attempt++) {
+                int[] candidates;
+                synchronized(directory) {
+                    refreshDirectory();
+                    candidates = directory.candidates(typeCode, max - claimed.size() + CHECKOUT_CANDIDATES);
+                }
+                if(candidates.length == 0) {
+                    break;
+                }
+                int claimedThisRound = 0;
+                for(int i = 0; i < candidates.length && claimed.size() < max; i++) {
+                    Vehicle vehicle = claimRecord(candidates[i], matcher, false, NO_OWNER);
+                    if(vehicle != null) {
+                        slots[claimedThisRound++] = candidates[i];
+                        claimed.add(vehicle);
+                    }
+                }
+                if(claimedThisRound > 0) {
+                    releaseSlots(slots, claimedThisRound);
+                }
+            }
+        } catch(IOException e) {
+            System.err.println("Error updating lot file (" + binaryPath + "): " + e.getMessage());
+        }
+        return claimed;
+    }
+
+    // Cars taken out of the lot but not yet free to reuse: see claim
+    public static final class Claim {
+        public final List<Vehicle> vehicles = new ArrayList<>();
+        private final LotFile lot;
+        private final long owner;
+        private int[] slots;
+        private int count;
+
+        private Claim(LotFile lot, long owner, int capacity) {
+            this.lot = lot;
+            this.owner = owner;
+            this.slots = new int[Math.max(1, capacity)];
+        }
+
+        private void add(int slot, Vehicle vehicle) {
+            if(count == slots.length) {
+                slots = Arrays.copyOf(slots, count * 2);
+            }
+            slots[count++] = slot;
+            vehicles.add(vehicle);
+        }
+
+        public boolean isEmpty() {
+            return count == 0;
+        }
+
+        // Call once the shop's log records for these cars are durable
+        public void release() {
+            lot.release(this);
+        }
+
+        // Puts the cars back in the lot
+        public void cancel() {
+            lot.cancel(this);
+        }
+    }
+
+    // A stamp for the shop named, kept in the records it claims
+    static long ownerStamp(String shop) {
+        long stamp = UUID.nameUUIDFromBytes(shop.getBytes(StandardCharsets.UTF_8)).getMostSignificantBits();
+        return stamp == NO_OWNER ? 1 : stamp;
+    }
+
+    // Takes up to max vehicles of the type out of the lot as checkoutAll does, but leaves their records
+    // CLAIMED by owner until the claim is released or cancelled. Claimed cars no longer count as parked.
+    public Claim claim(String vehicleType, int max, long owner) {
+        byte typeCode = VehicleType.codeOf(vehicleType);
+        RecordMatcher matcher = record -> record.get(R_TYPE) == typeCode;
+        Claim claim = new Claim(this, owner, max);
+        try {
+            if(max <= 0 || !ensureOpen(false)) {
+                return claim;
+            }
+            for(int attempt = 0; attempt < CHECKOUT_ATTEMPTS && claim.count < max; attempt++) {
+                int[] candidates;
+                synchronized(directory) {
+                    refreshDirectory();
+                    candidates = directory.candidates(typeCode, max - claim.count + CHECKOUT_CANDIDATES);
+                }
+                if(candidates.length == 0) {
+                    break;
+                }
+                int before = claim.count;
+                for(int i = 0; i < candidates.length && claim.count < max; i++) {
+                    Vehicle vehicle = claimRecord(candidates[i], matcher, false, owner);
+                    if(vehicle != null) {
+                        claim.add(candidates[i], vehicle);
+                    }
+                }
+                if(claim.count > before) {
+                    unlistSlots(Arrays.copyOfRange(claim.slots, before, claim.count));
+                }
+            }
+            if(claim.count == 0 && available(vehicleType) > 0) {
+                // Every candidate kept going to other shops; wait for one car as checkout does
+                List<Integer> candidates = new ArrayList<>();
+                scanRecords((slot, record) -> {
+                    if(record.get(R_STATE) == OCCUPIED && matcher.matches(record)) {
+                        candidates.add(slot);
+                    }
+                    return false;
+                });
+                for(int i = 0; i < candidates.size() && claim.count == 0; i++) {
+                    Vehicle vehicle = claimRecord(candidates.get(i), matcher, true, owner);
+                    if(vehicle != null) {
+                        claim.add(candidates.get(i), vehicle);
+                        unlistSlots(new int[]{candidates.get(i)});
+                    }
+                }
+            }
+        } catch(IOException e) {
+            System.err.println("Error updating lot file (" + binaryPath + "): " + e.getMessage());
+        }
+        return claim;
+    }
+
+    // Finds the records owner still has CLAIMED: the ones whose car the shop holds are released, the rest are
+    // put back in the lot and returned
+    public List<Vehicle> resolveClaims(long owner, Predicate<String> held) {
+        Claim kept = new Claim(this, owner, 16);
+        Claim lost = new Claim(this, owner, 16);
+        try {
+            if(!ensureOpen(false)) {
+                return lost.vehicles;
+            }
+            scanRecords((slot, record) -> {
+                if(record.get(R_STATE) == CLAIMED && record.getLong(R_OWNER) == owner) {
+                    Vehicle vehicle = toVehicle(record);
+                    (held.test(vehicle.getLicensePlate()) ? kept : lost).add(slot, vehicle);
+                }
+                return false;
+            });
+        } catch(IOException e) {
+            System.err.println("Error reading lot file (" + binaryPath + "): " + e.getMessage());
+        }
+        release(kept);
+        cancel(lost);
+        return lost.vehicles;
+    }
+
+    public void checkin(Vehicle vehicle) {
+        checkinAll(Collections.singletonList(vehicle));
+    }
+
+    // Reserves slots under one short header lock, fills each slot under its own record lock, then bumps the
+    // modification count under a second short header lock. Returns false if the lot could not be written.
+    public boolean checkinAll(Collection<Vehicle> vehicles) {
+        if(vehicles.isEmpty()) {
+            return true;
+        }
+        try {
+            ensureOpen(true);
+            int[] slots = new int[vehicles.size()];
+            byte[] typeCodes = new byte[slots.length];
+            FileLock headerFileLock = lockHeader();
+            try {
+                for(int i = 0; i < slots.length; i++) {
+                    slots[i] = allocateSlot();
+                }
+                addToHeaderInt(H_LIVE_COUNT, slots.length);
+            } finally {
+                unlockHeader(headerFileLock);
+            }
+            int i = 0;
+            for(Vehicle v : vehicles) {
+                int slot = slots[i];
+                typeCodes[i++] = VehicleType.codeOf(v.getType());
+                ReentrantLock stripe = recordStripe(slot);
+                stripe.lock();
+                try (FileLock lock = lockRecord(slot)) {
+                    writeRecord(slot, v);
+                } finally {
+                    stripe.unlock();
+                }
+            }
+            // Published only once the records are written, so a directory built from this count sees them
+            headerFileLock = lockHeader();
+            try {
+                directory.added(slots, typeCodes, bumpModCount());
+            } finally {
+                unlockHeader(headerFileLock);
+            }
+            return true;
+        } catch(IOException e) {
+            System.err.println("Error updating lot file (" + binaryPath + "): " + e.getMessage());
+            return false;
+        }
+    }
+
+    // A full scan; meant for recovery checks, not the command path
+    public boolean contains(String plate) {
+        int plateCode = PlateCodec.encode(plate);
+        if(plateCode == PlateCodec.INVALID) {
+            return false;
+        }
+        boolean[] found = new boolean[1];
+        try {
+            if(!ensureOpen(false)) {
+                return false;
+            }
+            scanRecords((slot, record) -> {
+                found[0] = record.get(R_STATE) == OCCUPIED && record.getInt(R_PLATE) == plateCode;
+                return found[0];
+            });
+        } catch(IOException e) {
+            System.err.println("Error reading lot file (" + binaryPath + "): " + e.getMessage());
+        }
+        return found[0];
+    }
+
+    public boolean remove(String plate) {
+        int plateCode = PlateCodec.encode(plate);
+        if(plateCode == PlateCodec.INVALID) {
+            return false;
+        }
+        try {
+            if(!ensureOpen(false)) {
+                return false;
+            }
+            return claimFirst(record -> record.getInt(R_PLATE) == plateCode) != null;
+        } catch(IOException e) {
+            System.err.println("Error updating lot file (" + binaryPath + "): " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Writes the lot as "plate,type,km" lines, the format LotManager used before the binary store
+    public void exportText(String textPath) throws IOException {
+        List<Vehicle> vehicles = readAll();
+        try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(textPath)))) {
+            for(Vehicle v : vehicles) {
+                writer.println(v.getLicensePlate() + "," + v.getType() + "," + v.getKilometers());
+            }
+        }
+    }
+
+    // Appends every valid vehicle line of a text lot file; returns the number imported
+    public int importText(String textPath) throws IOException {
+        List<Vehicle> vehicles = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(textPath))) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                Vehicle v = parseTextLine(line);
+                if(v != null) {
+                    vehicles.add(v);
+                }
+            }
+        }
+        checkinAll(vehicles);
+        return vehicles.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized(openLock) {
+            if(channel != null) {
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+
+    static Vehicle parseTextLine(String line) {
+        String[] parts = line.split(",");
+        if(parts.length < 3) {
+            System.err.println("Invalid line in lot file: " + line);
+            return null;
+        }
+        String plate = parts[0].trim();
+        String type = parts[1].trim();
+        if(PlateCodec.encode(plate) == PlateCodec.INVALID || VehicleType.parse(type) == null) {
+            System.err.println("Invalid vehicle in lot file: " + line);
+            return null;
+        }
+        return new Vehicle(plate, type, Integer.parseInt(parts[2].trim()));
+    }
+
+    // Opens the binary file, converting a legacy text lot the first time it is seen
+    private boolean ensureOpen(boolean create) throws IOException {
+        if(channel != null) {
+            return true;
+        }
+        synchronized(openLock) {
+            if(channel != null) {
+                return true;
+            }
+            Path textPath = Paths.get(lotPath + TEXT_EXTENSION);
+            if(readOnly) {
+                return openForReading();
+            }
+            if(!create && !Files.exists(binaryPath) && !Files.exists(textPath)) {
+                return false;
+            }
+            FileChannel opened = FileChannel.open(binaryPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try (FileLock lock = opened.lock()) {
+                channel = opened;
+                if(opened.size() < HEADER_SIZE) {
+                    initializeHeader();
+                    if(Files.exists(textPath)) {
+                        convertLegacyText(textPath);
+                    }
+                } else {
+                    validateHeader();
+                }
+            } catch(IOException e) {
+                channel = null;
+                opened.close();
+                throw e;
+            }
+            return true;
+        }
+    }
+
+    // The shared lock waits out a shop that is still initializing or converting the file. A file that has
+    // no header even then holds no cars.
+    private boolean openForReading() throws IOException {
+        FileChannel opened;
+        try {
+            opened = FileChannel.open(binaryPath, StandardOpenOption.READ);
+        } catch(NoSuchFileException e) {
+            return false;
+        }
+        boolean hasHeader;
+        try (FileLock lock = opened.lock(0L, Long.MAX_VALUE, true)) {
+            hasHeader = opened.size() >= HEADER_SIZE;
+            if(hasHeader) {
+                channel = opened;
+                validateHeader();
+            }
+        } catch(IOException e) {
+            channel = null;
+            opened.close();
+            throw e;
+        }
+        if(!hasHeader) {
+            opened.close();
+        }
+        return hasHeader;
+    }
+
+    private void checkWritable() throws IOException {
+        if(readOnly) {
+            throw new IOException("Lot file " + binaryPath + " is open read-only");
+        }
+    }
+
+    // Rebuilds the directory from a full scan if the lot changed in a way this JVM did not apply to it.
+    // Callers hold the directory's monitor.
+    private void refreshDirectory() throws IOException {
+        long modCount = readFully(H_MOD_COUNT, 8).getLong(0);
+        if(directory.isCurrent(modCount)) {
+            return;
+        }
+        directory.reset(modCount);
+        scanRecords((slot, record) -> {
+            if(record.get(R_STATE) == OCCUPIED) {
+                directory.add(slot, record.get(R_TYPE));
+            }
+            return false;
+        });
+    }
+
+    private void convertLegacyText(Path textPath) throws IOException {
+        int imported = 0;
+        try (BufferedReader reader = Files.newBufferedReader(textPath)) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                Vehicle v = parseTextLine(line);
+                if(v != null) {
+                    writeRecord(allocateSlot(), v);
+                    imported++;
+                }
+            }
+        }
+        addToHeaderInt(H_LIVE_COUNT, imported);
+        bumpModCount();
+        channel.force(false);
+        Files.move(textPath, textPath.resolveSibling(textPath.getFileName() + ".migrated"), StandardCopyOption.REPLACE_EXISTING);
+        System.out.println("Converted text lot " + textPath + " to " + binaryPath + " (" + imported + " vehicles)");
+    }
+
+    private void initializeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(0, MAGIC);
+        header.putShort(4, FORMAT_VERSION);
+        header.putShort(6, (short) RECORD_SIZE);
+        header.putInt(H_SLOT_COUNT, 0);
+        header.putInt(H_FREE_HEAD, NO_SLOT);
+        header.putInt(H_LIVE_COUNT, 0);
+        header.putLong(H_MOD_COUNT, 0L);
+        writeFully(header, 0);
+    }
+
+    private void validateHeader() throws IOException {
+        ByteBuffer header = readFully(0, HEADER_SIZE);
+        if(header.getInt(0) != MAGIC || header.getShort(6) != RECORD_SIZE) {
+            throw new IOException("Not a lot file: " + binaryPath);
+        }
+        if(header.getShort(4) != FORMAT_VERSION) {
+            throw new IOException("Unsupported lot file version " + header.getShort(4) + " in " + binaryPath);
+        }
+    }
+
+    private int allocateSlot() throws IOException {
+        int freeHead = readHeaderInt(H_FREE_HEAD);
+        if(freeHead != NO_SLOT) {
+            ByteBuffer record = readRecord(freeHead);
+            writeHeaderInt(H_FREE_HEAD, record.getInt(R_NEXT_FREE));
+            return freeHead;
+        }
+        int slotCount = readHeaderInt(H_SLOT_COUNT);
+        writeHeaderInt(H_SLOT_COUNT, slotCount + 1);
+        return slotCount;
+    }
+
+    private interface RecordMatcher {
+        boolean matches(ByteBuffer record);
+    }
+
+    // Finds occupied records the matcher accepts and claims the first one whose record lock can be taken.
+    // A record locked by another shop is skipped; only if every candidate was busy does it wait for one.
+    private Vehicle claimFirst(RecordMatcher matcher) throws IOException {
+        List<Integer> candidates = new ArrayList<>();
+        scanRecords((slot, record) -> {
+            if(record.get(R_STATE) == OCCUPIED && matcher.matches(record)) {
+                candidates.add(slot);
+            }
+            return false;
+        });
+        return claimAny(candidates.stream().mapToInt(Integer::intValue).toArray(), matcher);
+    }
+
+    private Vehicle claimAny(int[] candidates, RecordMatcher matcher) throws IOException {
+        for(int slot : candidates) {
+            Vehicle claimed = tryClaim(slot, matcher, false);
+            if(claimed != null) {
+                return claimed;
+            }
+        }
+        for(int slot : candidates) {
+            Vehicle claimed = tryClaim(slot, matcher, true);
+            if(claimed != null) {
+                return claimed;
+            }
+        }
+        return null;
+    }
+
+    private Vehicle tryClaim(int slot, RecordMatcher matcher, boolean wait) throws IOException {
+        Vehicle claimed = claimRecord(slot, matcher, wait, NO_OWNER);
+        if(claimed != null) {
+            releaseSlots(new int[]{slot}, 1);
+        }
+        return claimed;
+    }
+
+    // Frees the record if it still matches, or marks it CLAIMED when there is an owner; the caller then puts
+    // the slot back on the free list, or takes it out of the directory
+    private Vehicle claimRecord(int slot, RecordMatcher matcher, boolean wait, long owner) throws IOException {
+        checkWritable();
+        ReentrantLock stripe = recordStripe(slot);
+        if(wait) {
+            stripe.lock();
+        } else if(!stripe.tryLock()) {
+            return null;
+        }
+        Vehicle claimed = null;
+        try (FileLock lock = wait ? lockRecord(slot) : channel.tryLock(recordOffset(slot), RECORD_SIZE, false)) {
+            if(lock == null) {
+                return null;
+            }
+            // Re-read under the lock: the scan may have raced with another checkout of this slot
+            ByteBuffer record = readRecord(slot);
+            if(record.get(R_STATE) != OCCUPIED || !matcher.matches(record)) {
+                return null;
+            }
+            claimed = toVehicle(record);
+            record.put(R_STATE, owner == NO_OWNER ? FREE : CLAIMED);
+            record.putInt(R_VERSION, record.getInt(R_VERSION) + 1);
+            if(owner != NO_OWNER) {
+                record.putLong(R_OWNER, owner);
+            }
+            writeFully(record, recordOffset(slot));
+        } finally {
+            stripe.unlock();
+        }
+        return claimed;
+    }
+
+    // Pushes already-freed slots onto the free list
+    private void releaseSlots(int[] slots, int count) throws IOException {
+        FileLock headerFileLock = lockHeader();
+        try {
+            int head = readHeaderInt(H_FREE_HEAD);
+            ByteBuffer next = ByteBuffer.allocate(4);
+            for(int i = 0; i < count; i++) {
+                next.putInt(0, head);
+                writeFully(next, recordOffset(slots[i]) + R_NEXT_FREE);
+                head = slots[i];
+            }
+            writeHeaderInt(H_FREE_HEAD, head);
+            addToHeaderInt(H_LIVE_COUNT, -count);
+            directory.removed(slots, count, bumpModCount());
+        } finally {
+            unlockHeader(headerFileLock);
+        }
+    }
+
+    // Claimed records leave the parked count and the directory at once; they reach the free list on release
+    private void unlistSlots(int[] slots) throws IOException {
+        FileLock headerFileLock = lockHeader();
+        try {
+            addToHeaderInt(H_LIVE_COUNT, -slots.length);
+            directory.removed(slots, slots.length, bumpModCount());
+        } finally {
+            unlockHeader(headerFileLock);
+        }
+    }
+
+    private void release(Claim claim) {
+        if(claim.count == 0) {
+            return;
+        }
+        try {
+            FileLock headerFileLock = lockHeader();
+            try {
+                int head = readHeaderInt(H_FREE_HEAD);
+                ByteBuffer state = ByteBuffer.allocate(1);
+                state.put(0, FREE);
+                ByteBuffer next = ByteBuffer.allocate(8);
+                for(int i = 0; i < claim.count; i++) {
+                    writeFully(state, recordOffset(claim.slots[i]) + R_STATE);
+                    next.putInt(0, head);
+                    next.putInt(4, 0);
+                    writeFully(next, recordOffset(claim.slots[i]) + R_NEXT_FREE);
+                    head = claim.slots[i];
+                }
+                writeHeaderInt(H_FREE_HEAD, head);
+            } finally {
+                unlockHeader(headerFileLock);
+            }
+        } catch(IOException e) {
+            System.err.println("Error updating lot file (" + binaryPath + "): " + e.getMessage());
+        }
+        claim.count = 0;
+    }
+
+    // The records still hold the cars, so they only need to be occupied and listed again
+    private void cancel(Claim claim) {
+        if(claim.count == 0) {
+            return;
+        }
+        try {
+            byte[] typeCodes = new byte[claim.count];
+            for(int i = 0; i < claim.count; i++) {
+                int slot = claim.slots[i];
+                ReentrantLock stripe = recordStripe(slot);
+                stripe.lock();
+                try (FileLock lock = lockRecord(slot)) {
+                    ByteBuffer record = readRecord(slot);
+                    typeCodes[i] = record.get(R_TYPE);
+                    record.put(R_STATE, OCCUPIED);
+                    record.putInt(R_VERSION, record.getInt(R_VERSION) + 1);
+                    record.putInt(R_NEXT_FREE, NO_SLOT);
+                    record.putInt(R_NEXT_FREE + 4, 0);
+                    writeFully(record, recordOffset(slot));
+                } finally {
+                    stripe.unlock();
+                }
+            }
+            int[] slots = Arrays.copyOf(claim.slots, claim.count);
+            FileLock headerFileLock = lockHeader();
+            try {
+                addToHeaderInt(H_LIVE_COUNT, slots.length);
+                directory.added(slots, typeCodes, bumpModCount());
+            } finally {
+                unlockHeader(headerFileLock);
+            }
+        } catch(IOException e) {
+            System.err.println("Error updating lot file (" + binaryPath + "): " + e.getMessage());
+        }
+        claim.count = 0;
+    }
+
+    // The header is the one lock every checkout and checkin of a lot goes through, so its wait and hold
+    // times are recorded; headerLockedAt is only touched while headerLock is held
+    private FileLock lockHeader() throws IOException {
+        checkWritable();
+        long start = System.nanoTime();
+        headerLock.lock();
+        try {
+            FileLock lock = channel.lock(0L, HEADER_SIZE, false);
+            headerLockedAt = ShopMetrics.shared().recordSince(ShopMetrics.Timer.LOT_LOCK_WAIT, start);
+            return lock;
+        } catch(IOException e) {
+            headerLock.unlock();
+            throw e;
+        }
+    }
+
+    private void unlockHeader(FileLock lock) throws IOException {
+        try {
+            lock.release();
+        } finally {
+            ShopMetrics.shared().recordSince(ShopMetrics.Timer.LOT_LOCK_HOLD, headerLockedAt);
+            headerLock.unlock();
+        }
+    }
+
+    private ReentrantLock recordStripe(int slot) {
+        return recordLocks[slot % RECORD_LOCK_STRIPES];
+    }
+
+    private FileLock lockRecord(int slot) throws IOException {
+        checkWritable();
+        return channel.lock(recordOffset(slot), RECORD_SIZE, false);
+    }
+
+    private void writeRecord(int slot, Vehicle vehicle) throws IOException {
+        long offset = recordOffset(slot);
+        int version = 0;
+        if(offset + RECORD_SIZE <= channel.size()) {
+            version = readRecord(slot).getInt(R_VERSION) + 1;
+        }
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        record.put(R_STATE, OCCUPIED);
+        record.put(R_TYPE, VehicleType.codeOf(vehicle.getType()));
+        record.putInt(R_PLATE, PlateCodec.encode(vehicle.getLicensePlate()));
+        record.putInt(R_KILOMETERS, vehicle.getKilometers());
+        record.putInt(R_VERSION, version);
+        record.putInt(R_NEXT_FREE, NO_SLOT);
+        writeFully(record, offset);
+    }
+
+    private interface RecordVisitor {
+        // Returns true to stop the scan
+        boolean visit(int slot, ByteBuffer record);
+    }
+
+    private void scanRecords(RecordVisitor visitor) throws IOException {
+        // Slots reserved by a concurrent check-in may not be written yet
+        int slotCount = (int) Math.min(readHeaderInt(H_SLOT_COUNT), (channel.size() - HEADER_SIZE) / RECORD_SIZE);
+        ByteBuffer batch = ByteBuffer.allocate(SCAN_BATCH_RECORDS * RECORD_SIZE);
+        for(int first = 0; first < slotCount; first += SCAN_BATCH_RECORDS) {
+            int records = Math.min(SCAN_BATCH_RECORDS, slotCount - first);
+            batch.clear().limit(records * RECORD_SIZE);
+            readFully(batch, recordOffset(first));
+            for(int i = 0; i < records; i++) {
+                ByteBuffer record = batch.slice(i * RECORD_SIZE, RECORD_SIZE);
+                if(visitor.visit(first + i, record)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private static Vehicle toVehicle(ByteBuffer record) {
+        VehicleType type = VehicleType.fromCode(record.get(R_TYPE));
+        return new Vehicle(PlateCodec.decode(record.getInt(R_PLATE)), type == null ? "UNKNOWN" : type.name(), record.getInt(R_KILOMETERS));
+    }
+
+    private static long recordOffset(int slot) {
+        return HEADER_SIZE + (long) slot * RECORD_SIZE;
+    }
+
+    private ByteBuffer readRecord(int slot) throws IOException {
+        return readFully(recordOffset(slot), RECORD_SIZE);
+    }
+
+    private int readHeaderInt(int offset) throws IOException {
+        return readFully(offset, 4).getInt(0);
+    }
+
+    private void writeHeaderInt(int offset, int value) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        buffer.putInt(0, value);
+        writeFully(buffer, offset);
+    }
+
+    private void addToHeaderInt(int offset, int delta) throws IOException {
+        writeHeaderInt(offset, readHeaderInt(offset) + delta);
+    }
+
+    // Returns the count before the bump
+    private long bumpModCount() throws IOException {
+        ByteBuffer buffer = readFully(H_MOD_COUNT, 8);
+        long previous = buffer.getLong(0);
+        buffer.putLong(0, previous + 1);
+        writeFully(buffer, H_MOD_COUNT);
+        return previous;
+    }
+
+    private ByteBuffer readFully(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        readFully(buffer, position);
+        return buffer;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        int start = buffer.position();
+        while(buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position() - start);
+            if(n < 0) {
+                throw new EOFException("Truncated lot file " + binaryPath);
+            }
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        buffer.rewind();
+        while(buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+}
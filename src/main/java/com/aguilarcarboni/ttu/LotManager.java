@@ -6,8 +6,10 @@ public class LotManager {
     
     private static final String OUTPUTS_DIRECTORY = "outputs";
     private static final String REGISTRY_DIRECTORY = OUTPUTS_DIRECTORY + File.separator + "registry";
-    private static final String PLATE_REGISTRY_PATH = REGISTRY_DIRECTORY + File.separator + "plates_registry.txt";
+    private static final String PLATE_REGISTRY_PATH = REGISTRY_DIRECTORY + File.separator + "plates_registry.bin";
+    private static final String LEGACY_PLATE_REGISTRY_PATH = REGISTRY_DIRECTORY + File.separator + "plates_registry.txt";
     private static final String LOTS_DIRECTORY = OUTPUTS_DIRECTORY + File.separator + "lots";
+    private static final Random PLATE_RNG = new Random();
 
     public static void main(String[] args) {
         ensureOutputsDirectoryExists();
@@ -15,15 +17,23 @@ public class LotManager {
         ensureRegistryDirectoryExists();
         Map<String, String> params = parseCommandLineArgs(args);
         String targetLot = validateLotName(params);
-        String lotFilePath = getLotFilePath(targetLot);
-        List<Vehicle> currentVehicles = loadLotVehicles(lotFilePath);
-        
-        processVehicleAdditions(params, currentVehicles);
-        handleVehicleRemoval(params, targetLot, currentVehicles);
-        
-        persistLotVehicles(lotFilePath, currentVehicles);
-        System.out.println("Lot " + targetLot + " has been updated successfully!");
-        System.out.println("Current vehicle count: " + currentVehicles.size());
+        String lotPath = getLotPath(targetLot);
+
+        try (LotFile lot = LotFile.open(lotPath)) {
+            handleTextImport(params, targetLot, lot);
+
+            List<Vehicle> newVehicles = new ArrayList<>();
+            processVehicleAdditions(params, newVehicles);
+            lot.checkinAll(newVehicles);
+            handleVehicleRemoval(params, targetLot, lot);
+
+            handleTextExport(params, lotPath, lot);
+            System.out.println("Lot " + targetLot + " has been updated successfully!");
+            System.out.println("Current vehicle count: " + lot.count());
+        } catch(IOException e) {
+            System.err.println("Error updating lot file: " + e.getMessage());
+            System.exit(1);
+        }
     }
     
     private static void ensureOutputsDirectoryExists() {
@@ -47,8 +57,9 @@ public class LotManager {
         }
     }
 
-    private static String getLotFilePath(String lotName) {
-        return LOTS_DIRECTORY + File.separator + lotName + ".txt";
+    // Lot files live at <path>.lot; the text format is only used for import and export
+    private static String getLotPath(String lotName) {
+        return LOTS_DIRECTORY + File.separator + lotName;
     }
     
     private static String validateLotName(Map<String, String> params) {
@@ -60,11 +71,11 @@ public class LotManager {
         return targetLot;
     }
     
-    private static void handleVehicleRemoval(Map<String, String> params, String targetLot, List<Vehicle> vehicles) {
+    private static void handleVehicleRemoval(Map<String, String> params, String targetLot, LotFile lot) {
         if(!params.containsKey("--remove-vehicle")) { return; }
         
         String targetPlate = params.get("--remove-vehicle");
-        boolean wasRemoved = vehicles.removeIf(v -> v.getLicensePlate().equalsIgnoreCase(targetPlate));
+        boolean wasRemoved = lot.remove(targetPlate);
         
         if(!wasRemoved){
             System.out.println("Vehicle with license " + targetPlate + " was not found in lot " + targetLot + " (possibly assigned to a shop or is in use).");
@@ -73,52 +84,65 @@ public class LotManager {
         }
     }
     
-    private static void processVehicleAdditions(Map<String, String> params, List<Vehicle> vehicles) {
-        addVehiclesByType(params, vehicles, "--add-sedan", "SEDAN");
-        addVehiclesByType(params, vehicles, "--add-suv", "SUV");
-        addVehiclesByType(params, vehicles, "--add-van", "VAN");
+    private static void handleTextImport(Map<String, String> params, String targetLot, LotFile lot) throws IOException {
+        if(!params.containsKey("--import-text")) { return; }
+
+        String textPath = params.get("--import-text");
+        int imported = lot.importText(textPath);
+        System.out.println("Imported " + imported + " vehicles from " + textPath + " into lot " + targetLot + ".");
+    }
+
+    private static void handleTextExport(Map<String, String> params, String lotPath, LotFile lot) throws IOException {
+        if(!params.containsKey("--export-text")) { return; }
+
+        String textPath = params.get("--export-text");
+        if(textPath.isEmpty()) {
+            textPath = lotPath + LotFile.TEXT_EXTENSION;
+        }
+        lot.exportText(textPath);
+        System.out.println("Exported lot to " + textPath + ".");
     }
     
-    private static void addVehiclesByType(Map<String, String> params, List<Vehicle> vehicles, String paramKey, String vehicleType) {
-        if(!params.containsKey(paramKey)) {
+    private static void processVehicleAdditions(Map<String, String> params, List<Vehicle> vehicles) {
+        int requested = requestedCount(params, "--add-sedan") + requestedCount(params, "--add-suv") + requestedCount(params, "--add-van");
+        if(requested == 0) {
             return;
         }
-        
-        int count = Integer.parseInt(params.get(paramKey));
-        for(int i = 0; i < count; i++){
-            vehicles.add(new Vehicle(generateNewPlate(), vehicleType, 0));
+
+        // Reserve the whole batch in the mapped bitmap, then flush it to disk once
+        long start = System.nanoTime();
+        int provisioned = 0;
+        try (PlateRegistry registry = PlateRegistry.open(PLATE_REGISTRY_PATH, LEGACY_PLATE_REGISTRY_PATH)) {
+            provisioned += addVehiclesByType(params, vehicles, "--add-sedan", "SEDAN", registry);
+            provisioned += addVehiclesByType(params, vehicles, "--add-suv", "SUV", registry);
+            provisioned += addVehiclesByType(params, vehicles, "--add-van", "VAN", registry);
+        } catch(IOException e) {
+            System.err.println("Error updating plate registry: " + e.getMessage());
+            System.exit(1);
         }
+        reportProvisioningRate(provisioned, System.nanoTime() - start);
     }
-    
-    private static String generateNewPlate() {
-        Set<String> existingPlates = loadPlateRegistry();
-        String newPlate = generateRandomPlate();
-        
-        while(existingPlates.contains(newPlate)) {
-            newPlate = generateRandomPlate();
+
+    private static int requestedCount(Map<String, String> params, String paramKey) {
+        if(!params.containsKey(paramKey)) {
+            return 0;
         }
-        
-        existingPlates.add(newPlate);
-        savePlateRegistry(existingPlates);
-        return newPlate;
+        return Integer.parseInt(params.get(paramKey));
     }
     
-    private static String generateRandomPlate() {
-        StringBuilder plateBuilder = new StringBuilder();
-        Random rng = new Random();
-        
-        // Generate letters
-        for(int i = 0; i < 3; i++){
-            plateBuilder.append((char) ('A' + rng.nextInt(26)));
-        }
-        plateBuilder.append("-");
-        
-        // Generate numbers
-        for(int i = 0; i < 3; i++){
-            plateBuilder.append(rng.nextInt(10));
+    private static int addVehiclesByType(Map<String, String> params, List<Vehicle> vehicles, String paramKey, String vehicleType,
+                                         PlateRegistry registry) throws IOException {
+        int count = requestedCount(params, paramKey);
+        for(int i = 0; i < count; i++){
+            vehicles.add(new Vehicle(registry.reserveRandom(PLATE_RNG), vehicleType, 0));
         }
-        
-        return plateBuilder.toString();
+        return count;
+    }
+
+    private static void reportProvisioningRate(int plateCount, long elapsedNanos) {
+        double seconds = elapsedNanos / 1_000_000_000.0;
+        double rate = seconds > 0 ? plateCount / seconds : plateCount;
+        System.out.println("Provisioned " + plateCount + " plates in " + String.format("%.1f", elapsedNanos / 1_000_000.0) + " ms (" + String.format("%.0f", rate) + " plates/s)");
     }
     
     private static Map<String, String> parseCommandLineArgs(String[] args) {
@@ -138,75 +162,4 @@ public class LotManager {
         }
         return params;
     }
-    
-    private static List<Vehicle> loadLotVehicles(String filePath) {
-        List<Vehicle> vehicles = new ArrayList<>();
-        File lotFile = new File(filePath);
-        
-        if(!lotFile.exists()) {
-            return vehicles;
-        }
-        
-        try (BufferedReader reader = new BufferedReader(new FileReader(lotFile))) {
-            String line;
-            while((line = reader.readLine()) != null) {
-                processVehicleLine(line, vehicles);
-            }
-        } catch(IOException e) {
-            System.err.println("Error reading lot file: " + e.getMessage());
-        }
-        return vehicles;
-    }
-    
-    private static void processVehicleLine(String line, List<Vehicle> vehicles) {
-        String[] vehicleData = line.split(",");
-        if(vehicleData.length >= 3) {
-            String plate = vehicleData[0].trim();
-            String type = vehicleData[1].trim();
-            int km = Integer.parseInt(vehicleData[2].trim());
-            vehicles.add(new Vehicle(plate, type, km));
-        } else {
-            System.err.println("Invalid line in lot file: " + line);
-        }
-    }
-    
-    private static void persistLotVehicles(String filePath, List<Vehicle> vehicles) {
-        try (PrintWriter writer = new PrintWriter(new FileWriter(filePath))) {
-            for(Vehicle v : vehicles) {
-                writer.println(v.getLicensePlate() + "," + v.getType() + "," + v.getKilometers());
-            }
-        } catch(IOException e) {
-            System.err.println("Error writing lot file: " + e.getMessage());
-        }
-    }
-    
-    private static Set<String> loadPlateRegistry() {
-        Set<String> plates = new HashSet<>();
-        File registryFile = new File(PLATE_REGISTRY_PATH);
-        
-        if(!registryFile.exists()) {
-            return plates;
-        }
-        
-        try (BufferedReader reader = new BufferedReader(new FileReader(registryFile))) {
-            String line;
-            while((line = reader.readLine()) != null) {
-                plates.add(line.trim());
-            }
-        } catch(IOException e) {
-            System.err.println("Error reading registry file: " + e.getMessage());
-        }
-        return plates;
-    }
-    
-    private static void savePlateRegistry(Set<String> plates) {
-        try (PrintWriter writer = new PrintWriter(new FileWriter(PLATE_REGISTRY_PATH))) {
-            for(String plate : plates) {
-                writer.println(plate);
-            }
-        } catch(IOException e) {
-            System.err.println("Error writing registry file: " + e.getMessage());
-        }
-    }
 }
-
@@ -0,0 +1,150 @@
+package com.aguilarcarboni.ttu;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Moves a shop's overflow cars into its lots in the background. A car is assigned a lot when it is queued,
+// so the shop can name it right away: the lot with the fewest cars, counting the ones already on their
+// way there. The worker takes everything queued since its last run and writes it with one check-in per lot,
+// so a burst of returns costs one lot round trip per lot rather than one per car.
+class OverflowOffloader {
+    private static final long RETRY_DELAY_MS = 1000;
+
+    interface Listener {
+        // Runs on the worker before any lot is written
+        void beforeWrite();
+        // Runs on the worker with the cars that are now in their lot
+        void offloaded(List<Vehicle> vehicles);
+    }
+
+    private final List<String> lots;
+    private final ShopMetrics metrics;
+    private final Listener listener;
+    private final ScheduledExecutorService executor;
+    private final long[] parked;
+    private final int[] inFlight;
+    private final List<List<Vehicle>> queued = new ArrayList<>();
+    private boolean scheduled;
+    private boolean closed;
+
+    OverflowOffloader(String name, List<String> lots, ShopMetrics metrics, Listener listener) {
+        this.lots = lots;
+        this.metrics = metrics;
+        this.listener = listener;
+        this.parked = new long[lots.size()];
+        this.inFlight = new int[lots.size()];
+        for(int i = 0; i < lots.size(); i++) {
+            queued.add(new ArrayList<>());
+            parked[i] = LotFile.shared(lots.get(i)).count();
+        }
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, name + "-offloader");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    // Queues the car and returns the lot it will go to; no lot I/O happens on the caller's thread
+    synchronized String enqueue(Vehicle vehicle) {
+        int lot = 0;
+        for(int i = 1; i < lots.size(); i++) {
+            if(parked[i] + inFlight[i] < parked[lot] + inFlight[lot]) {
+                lot = i;
+            }
+        }
+        inFlight[lot]++;
+        queued.get(lot).add(vehicle);
+        schedule(0);
+        return lots.get(lot);
+    }
+
+    private void schedule(long delayMs) {
+        if(!scheduled && !closed) {
+            scheduled = true;
+            executor.schedule(this::drain, delayMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void drain() {
+        List<List<Vehicle>> batches = takeBatches();
+        listener.beforeWrite();
+        List<Vehicle> written = new ArrayList<>();
+        boolean failed = false;
+        for(int lot = 0; lot < batches.size(); lot++) {
+            List<Vehicle> batch = batches.get(lot);
+            if(batch.isEmpty()) {
+                continue;
+            }
+            LotFile lotFile = LotFile.shared(lots.get(lot));
+            long start = System.nanoTime();
+            boolean ok = lotFile.checkinAll(batch);
+            metrics.recordSince(ShopMetrics.Timer.LOT_CHECKIN, start);
+            long count = ok ? lotFile.count() : 0;
+            synchronized (this) {
+                if(ok) {
+                    parked[lot] = count;
+                    inFlight[lot] -= batch.size();
+                } else {
+                    // Back at the front of the lot's queue; tried again after a pause
+                    queued.get(lot).addAll(0, batch);
+                    failed = true;
+                }
+            }
+            if(ok) {
+                written.addAll(batch);
+            }
+        }
+        if(!written.isEmpty()) {
+            listener.offloaded(written);
+        }
+        synchronized (this) {
+            scheduled = false;
+            if(hasQueued()) {
+                schedule(failed ? RETRY_DELAY_MS : 0);
+            }
+            notifyAll();
+        }
+    }
+
+    private synchronized List<List<Vehicle>> takeBatches() {
+        List<List<Vehicle>> batches = new ArrayList<>(queued.size());
+        for(int i = 0; i < queued.size(); i++) {
+            batches.add(queued.get(i));
+            queued.set(i, new ArrayList<>());
+        }
+        return batches;
+    }
+
+    private boolean hasQueued() {
+        for(List<Vehicle> lot : queued) {
+            if(!lot.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Waits for queued cars to be written, then stops the worker. Cars a lot keeps refusing are left to
+    // the caller, which still has them as pending offloads.
+    void close() {
+        synchronized (this) {
+            long deadline = System.currentTimeMillis() + RETRY_DELAY_MS * 3;
+            while(scheduled && System.currentTimeMillis() < deadline) {
+                try {
+                    wait(RETRY_DELAY_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            closed = true;
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.aguilarcarboni.ttu;
+
+// Maps "AAA-000" plates onto the dense range [0, PLATE_SPACE): letters form the high digits, numbers the low ones
+public final class PlateCodec {
+    public static final int LETTER_COMBINATIONS = 26 * 26 * 26;
+    public static final int NUMBER_COMBINATIONS = 10 * 10 * 10;
+    public static final int PLATE_SPACE = LETTER_COMBINATIONS * NUMBER_COMBINATIONS;
+    public static final int INVALID = -1;
+
+    private PlateCodec() {}
+
+    public static int encode(CharSequence plate) {
+        if(plate == null || plate.length() != 7 || plate.charAt(3) != '-') {
+            return INVALID;
+        }
+        int code = 0;
+        for(int i = 0; i < 3; i++) {
+            char c = Character.toUpperCase(plate.charAt(i));
+            if(c < 'A' || c > 'Z') return INVALID;
+            code = code * 26 + (c - 'A');
+        }
+        for(int i = 4; i < 7; i++) {
+            char c = plate.charAt(i);
+            if(c < '0' || c > '9') return INVALID;
+            code = code * 10 + (c - '0');
+        }
+        return code;
+    }
+
+    public static String decode(int code) {
+        if(code < 0 || code >= PLATE_SPACE) {
+            throw new IllegalArgumentException("Plate code out of range: " + code);
+        }
+        char[] plate = new char[7];
+        int numbers = code % NUMBER_COMBINATIONS;
+        int letters = code / NUMBER_COMBINATIONS;
+        for(int i = 6; i >= 4; i--) {
+            plate[i] = (char) ('0' + numbers % 10);
+            numbers /= 10;
+        }
+        plate[3] = '-';
+        for(int i = 2; i >= 0; i--) {
+            plate[i] = (char) ('A' + letters % 26);
+            letters /= 26;
+        }
+        return new String(plate);
+    }
+}
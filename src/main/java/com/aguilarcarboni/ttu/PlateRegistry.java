@@ -0,0 +1,159 @@
+package com.aguilarcarboni.ttu;
+import java.io.*;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.*;
+import java.util.Random;
+import java.util.concurrent.locks.ReentrantLock;
+
+// One bit per possible plate (see PlateCodec), memory-mapped so lookups and reservations never rescan a file
+public class PlateRegistry implements Closeable {
+    private static final int REGION_BYTES = 4096;
+    private static final int REGION_BITS = REGION_BYTES * 8;
+    private static final int REGION_COUNT = (PlateCodec.PLATE_SPACE + REGION_BITS - 1) / REGION_BITS;
+    private static final long FILE_SIZE = (long) REGION_COUNT * REGION_BYTES;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer bitmap;
+    // FileLocks keep other processes out of a region, these keep other threads of this JVM out
+    private final ReentrantLock[] regionLocks = new ReentrantLock[REGION_COUNT];
+
+    private PlateRegistry(FileChannel channel) throws IOException {
+        this.channel = channel;
+        this.bitmap = channel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+        this.bitmap.order(ByteOrder.LITTLE_ENDIAN);
+        for(int i = 0; i < REGION_COUNT; i++) {
+            regionLocks[i] = new ReentrantLock();
+        }
+    }
+
+    // Opens (creating if needed) the bitmap, importing a legacy text registry the first time
+    public static PlateRegistry open(String bitmapPath, String legacyTextPath) throws IOException {
+        Path path = Paths.get(bitmapPath);
+        boolean created = !Files.exists(path);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        PlateRegistry registry = new PlateRegistry(channel);
+        if(created && legacyTextPath != null) {
+            if(registry.importTextRegistry(Paths.get(legacyTextPath))) {
+                System.out.println("Imported legacy plate registry " + legacyTextPath + " into " + bitmapPath);
+            }
+        }
+        return registry;
+    }
+
+    public boolean contains(String plate) {
+        int code = PlateCodec.encode(plate);
+        if(code == PlateCodec.INVALID) {
+            return false;
+        }
+        return (bitmap.get(code >>> 3) & (1 << (code & 7))) != 0;
+    }
+
+    // Atomic test-and-set; false means the plate was already taken
+    public boolean reserve(String plate) throws IOException {
+        int code = PlateCodec.encode(plate);
+        if(code == PlateCodec.INVALID) {
+            throw new IllegalArgumentException("Invalid plate: " + plate);
+        }
+        int region = code / REGION_BITS;
+        ReentrantLock lock = regionLocks[region];
+        lock.lock();
+        try (FileLock fileLock = lockRegion(region)) {
+            return testAndSet(code);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Picks a random starting point and takes the next free plate after it, so no retries are needed as the space fills
+    public String reserveRandom(Random rng) throws IOException {
+        int start = rng.nextInt(PlateCodec.PLATE_SPACE);
+        int startRegion = start / REGION_BITS;
+        for(int step = 0; step <= REGION_COUNT; step++) {
+            int region = (startRegion + step) % REGION_COUNT;
+            int from = step == 0 ? start : region * REGION_BITS;
+            int code = reserveFirstFreeInRegion(region, from);
+            if(code != PlateCodec.INVALID) {
+                return PlateCodec.decode(code);
+            }
+        }
+        throw new IllegalStateException("Plate space exhausted: all " + PlateCodec.PLATE_SPACE + " plates are registered.");
+    }
+
+    public void force() {
+        bitmap.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        channel.close();
+    }
+
+    private int reserveFirstFreeInRegion(int region, int from) throws IOException {
+        int regionEnd = Math.min((region + 1) * REGION_BITS, PlateCodec.PLATE_SPACE);
+        ReentrantLock lock = regionLocks[region];
+        lock.lock();
+        try (FileLock fileLock = lockRegion(region)) {
+            int code = nextClearBit(from, regionEnd);
+            if(code != PlateCodec.INVALID) {
+                testAndSet(code);
+            }
+            return code;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Scans whole 64-bit words so a full region costs 512 reads, not 32k bit tests
+    private int nextClearBit(int from, int end) {
+        int word = from >>> 6;
+        long bits = ~bitmap.getLong(word << 3) & (-1L << (from & 63));
+        while(true) {
+            if(bits != 0) {
+                int code = (word << 6) + Long.numberOfTrailingZeros(bits);
+                return code < end ? code : PlateCodec.INVALID;
+            }
+            word++;
+            if((word << 6) >= end) {
+                return PlateCodec.INVALID;
+            }
+            bits = ~bitmap.getLong(word << 3);
+        }
+    }
+
+    private boolean testAndSet(int code) {
+        int index = code >>> 3;
+        byte current = bitmap.get(index);
+        byte mask = (byte) (1 << (code & 7));
+        if((current & mask) != 0) {
+            return false;
+        }
+        bitmap.put(index, (byte) (current | mask));
+        return true;
+    }
+
+    private FileLock lockRegion(int region) throws IOException {
+        return channel.lock((long) region * REGION_BYTES, REGION_BYTES, false);
+    }
+
+    private boolean importTextRegistry(Path legacyPath) throws IOException {
+        if(!Files.exists(legacyPath)) {
+            return false;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(legacyPath)) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                int code = PlateCodec.encode(line.trim());
+                if(code != PlateCodec.INVALID) {
+                    testAndSet(code);
+                }
+            }
+        }
+        force();
+        Files.move(legacyPath, legacyPath.resolveSibling(legacyPath.getFileName() + ".migrated"), StandardCopyOption.REPLACE_EXISTING);
+        return true;
+    }
+}
@@ -0,0 +1,92 @@
+package com.aguilarcarboni.ttu;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+// Keeps each vehicle type stocked ahead of RENT demand by pulling cars from the lots in the background.
+// A type's target is its low-water mark, or what the recent rent rate would use up within the lead time
+// if that is more. The rate is smoothed once per interval; a rent that leaves a type under its mark
+// wakes the worker early. How many cars actually arrive is up to the shop, which keeps parking free.
+class RentPrefetcher {
+    private static final long INTERVAL_MS = 250;
+    private static final long LEAD_TIME_MS = 2000;
+    // Weight of the newest interval in the smoothed rate
+    private static final double RATE_SMOOTHING = 0.3;
+    private static final VehicleType[] TYPES = VehicleType.values();
+
+    interface Stock {
+        int available(VehicleType type);
+        // Pulls up to count cars of the type into inventory and returns how many arrived
+        int prefetch(VehicleType type, int count);
+    }
+
+    private final int lowWaterMark;
+    private final Stock stock;
+    private final ScheduledExecutorService executor;
+    private final AtomicIntegerArray rentsThisInterval = new AtomicIntegerArray(TYPES.length);
+    private final AtomicBoolean wakeRequested = new AtomicBoolean();
+    // Only touched on the worker
+    private final double[] rentsPerMs = new double[TYPES.length];
+    private long intervalStart = System.nanoTime();
+
+    RentPrefetcher(String name, int lowWaterMark, Stock stock) {
+        this.lowWaterMark = lowWaterMark;
+        this.stock = stock;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, name + "-prefetcher");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.scheduleWithFixedDelay(this::tick, 0, INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // Called after every RENT with how many cars of the type it handed out and how many the shop has left.
+    // A RENT still running while the shop closes finds the worker gone and skips the wake-up.
+    void rented(VehicleType type, int cars, int remaining) {
+        if(cars > 0) {
+            rentsThisInterval.addAndGet(type.ordinal(), cars);
+        }
+        if(remaining < lowWaterMark && !wakeRequested.get() && !executor.isShutdown() && wakeRequested.compareAndSet(false, true)) {
+            try {
+                executor.execute(this::refill);
+            } catch(RejectedExecutionException e) {
+                // Shut down after the check above
+            }
+        }
+    }
+
+    private void tick() {
+        long now = System.nanoTime();
+        double elapsedMs = Math.max(1.0, (now - intervalStart) / 1e6);
+        intervalStart = now;
+        for(VehicleType type : TYPES) {
+            int i = type.ordinal();
+            double rate = rentsThisInterval.getAndSet(i, 0) / elapsedMs;
+            rentsPerMs[i] = RATE_SMOOTHING * rate + (1 - RATE_SMOOTHING) * rentsPerMs[i];
+        }
+        refill();
+    }
+
+    private void refill() {
+        wakeRequested.set(false);
+        for(VehicleType type : TYPES) {
+            int target = Math.max(lowWaterMark, (int) Math.ceil(rentsPerMs[type.ordinal()] * LEAD_TIME_MS));
+            int missing = target - stock.available(type);
+            if(missing > 0) {
+                stock.prefetch(type, missing);
+            }
+        }
+    }
+
+    void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -1,35 +1,80 @@
 package com.aguilarcarboni.ttu;
 import java.io.*;
 import java.nio.channels.FileChannel;
-import java.nio.channels.FileLock;
+import java.nio.file.*;
 import java.util.*;
-import java.io.ByteArrayOutputStream;
-import java.io.PrintStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class RentalShop {
     // Core shop properties
     private String shopLocation;
     private int parkingCapacity;
     private List<String> associatedLots;
+    // Most cars one RENT or RETURN command may cover
+    private static final int MAX_BATCH = 1000;
+    // Transactions one TRANSACTIONS report lists
+    static final int TRANSACTION_PAGE_SIZE = 100;
     
     // Vehicle management
-    private Map<String, Vehicle> availableVehicles = new HashMap<>();
-    private Map<String, RentedRecord> activeRentals = new HashMap<>();
-    private List<Transaction> rentalHistory = new ArrayList<>();
-    private double totalRevenue = 0.0;
+    // Cars prefetched from a lot carry LOT_DISCOUNT in their inventory flags and keep it when rented
+    private InventoryIndex availableVehicles = new InventoryIndex();
+    // Rented cars; the row flags carry LOT_DISCOUNT
+    static final byte LOT_DISCOUNT = 1;
+    private VehicleTable activeRentals = new VehicleTable();
+    // Overflow cars taken out of inventory whose lot write has not been logged yet
+    private VehicleTable offloading = new VehicleTable();
+    private OverflowOffloader offloader;
+    // Per-type low-water mark for pulling lot cars ahead of demand; 0 leaves prefetching off
+    private static int prefetchLowWater = 0;
+    // Free spots prefetching leaves alone, the same two a return needs before it sends a car to a lot
+    private static final int PREFETCH_PARKING_RESERVE = 2;
+    private RentPrefetcher prefetcher;
+    // Lot checkouts whose RENT or STOCK records are logged but maybe not yet durable; released after the next
+    // fsync, and settled from the lot records if the shop stops first
+    private final Queue<LotFile.Claim> pendingClaims = new ConcurrentLinkedQueue<>();
+    private final long lotOwner;
+    // Sealed history lives in <location>.history segments; only the unsealed tail is in memory
+    private TransactionStore rentalHistory;
+    private RevenueAggregates revenue = new RevenueAggregates();
     
-    // State persistence
-    private static final String OUTPUTS_DIRECTORY = "outputs";
-    private static final String SHOPS_DIRECTORY = OUTPUTS_DIRECTORY + File.separator + "shops";
-    private static final String REGISTRY_DIRECTORY = OUTPUTS_DIRECTORY + File.separator + "registry";
-    private String binaryStateFile;   // e.g. "SanJose.ser"
+    // State persistence; everything lives under outputsDirectory, which tests point at a temporary directory
+    private static String outputsDirectory = "outputs";
+    private static String shopsDirectory = outputsDirectory + File.separator + "shops";
+    private static String registryDirectory = outputsDirectory + File.separator + "registry";
+    private static String statsDirectory = outputsDirectory + File.separator + "stats";
+    private static final long STATS_DUMP_INTERVAL_MS = 10000;
+    private String binaryStateFile;   // e.g. "SanJose.snap"
+    private String legacyStateFile;   // e.g. "SanJose.ser", read once and then set aside
     private String textStateFile;     // e.g. "SanJose.txt"
-    private static final String RENTAL_REGISTRY = REGISTRY_DIRECTORY + File.separator + "rented_registry.txt";
+    // The text report trails the shop by at most this long; it is rendered off the command path
+    private static long reportIntervalMs = 1000;
+    private StateRenderer stateRenderer;
+    // Sharded as rented_registry-NN.idx; older rented_registry.idx/.txt files are migrated on first open
+    private static String rentalRegistry = registryDirectory + File.separator + "rented_registry";
+    private static int registryShards = ShardedRentedRegistry.DEFAULT_SHARDS;
+    private ShardedRentedRegistry rentedRegistry;
+
+    // Write-ahead log between snapshots, compacted by a background checkpoint
+    private static final long CHECKPOINT_INTERVAL_MS = 5000;
+    private static final int CHECKPOINT_MAX_LOG_RECORDS = 1000;
+    private CommandLog commandLog;
+    private long snapshotSequence = 0;
+    private long lastCheckpointMillis = System.currentTimeMillis();
+    private ScheduledExecutorService checkpointer;
+    private DurabilityPolicy durabilityPolicy = DurabilityPolicy.always();
+
+    // Guards the inventory, rental and history state; readers (LIST, TRANSACTIONS, checkpoints) share it
+    private final ReentrantReadWriteLock stateLock = new ReentrantReadWriteLock();
+    private long stateLockedAt;
+    private final ShopMetrics metrics = new ShopMetrics();
+    private final String statsFile;
 
     public static void main(String[] args) {
-        ensureOutputsDirectoryExists();
-        ensureRegistryDirectoryExists();
-        ensureShopsDirectoryExists();
+        ensureDirectoriesExist();
         Map<String, String> flags = parseArgs(args);
         String loc = flags.get("--location");
         if (loc == null) {
@@ -37,168 +82,586 @@ public class RentalShop {
            System.exit(1);
         }
     
+        DurabilityPolicy policy = DurabilityPolicy.parse(flags.get("--sync"));
+        configureRegistryShards(flags);
+        configureReportInterval(flags);
+        configurePrefetch(flags);
+        RentalShop shop;
         if (new File(loc + ".txt").exists()) {
-            RentalShop shop = new RentalShop(loc, 0, List.of());
-            shop.runCommandLoop();
+            shop = new RentalShop(loc, 0, List.of());
         } else {
             int spaces = Integer.parseInt(flags.getOrDefault("--spaces-available", "10"));
-            List<String> lots = Arrays.asList(flags.getOrDefault("--lots","").split(","));
-            RentalShop shop = new RentalShop(loc, spaces, lots);
+            List<String> lots = parseLots(flags.getOrDefault("--lots", ""));
+            shop = new RentalShop(loc, spaces, lots);
+        }
+        if (flags.containsKey("--replay")) {
+            if (!flags.containsKey("--sync")) {
+                policy = DurabilityPolicy.everyCommands(CommandReplay.DEFAULT_SYNC_COMMANDS);
+            }
+            runReplay(shop, policy, flags.get("--replay"), flags.get("--replay-output"));
+        } else {
+            shop.setDurabilityPolicy(policy);
             shop.runCommandLoop();
         }
+        shop.close();
+    }
+
+    // --replay=<command file> runs a recorded file instead of the console; output goes to --replay-output or stdout
+    private static void runReplay(RentalShop shop, DurabilityPolicy policy, String commandFile, String outputFile) {
+        long start = System.nanoTime();
+        try (FileChannel out = outputFile != null
+                ? FileChannel.open(Paths.get(outputFile), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)
+                : new FileOutputStream(FileDescriptor.out).getChannel()) {
+            long commands = new CommandReplay(shop, policy, out).replay(Paths.get(commandFile));
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.println(String.format("Replayed %d commands in %.2f s (%.0f commands/s)", commands, seconds, commands / seconds));
+        } catch (IOException e) {
+            System.err.println("Error replaying commands: " + e.getMessage());
+        }
     }
 
     public RentalShop(String location, int parkingSpaces, List<String> lots) {
         this.shopLocation = location;
         this.parkingCapacity = parkingSpaces;
         this.associatedLots = lots;
+        this.lotOwner = LotFile.ownerStamp(location);
         
-        this.binaryStateFile = SHOPS_DIRECTORY + File.separator + location + ".ser";
-        this.textStateFile = SHOPS_DIRECTORY + File.separator + location + ".txt";
+        this.binaryStateFile = shopsDirectory + File.separator + location + ShopSnapshot.EXTENSION;
+        this.legacyStateFile = shopsDirectory + File.separator + location + ShopSnapshot.LEGACY_EXTENSION;
+        this.textStateFile = shopsDirectory + File.separator + location + ".txt";
+        this.commandLog = new CommandLog(shopsDirectory + File.separator + location + ".wal");
+        this.statsFile = statsDirectory + File.separator + location + ".json";
+        this.stateRenderer = new StateRenderer(location, textStateFile, reportIntervalMs, this::writeHumanState, metrics);
+        try {
+            this.rentedRegistry = ShardedRentedRegistry.shared(rentalRegistry, registryShards);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error opening rented registry", e);
+        }
+        try {
+            this.rentalHistory = TransactionStore.open(shopsDirectory + File.separator + location + ".history");
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error opening transaction history", e);
+        }
         
-        if (new File(textStateFile).exists()) {
-            System.out.println("Found existing text state " + textStateFile + ", loading binary snapshot.");
+        if (new File(binaryStateFile).exists() || new File(legacyStateFile).exists() || commandLog.exists()) {
+            System.out.println("Found existing state for " + location + ", loading binary snapshot and replaying command log.");
             loadState();
+            recoverCommandLog();
+            resolveLotClaims();
             syncWithGlobalRegistryOnStartup();
-            writeHumanState();
         } else {
+            recoverCommandLog();
+            resolveLotClaims();
             initializeInventory();
+            checkpoint();
+        }
+        startOffloader();
+        if (prefetchLowWater > 0) {
+            prefetcher = new RentPrefetcher(location, prefetchLowWater, new RentPrefetcher.Stock() {
+                @Override
+                public int available(VehicleType type) {
+                    return availableOfType(type);
+                }
+
+                @Override
+                public int prefetch(VehicleType type, int count) {
+                    return prefetchFromLots(type, count);
+                }
+            });
         }
+        stateRenderer.markStale();
+        startCheckpointer();
+    }
+
+    public void setDurabilityPolicy(DurabilityPolicy policy) {
+        this.durabilityPolicy = policy;
     }
 
+    // The caller treats the returned text as an acknowledgement, so this path always syncs
     public String executeCommand(String command) {
-        ByteArrayOutputStream outputBuffer = new ByteArrayOutputStream();
-        PrintStream outputStream = new PrintStream(outputBuffer);
-        PrintStream originalOutput = System.out;
-        System.setOut(outputStream);
+        CommandResult result = execute(command);
+        syncLog();
+        return result.render();
+    }
 
-        processCommand(command);
-        saveState();
+    // Makes every command executed so far durable
+    public void sync() {
+        syncLog();
+    }
 
-        System.out.flush();
-        System.setOut(originalOutput);
-        return outputBuffer.toString();
+    // Claims queued before the fsync starts are for records it covers, so those are released after it
+    private void syncLog() {
+        List<LotFile.Claim> durable = new ArrayList<>();
+        LotFile.Claim claim;
+        while((claim = pendingClaims.poll()) != null) {
+            durable.add(claim);
+        }
+        long start = System.nanoTime();
+        commandLog.sync();
+        metrics.recordSince(ShopMetrics.Timer.LOG_SYNC, start);
+        for(LotFile.Claim c : durable) {
+            c.release();
+        }
+    }
+
+    public String getLocation() {
+        return shopLocation;
     }
 
+    // Commands already queued on stdin are grouped under one command log fsync; their output is
+    // held back until that fsync so nothing is acknowledged before it is durable
     private void runCommandLoop() {
-        Scanner scanner = new Scanner(System.in);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+        StringBuilder pendingOutput = new StringBuilder();
+        int pendingCommands = 0;
+        long oldestPendingNanos = 0;
+
         System.out.println("Welcome to " + shopLocation + " Rental Shop!");
-        System.out.println("Available commands: RENT, RETURN, LIST, TRANSACTIONS");
+        System.out.println("Available commands: RENT, RETURN, LIST, TRANSACTIONS, STATS");
         System.out.println("Type EXIT to quit.");
-        while(true) {
-            System.out.print("> ");
-            String input = scanner.nextLine();
-            if(input == null || input.trim().equalsIgnoreCase("EXIT")) {
-                break;
+        try {
+            while(true) {
+                pendingOutput.append("> ");
+                if(!reader.ready()) {
+                    commitGroup(pendingCommands, pendingOutput);
+                    pendingCommands = 0;
+                }
+                String input = reader.readLine();
+                if(input == null || input.trim().equalsIgnoreCase("EXIT")) {
+                    break;
+                }
+                if(pendingCommands == 0) {
+                    oldestPendingNanos = System.nanoTime();
+                }
+                pendingOutput.append(execute(input.trim()).render());
+                pendingCommands++;
+                if(durabilityPolicy.shouldSync(pendingCommands, oldestPendingNanos)) {
+                    commitGroup(pendingCommands, pendingOutput);
+                    pendingCommands = 0;
+                }
             }
-            processCommand(input.trim());
-            saveState();
+        } catch(IOException e) {
+            System.err.println("Error reading commands: " + e.getMessage());
+        } finally {
+            commitGroup(pendingCommands, pendingOutput);
         }
-        scanner.close();
     }
 
-    private void processCommand(String input) {
-        String[] tokens = input.split("\\s+");
-        if(tokens.length == 0) return;
-        
+    private void commitGroup(int pendingCommands, StringBuilder pendingOutput) {
+        if(pendingCommands > 0) {
+            syncLog();
+        }
+        System.out.print(pendingOutput);
+        System.out.flush();
+        pendingOutput.setLength(0);
+    }
+
+    // Stops background checkpointing and folds the remaining log into a final snapshot
+    public void close() {
+        if (prefetcher != null) {
+            prefetcher.close();
+        }
+        offloader.close();
+        checkpointer.shutdown();
+        try {
+            checkpointer.awaitTermination(CHECKPOINT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        checkpoint();
+        stateRenderer.close();
+        metrics.dump(shopLocation, statsFile);
+        try {
+            commandLog.close();
+        } catch (IOException e) {
+            System.err.println("Error closing command log: " + e.getMessage());
+        }
+    }
+
+    // Stops the shop as a crash right after a log sync would: no final checkpoint, so the next shop opened at
+    // this location recovers from the last snapshot and the command log
+    void abandon() {
+        checkpointer.shutdownNow();
+        try {
+            checkpointer.awaitTermination(CHECKPOINT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (prefetcher != null) {
+            prefetcher.close();
+        }
+        offloader.close();
+        stateRenderer.close();
+        try {
+            commandLog.close();
+        } catch (IOException e) {
+            System.err.println("Error closing command log: " + e.getMessage());
+        }
+    }
+
+    // Parses and runs one command line. Safe to call from many threads; the result is not yet
+    // durable until the command log is synced.
+    public CommandResult execute(String input) {
+        String[] tokens = input.trim().split("\\s+");
         String command = tokens[0].toUpperCase();
+        long start = System.nanoTime();
         switch(command) {
             case "RENT":
-                handleRentCommand(tokens);
-                break;
+                CommandResult rented = handleRentCommand(tokens);
+                metrics.recordSince(ShopMetrics.Timer.RENT, start);
+                return rented;
             case "RETURN":
-                handleReturnCommand(tokens);
-                break;
+                CommandResult returned = handleReturnCommand(tokens);
+                metrics.recordSince(ShopMetrics.Timer.RETURN, start);
+                return returned;
             case "LIST":
-                listShopState();
-                break;
+                CommandResult status = status();
+                metrics.recordSince(ShopMetrics.Timer.LIST, start);
+                return status;
             case "TRANSACTIONS":
-                listTransactions();
-                break;
+                CommandResult transactions = handleTransactionsCommand(tokens);
+                metrics.recordSince(ShopMetrics.Timer.TRANSACTIONS, start);
+                return transactions;
+            case "STATS":
+                return stats();
             default:
-                System.out.println("Unknown command.");
+                return new CommandResult.Message("Unknown command.");
         }
     }
 
-    private void handleRentCommand(String[] tokens) {
-        if(tokens.length < 2) {
-            System.out.println("Usage: RENT <VEHICLE TYPE>");
-            return;
+    public CommandResult.StatsReport stats() {
+        return new CommandResult.StatsReport(shopLocation, metrics.snapshot());
+    }
+
+    ShopMetrics metrics() {
+        return metrics;
+    }
+
+    // Write-lock hold time is tracked in stateLockedAt, which only the write-lock holder touches
+    private void lockState() {
+        long start = System.nanoTime();
+        stateLock.writeLock().lock();
+        stateLockedAt = metrics.recordSince(ShopMetrics.Timer.STATE_LOCK_WAIT, start);
+    }
+
+    // Every write-locked section may have changed the state, so the text report is marked stale here
+    private void unlockState() {
+        metrics.recordSince(ShopMetrics.Timer.STATE_LOCK_HOLD, stateLockedAt);
+        stateLock.writeLock().unlock();
+        stateRenderer.markStale();
+    }
+
+    private void lockStateForRead() {
+        long start = System.nanoTime();
+        stateLock.readLock().lock();
+        metrics.recordSince(ShopMetrics.Timer.STATE_LOCK_WAIT, start);
+    }
+
+    private CommandResult handleRentCommand(String[] tokens) {
+        if(tokens.length < 2 || tokens.length > 3) {
+            return new CommandResult.Message("Usage: RENT <VEHICLE TYPE> [COUNT]");
+        }
+        if(tokens.length == 2) {
+            return rent(tokens[1].toUpperCase());
+        }
+        int count;
+        try {
+            count = Integer.parseInt(tokens[2]);
+        } catch(NumberFormatException e) {
+            count = 0;
         }
-        rentVehicle(tokens[1].toUpperCase());
+        if(count < 1 || count > MAX_BATCH) {
+            return new CommandResult.Message("Invalid count, expected 1 to " + MAX_BATCH + ".");
+        }
+        return new CommandResult.Batch(rent(tokens[1].toUpperCase(), count));
     }
 
-    private void handleReturnCommand(String[] tokens) {
-        if(tokens.length < 3) {
-            System.out.println("Usage: RETURN <LICENSE PLATE> <KILOMETERS>");
-            return;
+    // RETURN <plate> <km> [<plate> <km> ...]; nothing is returned unless every kilometer value parses
+    private CommandResult handleReturnCommand(String[] tokens) {
+        if(tokens.length < 3 || tokens.length % 2 == 0 || tokens.length / 2 > MAX_BATCH) {
+            return new CommandResult.Message("Usage: RETURN <LICENSE PLATE> <KILOMETERS> [<LICENSE PLATE> <KILOMETERS> ...]");
         }
+        List<String> plates = new ArrayList<>(tokens.length / 2);
+        int[] kilometers = new int[tokens.length / 2];
         try {
-            int km = Integer.parseInt(tokens[2]);
-            returnVehicle(tokens[1].toUpperCase(), km);
+            for(int i = 0; i < kilometers.length; i++) {
+                plates.add(tokens[1 + i * 2].toUpperCase());
+                kilometers[i] = Integer.parseInt(tokens[2 + i * 2]);
+            }
         } catch(NumberFormatException e) {
-            System.out.println("Invalid kilometers value.");
+            return new CommandResult.Message("Invalid kilometers value.");
+        }
+        if(kilometers.length == 1) {
+            return returnVehicle(plates.get(0), kilometers[0]);
         }
+        return new CommandResult.Batch(returnVehicles(plates, kilometers));
     }
 
-    private void rentVehicle(String vehicleType) {
-        Vehicle vehicle = findAvailableVehicle(vehicleType);
-        boolean hasLotDiscount = false;
+    // Shop state is only touched under stateLock; lot I/O happens outside it, registry updates under it
+    public CommandResult rent(String vehicleType) {
+        return rent(vehicleType, 1).get(0);
+    }
 
-        if (vehicle != null) {
-            availableVehicles.remove(vehicle.getLicensePlate());
-            System.out.println("RENT: Vehicle " + vehicle.getLicensePlate() + " (" + vehicle.getType() + ") has been provided from shop inventory.");
-        } else {
-            vehicle = requestVehicleFromLots(vehicleType);
-            if (vehicle != null) {
-                hasLotDiscount = true;
-                System.out.println("RENT: Vehicle " + vehicle.getLicensePlate() + " (" + vehicle.getType() + ") has been obtained from lot with 10% discount.");
+    // Rents up to count cars of the type: one pass over inventory under the lock, one checkout per lot for
+    // the shortfall and one registry update for each. Ends with NoVehicleAvailable if it came up short.
+    //
+    // The cars are registered before their RENT records are logged, so every rental the shop holds has a
+    // registry entry and a return that finds none knows the car was taken back elsewhere. When the registry
+    // cannot be written the cars stay where they were and the customer gets an error.
+    private List<CommandResult> rent(String vehicleType, int count) {
+        List<CommandResult> results = new ArrayList<>(count + 1);
+        int remaining;
+        boolean registryFailed = false;
+
+        lockState();
+        try {
+            List<Vehicle> picked = new ArrayList<>(count);
+            Vehicle vehicle;
+            while(picked.size() < count && (vehicle = findAvailableVehicle(vehicleType)) != null) {
+                // Moved to the rentals straight away so the next search finds another car
+                applyRent(vehicle, (availableVehicles.flags(vehicle.getLicensePlate()) & LOT_DISCOUNT) != 0);
+                picked.add(vehicle);
+            }
+            if(addToGlobalRegistry(registryEntries(picked, false))) {
+                for(Vehicle v : picked) {
+                    boolean hasLotDiscount = (activeRentals.flagsAt(activeRentals.find(v.getLicensePlate())) & LOT_DISCOUNT) != 0;
+                    commandLog.append(CommandLog.RENT, v.getLicensePlate(), v.getType(), v.getKilometers(), hasLotDiscount);
+                    results.add(new CommandResult.Rented(v, hasLotDiscount));
+                }
             } else {
-                System.out.println("RENT: No vehicles of type " + vehicleType + " are available in shop or lots.");
-                return;
+                for(Vehicle v : picked) {
+                    availableVehicles.put(v, removeRental(v.getLicensePlate()).hasLotDiscount ? LOT_DISCOUNT : 0);
+                }
+                registryFailed = true;
+            }
+            remaining = availableVehicles.countByType(vehicleType);
+        } finally {
+            unlockState();
+        }
+        if (results.size() < count && !registryFailed) {
+            List<LotFile.Claim> claims = claimFromLots(vehicleType, count - results.size());
+            if (!claims.isEmpty()) {
+                List<Vehicle> claimed = new ArrayList<>();
+                for(LotFile.Claim claim : claims) {
+                    claimed.addAll(claim.vehicles);
+                }
+                lockState();
+                try {
+                    if(addToGlobalRegistry(registryEntries(claimed, true))) {
+                        for(Vehicle vehicle : claimed) {
+                            recordRent(vehicle, true);
+                        }
+                    } else {
+                        registryFailed = true;
+                    }
+                } finally {
+                    unlockState();
+                }
+                for(LotFile.Claim claim : claims) {
+                    if(registryFailed) {
+                        claim.cancel();
+                        continue;
+                    }
+                    for(Vehicle vehicle : claim.vehicles) {
+                        results.add(new CommandResult.Rented(vehicle, true));
+                    }
+                    pendingClaims.add(claim);
+                }
             }
         }
 
-        activeRentals.put(vehicle.getLicensePlate(), new RentedRecord(vehicle, hasLotDiscount));
-        addToGlobalRegistry(vehicle.getLicensePlate(), vehicle.getType(), hasLotDiscount);
+        VehicleType type = VehicleType.parse(vehicleType);
+        if (prefetcher != null && type != null) {
+            prefetcher.rented(type, results.size(), remaining);
+        }
+        if (registryFailed) {
+            results.add(new CommandResult.Message("RENT: Error updating rented registry; no further vehicles of type " + vehicleType + " were rented."));
+        } else if (results.size() < count) {
+            results.add(new CommandResult.NoVehicleAvailable(vehicleType));
+        }
+        return results;
+    }
+
+    private static List<RentedRegistry.Entry> registryEntries(List<Vehicle> vehicles, boolean fromLot) {
+        List<RentedRegistry.Entry> entries = new ArrayList<>(vehicles.size());
+        for(Vehicle vehicle : vehicles) {
+            entries.add(new RentedRegistry.Entry(vehicle.getLicensePlate(), vehicle.getType(), fromLot));
+        }
+        return entries;
+    }
+
+    private void recordRent(Vehicle vehicle, boolean hasLotDiscount) {
+        applyRent(vehicle, hasLotDiscount);
+        commandLog.append(CommandLog.RENT, vehicle.getLicensePlate(), vehicle.getType(), vehicle.getKilometers(), hasLotDiscount);
+    }
+
+    private void applyRent(Vehicle vehicle, boolean hasLotDiscount) {
+        availableVehicles.remove(vehicle.getLicensePlate());
+        activeRentals.put(vehicle, hasLotDiscount ? LOT_DISCOUNT : 0);
+    }
+
+    // Takes a car out of the active rentals, or returns null when this shop does not have it out
+    private RentedRecord removeRental(String licensePlate) {
+        int row = activeRentals.find(licensePlate);
+        if (row == VehicleTable.NO_ROW) {
+            return null;
+        }
+        RentedRecord record = new RentedRecord(activeRentals.vehicleAt(row), (activeRentals.flagsAt(row) & LOT_DISCOUNT) != 0);
+        activeRentals.removeRow(row);
+        return record;
     }
 
     private Vehicle findAvailableVehicle(String vehicleType) {
-        for(Vehicle v : availableVehicles.values()) {
-            if(v.getType().equalsIgnoreCase(vehicleType)) {
-                return v;
+        return availableVehicles.findByType(vehicleType);
+    }
+
+    private int availableOfType(VehicleType type) {
+        lockStateForRead();
+        try {
+            return availableVehicles.countByType(type.name());
+        } finally {
+            stateLock.readLock().unlock();
+        }
+    }
+
+    private boolean hasPrefetchRoom() {
+        return parkingCapacity - (availableVehicles.size() + activeRentals.size()) > PREFETCH_PARKING_RESERVE;
+    }
+
+    // Runs on the prefetcher: pulls cars from the lots into inventory while parking allows. Prefetched cars
+    // are logged as STOCK with the discount set, since a customer renting one is still renting a lot car.
+    private int prefetchFromLots(VehicleType type, int count) {
+        int stocked = 0;
+        boolean full = false;
+        for (String lotName : associatedLots) {
+            LotFile lot = LotFile.shared(lotName);
+            while (stocked < count && !full) {
+                lockStateForRead();
+                try {
+                    full = !hasPrefetchRoom();
+                } finally {
+                    stateLock.readLock().unlock();
+                }
+                if (full) {
+                    break;
+                }
+                long start = System.nanoTime();
+                LotFile.Claim claim = lot.claim(type.name(), 1, lotOwner);
+                metrics.recordSince(ShopMetrics.Timer.LOT_CHECKOUT, start);
+                if (claim.isEmpty()) {
+                    break;
+                }
+                if (stockPrefetched(claim.vehicles.get(0))) {
+                    pendingClaims.add(claim);
+                    stocked++;
+                } else {
+                    claim.cancel();
+                    full = true;
+                }
+            }
+            if (full || stocked == count) {
+                break;
             }
         }
-        return null;
+        if (stocked > 0) {
+            syncLog();
+        }
+        return stocked;
     }
 
-    private void returnVehicle(String licensePlate, int kilometers) {
-        RentedRecord record = activeRentals.remove(licensePlate);
-        if (record == null) {
-            record = fetchFromGlobalRegistry(licensePlate);
-            if (record == null) {
-                System.out.println("RETURN: Vehicle " + licensePlate + " is not rented by any shop.");
-                return;
+    // Returns may have taken the spot while the lot was read, in which case the car goes back
+    private boolean stockPrefetched(Vehicle vehicle) {
+        lockState();
+        try {
+            if (!hasPrefetchRoom()) {
+                return false;
             }
+            availableVehicles.put(vehicle, LOT_DISCOUNT);
+            commandLog.append(CommandLog.STOCK, vehicle.getLicensePlate(), vehicle.getType(), vehicle.getKilometers(), true);
+            return true;
+        } finally {
+            unlockState();
         }
+    }
 
-        processVehicleReturn(record, kilometers);
-        handleParkingSpaceManagement();
+    public CommandResult returnVehicle(String licensePlate, int kilometers) {
+        return returnVehicles(Collections.singletonList(licensePlate), new int[]{kilometers}).get(0);
     }
 
-    private void processVehicleReturn(RentedRecord record, int kilometers) {
+    // Returns the cars in order with one registry update and one locked pass over shop state. Removing a
+    // plate's registry entry is what claims the car, so a car returned twice at once, here or at two shops,
+    // is charged once; a plate this shop did not rent out is taken back using the entry of the shop that
+    // did. The claim is made under the state lock, as registration is at rent time, so that a rental this
+    // shop still holds but lost the claim for can only have been taken back elsewhere, and so a checkpoint
+    // never sees a car that is neither rented nor parked. When the registry cannot be read nothing is
+    // returned and every rental stays as it was.
+    private List<CommandResult> returnVehicles(List<String> plates, int[] kilometers) {
+        RentedRegistry.Entry[] claimed;
+        double[] charges = new double[plates.size()];
+        boolean[] discounted = new boolean[plates.size()];
+        Vehicle[] toMove = new Vehicle[plates.size()];
+        lockState();
+        try {
+            claimed = removeFromGlobalRegistry(plates);
+            for(int i = 0; claimed != null && i < claimed.length; i++) {
+                String plate = plates.get(i);
+                RentedRecord record = removeRental(plate);
+                if(claimed[i] == null) {
+                    // Already returned at another shop; dropped as the startup registry sync would
+                    continue;
+                }
+                if(record == null) {
+                    record = new RentedRecord(new Vehicle(plate, claimed[i].type, 0), claimed[i].discount);
+                }
+                discounted[i] = record.hasLotDiscount;
+                charges[i] = applyReturn(record, kilometers[i]);
+                commandLog.append(CommandLog.RETURN, plate, record.vehicle.getType(), kilometers[i], record.hasLotDiscount);
+                toMove[i] = selectVehicleForOverflow();
+            }
+        } finally {
+            unlockState();
+        }
+
+        List<CommandResult> results = new ArrayList<>(plates.size());
+        if(claimed == null) {
+            for(String plate : plates) {
+                results.add(new CommandResult.Message("RETURN: Error updating rented registry; vehicle " + plate + " was not returned."));
+            }
+            return results;
+        }
+        for(int i = 0; i < claimed.length; i++) {
+            if(claimed[i] == null) {
+                results.add(new CommandResult.NotRented(plates.get(i)));
+                continue;
+            }
+            String targetLot = null;
+            if(toMove[i] != null) {
+                targetLot = offloader.enqueue(toMove[i]);
+            }
+            results.add(new CommandResult.Returned(plates.get(i), kilometers[i], charges[i], discounted[i], toMove[i], targetLot));
+        }
+        return results;
+    }
+
+    private double applyReturn(RentedRecord record, int kilometers) {
+        Transaction transaction = settleReturn(record, kilometers);
+        rentalHistory.append(transaction);
+        return transaction.getCharge();
+    }
+
+    // Charges the return and parks the car; the caller adds the transaction to the history
+    private Transaction settleReturn(RentedRecord record, int kilometers) {
         Vehicle vehicle = record.vehicle;
         vehicle.addKilometers(kilometers);
         
         double charge = calculateCharge(kilometers, record.hasLotDiscount);
-        totalRevenue += charge;
-        rentalHistory.add(new Transaction(vehicle.getLicensePlate(), kilometers, record.hasLotDiscount, charge));
-        
-        System.out.println("RETURN: Vehicle " + vehicle.getLicensePlate() + " has been returned. Distance added: " + kilometers + " km. Charge: $" + String.format("%.2f", charge));
-        availableVehicles.put(vehicle.getLicensePlate(), vehicle);
+        Transaction transaction = new Transaction(vehicle.getLicensePlate(), vehicle.getType(), kilometers, record.hasLotDiscount, charge);
+        revenue.record(transaction);
+        availableVehicles.put(vehicle);
+        return transaction;
     }
 
-    private double calculateCharge(int kilometers, boolean hasDiscount) {
+    static double calculateCharge(int kilometers, boolean hasDiscount) {
         double charge = kilometers;
         if(hasDiscount) {
             charge -= (0.10 * charge);
@@ -206,68 +669,85 @@ public class RentalShop {
         return charge;
     }
 
-    private void handleParkingSpaceManagement() {
+    // Takes the highest-mileage car out of inventory when parking runs short; the caller queues it for a lot
+    private Vehicle selectVehicleForOverflow() {
         int totalVehicles = availableVehicles.size() + activeRentals.size();
         int emptySpots = parkingCapacity - totalVehicles;
         
-        if(emptySpots < 2 && !availableVehicles.isEmpty()) {
-            moveVehicleToLot();
+        if(emptySpots >= 2 || availableVehicles.isEmpty() || associatedLots.isEmpty()) {
+            return null;
         }
+        Vehicle toMove = availableVehicles.highestKilometers();
+        availableVehicles.remove(toMove.getLicensePlate());
+        offloading.put(toMove, (byte) 0);
+        commandLog.append(CommandLog.MOVE_TO_LOT, toMove.getLicensePlate(), toMove.getType(), toMove.getKilometers(), false);
+        return toMove;
     }
 
-    private void moveVehicleToLot() {
-        Vehicle toMove = Collections.max(availableVehicles.values(), Comparator.comparingInt(Vehicle::getKilometers));
-        availableVehicles.remove(toMove.getLicensePlate());
-        String targetLot = associatedLots.get(0);
-        returnVehicleToLot(toMove, targetLot);
-        System.out.println("RETURN: Vehicle " + toMove.getLicensePlate() + " (" + toMove.getType() + ") has been moved to lot " + targetLot + " due to limited parking space.");
+    public CommandResult.StatusReport status() {
+        lockStateForRead();
+        try {
+            return new CommandResult.StatusReport(shopLocation,
+                parkingCapacity - (availableVehicles.size() + activeRentals.size()),
+                new ArrayList<>(availableVehicles.values()), activeRentals.vehicles(), revenue.totalRevenue());
+        } finally {
+            stateLock.readLock().unlock();
+        }
     }
 
-    private void listShopState() {
-        System.out.println("LIST: Requesting shop status report for" + shopLocation);
-        System.out.println("----------------------------------------");
-        System.out.println("Shop Status Report  ");
-        System.out.println("Available Parking Spaces: " + (parkingCapacity - (availableVehicles.size() + activeRentals.size())));
-        
-        System.out.println("\nVehicles in Shop Inventory:");
-        for(Vehicle v : availableVehicles.values()) {
-            System.out.println("   " + v);
+    // TRANSACTIONS lists the latest page; TRANSACTIONS <n> lists a page from the n-th transaction on
+    private CommandResult handleTransactionsCommand(String[] tokens) {
+        if(tokens.length == 1) {
+            return transactions();
         }
-        
-        System.out.println("\nVehicles Currently Rented:");
-        for(RentedRecord r : activeRentals.values()) {
-            System.out.println("   " + r.vehicle);
+        try {
+            long from = Long.parseLong(tokens[1]);
+            if(tokens.length == 2 && from >= 1) {
+                return transactions(from - 1);
+            }
+        } catch(NumberFormatException e) {
+            // Falls through to the usage message
         }
-        
-        System.out.println("\nTotal Revenue: $" + String.format("%.2f", totalRevenue));
-        System.out.println("----------------------------------------");
+        return new CommandResult.Message("Usage: TRANSACTIONS [first transaction number]");
     }
 
-    private void listTransactions() {
-        System.out.println("TRANSACTIONS: Requesting transaction history for" + shopLocation);
-        System.out.println("----------------------------------------");
-        System.out.println("Transaction History");
-        double totalDiscount = 0;
-        
-        for(Transaction t : rentalHistory) {
-            System.out.println(t);
-            if(t.isDiscountApplied()) {
-                double discount = (0.10 * t.getCharge()) / 0.90;
-                totalDiscount += discount;
+    public CommandResult.TransactionReport transactions() {
+        return transactions(-1);
+    }
+
+    // A page of the history from the given index, or the latest page when it is negative. The segments are
+    // read after the lock is released; the view keeps the ones that existed when it was taken.
+    public CommandResult.TransactionReport transactions(long from) {
+        Iterable<Transaction> view;
+        long total;
+        RevenueAggregates totals;
+        lockStateForRead();
+        try {
+            total = rentalHistory.size();
+            if(from < 0) {
+                from = Math.max(0, total - TRANSACTION_PAGE_SIZE);
             }
+            view = rentalHistory.view(from, TRANSACTION_PAGE_SIZE);
+            totals = revenue.copy();
+        } finally {
+            stateLock.readLock().unlock();
         }
-        
-        System.out.println("\nTotal Earnings: $" + String.format("%.2f", totalRevenue));
-        System.out.println("Total Discounts Given: $" + String.format("%.2f", totalDiscount));
-        System.out.println("----------------------------------------");
+        List<Transaction> page = new ArrayList<>(TRANSACTION_PAGE_SIZE);
+        for(Transaction t : view) {
+            page.add(t);
+        }
+        return new CommandResult.TransactionReport(shopLocation, page, from, total, totals);
     }
 
     private void initializeInventory() {
         if(availableVehicles.isEmpty()) {
             for(String type: new String[]{"SEDAN", "SUV", "VAN"}) {
-                Vehicle vehicle = requestVehicleFromLots(type);
-                if(vehicle != null) {
-                    availableVehicles.put(vehicle.getLicensePlate(), vehicle);
+                List<LotFile.Claim> claims = claimFromLots(type, 1);
+                if(!claims.isEmpty()) {
+                    Vehicle vehicle = claims.get(0).vehicles.get(0);
+                    availableVehicles.put(vehicle);
+                    commandLog.append(CommandLog.STOCK, vehicle.getLicensePlate(), vehicle.getType(), vehicle.getKilometers(), false);
+                    pendingClaims.addAll(claims);
                     System.out.println("Initialized shop with vehicle " + vehicle.getLicensePlate() + " (" + vehicle.getType() + ")");
                     break;
                 }
@@ -275,138 +755,272 @@ public class RentalShop {
         }
     }
 
-    private Vehicle requestVehicleFromLots(String vehicleType) {
-        for(String lotName : associatedLots) {
-            String lotFile = lotName + ".txt";
-            List<Vehicle> lotVehicles = readLotFileWithLock(lotFile);
-            Iterator<Vehicle> iter = lotVehicles.iterator();
-            while(iter.hasNext()) {
-                Vehicle v = iter.next();
-                if(v.getType().equalsIgnoreCase(vehicleType)) {
-                    iter.remove();
-                    writeLotFileWithLock(lotFile, lotVehicles);
-                    return v;
+    // Claims up to count cars across the lots, one non-empty claim per lot that had any. The caller logs
+    // the cars and then queues the claims on pendingClaims.
+    private List<LotFile.Claim> claimFromLots(String vehicleType, int count) {
+        long start = System.nanoTime();
+        try {
+            List<LotFile.Claim> claims = new ArrayList<>();
+            int claimed = 0;
+            for(String lotName : associatedLots) {
+                LotFile.Claim claim = LotFile.shared(lotName).claim(vehicleType, count - claimed, lotOwner);
+                if(!claim.isEmpty()) {
+                    claims.add(claim);
+                    claimed += claim.vehicles.size();
+                }
+                if(claimed == count) {
+                    break;
                 }
             }
+            return claims;
+        } finally {
+            metrics.recordSince(ShopMetrics.Timer.LOT_CHECKOUT, start);
+        }
+    }
+
+    // Runs after the command log is replayed and before rentals are checked against the registry. A claim
+    // left over from the last run is released if the log has the car; otherwise the checkout never became
+    // durable, so the car goes back to its lot along with any registry entry the unlogged rent made.
+    private void resolveLotClaims() {
+        for(String lotName : associatedLots) {
+            for(Vehicle vehicle : LotFile.shared(lotName).resolveClaims(lotOwner, this::holds)) {
+                removeFromGlobalRegistry(Collections.singletonList(vehicle.getLicensePlate()));
+                System.out.println("Returned vehicle " + vehicle.getLicensePlate() + " to lot " + lotName + "; its checkout was never logged");
+            }
         }
-        return null;
     }
 
-    private void returnVehicleToLot(Vehicle vehicle, String lotName) {
-        String lotFile = lotName + ".txt";
-        List<Vehicle> lotVehicles = readLotFileWithLock(lotFile);
-        lotVehicles.add(vehicle);
-        writeLotFileWithLock(lotFile, lotVehicles);
+    private boolean holds(String plate) {
+        return availableVehicles.get(plate) != null || activeRentals.find(plate) != VehicleTable.NO_ROW
+            || offloading.find(plate) != VehicleTable.NO_ROW;
+    }
+
+    private void startOffloader() {
+        offloader = new OverflowOffloader(shopLocation, associatedLots, metrics, new OverflowOffloader.Listener() {
+            // A car never reaches a lot before the record taking it out of the shop is durable
+            @Override
+            public void beforeWrite() {
+                syncLog();
+            }
+
+            @Override
+            public void offloaded(List<Vehicle> vehicles) {
+                lockState();
+                try {
+                    for (Vehicle v : vehicles) {
+                        offloading.remove(v.getLicensePlate());
+                        commandLog.append(CommandLog.OFFLOADED, v.getLicensePlate(), v.getType(), v.getKilometers(), false);
+                    }
+                } finally {
+                    unlockState();
+                }
+            }
+        });
+        resumeOffloads();
+    }
+
+    // Offloads still pending from the last run are queued again, unless the lot write did happen before the
+    // shop stopped (the car is in a lot, or has since been rented from one)
+    private void resumeOffloads() {
+        List<Vehicle> requeue = new ArrayList<>();
+        for (int row = offloading.size() - 1; row >= 0; row--) {
+            Vehicle vehicle = offloading.vehicleAt(row);
+            if (isInLotOrRented(vehicle.getLicensePlate())) {
+                offloading.removeRow(row);
+                commandLog.append(CommandLog.OFFLOADED, vehicle.getLicensePlate(), vehicle.getType(), vehicle.getKilometers(), false);
+            } else {
+                requeue.add(vehicle);
+            }
+        }
+        for (Vehicle vehicle : requeue) {
+            System.out.println("Resuming move of vehicle " + vehicle.getLicensePlate() + " to lot " + offloader.enqueue(vehicle));
+        }
     }
 
-    private List<Vehicle> readLotFileWithLock(String fileName) {
-        List<Vehicle> vehicles = new ArrayList<>();
-        File file = new File(fileName);
-        if(!file.exists()) {
-            return vehicles;
+    private boolean isInLotOrRented(String plate) {
+        try {
+            if (rentedRegistry.contains(plate)) {
+                return true;
+            }
+        } catch (IOException e) {
+            System.err.println("Error reading rented registry: " + e.getMessage());
         }
-        
-        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
-             FileChannel channel = raf.getChannel();
-             FileLock lock = channel.lock(0L, Long.MAX_VALUE, true)) {
-             
-            raf.seek(0);
-            String line;
-            while((line = raf.readLine()) != null) {
-                processVehicleLine(line, vehicles);
+        for (String lotName : associatedLots) {
+            if (LotFile.shared(lotName).contains(plate)) {
+                return true;
             }
-        } catch(IOException e) {
-            System.err.println("Error reading lot file (" + fileName + "): " + e.getMessage());
         }
-        return vehicles;
+        return false;
     }
 
-    private void processVehicleLine(String line, List<Vehicle> vehicles) {
-        String[] parts = line.split(",");
-        if(parts.length >= 3) {
-            String plate = parts[0].trim();
-            String type = parts[1].trim();
-            int km = Integer.parseInt(parts[2].trim());
-            vehicles.add(new Vehicle(plate, type, km));
+    private void recoverCommandLog() {
+        try {
+            commandLog.recover(snapshotSequence, this::replayLogEntry);
+        } catch (IOException e) {
+            System.err.println("Error replaying command log: " + e.getMessage());
         }
     }
 
-    private void writeLotFileWithLock(String fileName, List<Vehicle> vehicles) {
-        File file = new File(fileName);
-        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
-             FileChannel channel = raf.getChannel();
-             FileLock lock = channel.lock()) {
-             
-            raf.setLength(0);
-            for(Vehicle v : vehicles) {
-                raf.writeBytes(v.getLicensePlate() + "," + v.getType() + "," + v.getKilometers() + System.lineSeparator());
-            }
-        } catch(IOException e) {
-            System.err.println("Error writing lot file (" + fileName + "): " + e.getMessage());
+    // Re-applies a logged state change without repeating its lot or registry side effects
+    private void replayLogEntry(CommandLog.Entry entry) {
+        switch(entry.op) {
+            case CommandLog.STOCK:
+                availableVehicles.put(new Vehicle(entry.plate, entry.type, entry.kilometers), entry.discount ? LOT_DISCOUNT : 0);
+                break;
+            case CommandLog.RENT:
+                Vehicle vehicle = availableVehicles.get(entry.plate);
+                applyRent(vehicle != null ? vehicle : new Vehicle(entry.plate, entry.type, entry.kilometers), entry.discount);
+                break;
+            case CommandLog.RETURN:
+                RentedRecord record = removeRental(entry.plate);
+                if (record == null) {
+                    record = new RentedRecord(new Vehicle(entry.plate, entry.type, 0), entry.discount);
+                }
+                rentalHistory.appendReplayed(settleReturn(record, entry.kilometers));
+                break;
+            case CommandLog.MOVE_TO_LOT:
+                availableVehicles.remove(entry.plate);
+                offloading.put(new Vehicle(entry.plate, entry.type, entry.kilometers), (byte) 0);
+                break;
+            case CommandLog.OFFLOADED:
+                offloading.remove(entry.plate);
+                break;
+            default:
+                System.err.println("Skipping unknown command log entry " + entry.op);
+        }
+    }
+
+    private void startCheckpointer() {
+        checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, shopLocation + "-checkpointer");
+            t.setDaemon(true);
+            return t;
+        });
+        checkpointer.scheduleWithFixedDelay(this::checkpointIfDue, 1, 1, TimeUnit.SECONDS);
+        checkpointer.scheduleWithFixedDelay(() -> metrics.dump(shopLocation, statsFile), STATS_DUMP_INTERVAL_MS, STATS_DUMP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void checkpointIfDue() {
+        int pending = commandLog.recordsSinceReset();
+        boolean intervalElapsed = System.currentTimeMillis() - lastCheckpointMillis >= CHECKPOINT_INTERVAL_MS;
+        if (pending >= CHECKPOINT_MAX_LOG_RECORDS || (pending > 0 && intervalElapsed)) {
+            checkpoint();
         }
     }
 
-    private void saveState() {
-        saveBinaryState();
-        writeHumanState();
+    // Compacts the command log into a fresh snapshot; only truncates the log once the snapshot is on disk.
+    // The read lock keeps commands from appending while the snapshot is cut.
+    void checkpoint() {
+        lockStateForRead();
+        try {
+            syncLog();
+            long start = System.nanoTime();
+            boolean saved = saveBinaryState();
+            metrics.recordSince(ShopMetrics.Timer.SNAPSHOT_SAVE, start);
+            if (saved) {
+                commandLog.reset();
+            }
+            lastCheckpointMillis = System.currentTimeMillis();
+        } finally {
+            stateLock.readLock().unlock();
+        }
     }
 
-    private void saveBinaryState() {
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(binaryStateFile))) {
-            oos.writeObject(availableVehicles);
-            oos.writeObject(activeRentals);
-            oos.writeObject(rentalHistory);
-            oos.writeDouble(totalRevenue);
-            oos.writeInt(parkingCapacity);
-            oos.writeObject(associatedLots);
+    private boolean saveBinaryState() {
+        ShopSnapshot snapshot = new ShopSnapshot();
+        snapshot.location = shopLocation;
+        snapshot.inventory = availableVehicles.table();
+        snapshot.rentals = activeRentals;
+        snapshot.offloading = offloading;
+        snapshot.setHistoryTail(rentalHistory.tail());
+        snapshot.parkingCapacity = parkingCapacity;
+        snapshot.lots = associatedLots;
+        snapshot.sequence = commandLog.lastSequence();
+        snapshot.sealedHistory = rentalHistory.sealedCount();
+        snapshot.revenue = revenue;
+        try {
+            snapshot.write(binaryStateFile);
         } catch (IOException e) {
             System.err.println("Error saving binary state: " + e.getMessage());
+            return false;
         }
+        snapshotSequence = snapshot.sequence;
+        retireLegacyState();
+        return true;
     }
 
-    private void writeHumanState() {
-        try (PrintWriter pw = new PrintWriter(new FileWriter(textStateFile))) {
-            writeShopHeader(pw);
-            writeInventorySection(pw);
-            writeRentedVehiclesSection(pw);
-            writeTransactionsSection(pw);
+    // Once the state is in the new format the old serialized snapshot is kept aside rather than deleted
+    private void retireLegacyState() {
+        File legacy = new File(legacyStateFile);
+        if (!legacy.exists()) {
+            return;
+        }
+        try {
+            Files.move(legacy.toPath(), Paths.get(legacyStateFile + ".migrated"), StandardCopyOption.REPLACE_EXISTING);
         } catch (IOException e) {
-            System.err.println("Error writing human state: " + e.getMessage());
+            System.err.println("Error retiring legacy state: " + e.getMessage());
+        }
+    }
+
+    // Runs on the renderer thread: the state is copied under the read lock and formatted after it is released
+    private void writeHumanState(PrintWriter pw) {
+        List<Vehicle> inventory;
+        VehicleTable rentals;
+        List<Transaction> tail;
+        int emptySlots;
+        double revenueSoFar;
+        long sealed;
+        lockStateForRead();
+        try {
+            inventory = new ArrayList<>(availableVehicles.values());
+            rentals = activeRentals.copy();
+            tail = rentalHistory.tail();
+            emptySlots = parkingCapacity - (availableVehicles.size() + activeRentals.size());
+            revenueSoFar = revenue.totalRevenue();
+            sealed = rentalHistory.sealedCount();
+        } finally {
+            stateLock.readLock().unlock();
         }
+        writeShopHeader(pw, emptySlots, revenueSoFar);
+        writeInventorySection(pw, inventory);
+        writeRentedVehiclesSection(pw, rentals);
+        writeTransactionsSection(pw, tail, sealed);
     }
 
-    private void writeShopHeader(PrintWriter pw) {
+    private void writeShopHeader(PrintWriter pw, int emptySlots, double revenueSoFar) {
         pw.println("LOCATION: " + shopLocation);
         pw.println("SPACES_AVAILABLE: " + parkingCapacity);
-        int empty = parkingCapacity - (availableVehicles.size() + activeRentals.size());
-        pw.println("EMPTY_SLOTS: " + empty);
-        pw.println("CASH_EARNED: $" + String.format("%.2f", totalRevenue));
+        pw.println("EMPTY_SLOTS: " + emptySlots);
+        pw.println("CASH_EARNED: $" + String.format("%.2f", revenueSoFar));
         pw.println();
     }
 
-    private void writeInventorySection(PrintWriter pw) {
+    private void writeInventorySection(PrintWriter pw, List<Vehicle> inventory) {
         pw.println("INVENTORY:");
-        for (Vehicle v : availableVehicles.values()) {
+        for (Vehicle v : inventory) {
             pw.printf("  %s,%s,%d%n", v.getLicensePlate(), v.getType(), v.getKilometers());
         }
         pw.println();
     }
 
-    private void writeRentedVehiclesSection(PrintWriter pw) {
+    private void writeRentedVehiclesSection(PrintWriter pw, VehicleTable rentals) {
         pw.println("RENTED_OUT:");
-        for (RentedRecord r : activeRentals.values()) {
+        for (int row = 0; row < rentals.size(); row++) {
             pw.printf("  %s,%s,%d,discount=%s%n",
-                r.vehicle.getLicensePlate(),
-                r.vehicle.getType(),
-                r.vehicle.getKilometers(),
-                r.hasLotDiscount ? "10%" : "0%");
+                rentals.plateStringAt(row),
+                rentals.typeNameAt(row),
+                rentals.kilometersAt(row),
+                (rentals.flagsAt(row) & LOT_DISCOUNT) != 0 ? "10%" : "0%");
         }
         pw.println();
     }
 
-    private void writeTransactionsSection(PrintWriter pw) {
+    private void writeTransactionsSection(PrintWriter pw, List<Transaction> tail, long sealed) {
         pw.println("TRANSACTIONS:");
-        for (Transaction t : rentalHistory) {
+        if (sealed > 0) {
+            pw.println("  (" + sealed + " earlier transactions are in " + shopLocation + ".history)");
+        }
+        for (Transaction t : tail) {
             pw.printf("  %s,%d,discount=%s,$%.2f%n",
                 t.getLicensePlate(),
                 t.getKilometers(),
@@ -415,83 +1029,133 @@ public class RentalShop {
         }
     }
 
-    @SuppressWarnings("unchecked")
     private void loadState() {
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(binaryStateFile))) {
-            availableVehicles = (Map<String, Vehicle>) ois.readObject();
-            activeRentals = (Map<String, RentedRecord>) ois.readObject();
-            rentalHistory = (List<Transaction>) ois.readObject();
-            totalRevenue = ois.readDouble();
-            parkingCapacity = ois.readInt();
-            associatedLots = (List<String>) ois.readObject();
+        String stateFile = new File(binaryStateFile).exists() ? binaryStateFile : legacyStateFile;
+        if (!new File(stateFile).exists()) {
+            return;
+        }
+        try {
+            ShopSnapshot snapshot = ShopSnapshot.read(shopLocation, stateFile);
+            availableVehicles = InventoryIndex.of(snapshot.inventory);
+            activeRentals = snapshot.rentals;
+            offloading = snapshot.offloading;
+            parkingCapacity = snapshot.parkingCapacity;
+            associatedLots = snapshot.lots;
+            snapshotSequence = snapshot.sequence;
+            rentalHistory.restore(snapshot.historyTail(), snapshot.sealedHistory);
+            revenue = snapshot.revenue != null ? snapshot.revenue : RevenueAggregates.rebuild(rentalHistory.view());
         } catch (Exception e) {
             System.err.println("Error loading binary state: " + e.getMessage());
         }
     }
 
+    // Drops rentals that another shop has since taken back; one index lookup per car this shop has out
     private void syncWithGlobalRegistryOnStartup() {
-        Set<String> registeredPlates = new HashSet<>();
-        File registryFile = new File(RENTAL_REGISTRY);
-        
-        if (registryFile.exists()) {
-            try (RandomAccessFile raf = new RandomAccessFile(registryFile, "r");
-                FileChannel channel = raf.getChannel();
-                FileLock lock = channel.lock(0L, Long.MAX_VALUE, true)) {
-                
-                String line;
-                while ((line = raf.readLine()) != null) {
-                    String[] parts = line.split(",");
-                    if (parts.length >= 1) registeredPlates.add(parts[0]);
+        // A crash between registering a rent and logging it leaves an entry for a car still in inventory
+        List<String> parked = new ArrayList<>();
+        for (Vehicle vehicle : availableVehicles.values()) {
+            parked.add(vehicle.getLicensePlate());
+        }
+        if (!parked.isEmpty()) {
+            removeFromGlobalRegistry(parked);
+        }
+        // Backwards, so the row moved into a removed slot has already been checked
+        for (int row = activeRentals.size() - 1; row >= 0; row--) {
+            try {
+                if (!rentedRegistry.contains(activeRentals.plateStringAt(row))) {
+                    activeRentals.removeRow(row);
                 }
             } catch (IOException e) {
-                System.err.println("Error reading global registry: " + e.getMessage());
+                System.err.println("Error reading rented registry: " + e.getMessage());
             }
         }
-        
-        activeRentals.keySet().removeIf(plate -> !registeredPlates.contains(plate));
     }
 
-    private void addToGlobalRegistry(String plate, String type, boolean discount) {
-        File file = new File(RENTAL_REGISTRY);
-        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
-            FileChannel ch = raf.getChannel();
-            FileLock lock = ch.lock()) {
-            raf.seek(raf.length());
-            raf.writeBytes(String.format("%s,%s,%b%n", plate, type, discount));
+    // False when the registry could not be written, in which case the caller must not rent the cars
+    private boolean addToGlobalRegistry(List<RentedRegistry.Entry> entries) {
+        if(entries.isEmpty()) {
+            return true;
+        }
+        long start = System.nanoTime();
+        try {
+            if(entries.size() == 1) {
+                RentedRegistry.Entry entry = entries.get(0);
+                rentedRegistry.put(entry.plate, entry.type, entry.discount);
+            } else {
+                rentedRegistry.putAll(entries);
+            }
+            return true;
         } catch (IOException e) {
             System.err.println("Error writing to rented registry: " + e.getMessage());
+            // The shards that were written must not keep entries for cars that stay here
+            List<String> plates = new ArrayList<>(entries.size());
+            for(RentedRegistry.Entry entry : entries) {
+                plates.add(entry.plate);
+            }
+            removeFromGlobalRegistry(plates);
+            return false;
+        } finally {
+            metrics.recordSince(ShopMetrics.Timer.REGISTRY, start);
         }
     }
 
-    private RentedRecord fetchFromGlobalRegistry(String plate) {
-        File file = new File(RENTAL_REGISTRY);
-        if (!file.exists()) return null;
-        
-        List<String> lines = new ArrayList<>();
-        RentedRecord found = null;
-        
-        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
-            FileChannel ch = raf.getChannel();
-            FileLock lock = ch.lock()) {
-            
-            raf.seek(0);
-            String line;
-            while ((line = raf.readLine()) != null) {
-                String[] parts = line.split(",");
-                if (parts[0].equals(plate) && found == null) {
-                    boolean discount = Boolean.parseBoolean(parts[2]);
-                    found = new RentedRecord(new Vehicle(plate, parts[1], 0), discount);
-                } else {
-                    lines.add(line);
-                }
+    // The removed entries line up with the plates, null where a plate was not registered. The whole array is
+    // null when the registry could not be updated, so no plate's answer is known.
+    private RentedRegistry.Entry[] removeFromGlobalRegistry(List<String> plates) {
+        long start = System.nanoTime();
+        try {
+            if(plates.size() == 1) {
+                return new RentedRegistry.Entry[]{rentedRegistry.remove(plates.get(0))};
             }
-            
-            raf.setLength(0);
-            for (String l : lines) raf.writeBytes(l + System.lineSeparator());
+            return rentedRegistry.removeAll(plates);
         } catch (IOException e) {
-            System.err.println("Error reading rented registry: " + e.getMessage());
+            System.err.println("Error writing to rented registry: " + e.getMessage());
+            return null;
+        } finally {
+            metrics.recordSince(ShopMetrics.Timer.REGISTRY, start);
+        }
+    }
+
+    static List<String> parseLots(String lotList) {
+        List<String> lots = new ArrayList<>();
+        for(String lot : lotList.split(",")) {
+            if(!lot.isBlank()) lots.add(lot.trim());
+        }
+        return lots;
+    }
+
+    static void configureRegistryShards(Map<String, String> flags) {
+        if (flags.containsKey("--registry-shards")) {
+            registryShards = Integer.parseInt(flags.get("--registry-shards"));
         }
-        return found;
+    }
+
+    // --prefetch=<n> keeps at least n cars of each type in stock, pulled from the lots in the background
+    static void configurePrefetch(Map<String, String> flags) {
+        if (flags.containsKey("--prefetch")) {
+            prefetchLowWater = Math.max(0, Integer.parseInt(flags.get("--prefetch")));
+        }
+    }
+
+    static void configureReportInterval(Map<String, String> flags) {
+        if (flags.containsKey("--report-interval")) {
+            reportIntervalMs = Math.max(1, Long.parseLong(flags.get("--report-interval")));
+        }
+    }
+
+    static void useOutputsDirectory(String directory) {
+        outputsDirectory = directory;
+        shopsDirectory = outputsDirectory + File.separator + "shops";
+        registryDirectory = outputsDirectory + File.separator + "registry";
+        statsDirectory = outputsDirectory + File.separator + "stats";
+        rentalRegistry = registryDirectory + File.separator + "rented_registry";
+    }
+
+    static void ensureDirectoriesExist() {
+        ensureOutputsDirectoryExists();
+        ensureRegistryDirectoryExists();
+        ensureShopsDirectoryExists();
+        ensureStatsDirectoryExists();
     }
 
     public static Map<String,String> parseArgs(String[] args) {
@@ -512,27 +1176,34 @@ public class RentalShop {
     }
 
     private static void ensureOutputsDirectoryExists() {
-        File outputsDir = new File(OUTPUTS_DIRECTORY);
+        File outputsDir = new File(outputsDirectory);
         if (!outputsDir.exists()) {
             outputsDir.mkdir();
         }
     }
 
     private static void ensureShopsDirectoryExists() {
-        File shopsDir = new File(SHOPS_DIRECTORY);
+        File shopsDir = new File(shopsDirectory);
         if (!shopsDir.exists()) {
             shopsDir.mkdir();
         }
     }
 
+    private static void ensureStatsDirectoryExists() {
+        File statsDir = new File(statsDirectory);
+        if (!statsDir.exists()) {
+            statsDir.mkdir();
+        }
+    }
+
     private static void ensureRegistryDirectoryExists() {
-        File registryDir = new File(REGISTRY_DIRECTORY);
+        File registryDir = new File(registryDirectory);
         if (!registryDir.exists()) {
             registryDir.mkdir();
         }
     }
 
-    private static class RentedRecord implements Serializable {
+    static class RentedRecord implements Serializable {
         private static final long serialVersionUID = 1L;
         Vehicle vehicle;
         boolean hasLotDiscount;
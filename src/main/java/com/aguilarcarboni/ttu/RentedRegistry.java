@@ -0,0 +1,573 @@
+package com.aguilarcarboni.ttu;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.*;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Cars currently out with a customer, kept as an on-disk open-addressing hash table keyed by plate code.
+// Removals leave tombstones so a lookup or delete never moves other entries; compaction rehashes them away.
+// A rehash builds the new table in a temp file and renames it over the old one, so a crash leaves either table
+// whole. The old file is marked retired before the rename; a process still holding it follows to the new file,
+// and finishes the rename itself if the rehashing process died in between. A read-only handle, for reports
+// run next to live shops, takes only shared locks and reads a finished replacement where it lies.
+//
+// Header (32 bytes): magic, format version, bucket size, capacity, live count, tombstone count, generation,
+// retired flag.
+// Bucket (8 bytes): key (0 empty, -1 tombstone, otherwise plate code + 1), type code, discount flag.
+public class RentedRegistry implements Closeable {
+    static final int MAGIC = 0x52524547; // "RREG"
+    static final short FORMAT_VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final int BUCKET_SIZE = 8;
+    static final int INITIAL_CAPACITY = 1024;
+
+    private static final int EMPTY = 0;
+    private static final int TOMBSTONE = -1;
+    private static final double MAX_LOAD = 0.7;
+
+    private static final int H_CAPACITY = 8;
+    private static final int H_LIVE = 12;
+    private static final int H_TOMBSTONES = 16;
+    private static final int H_GENERATION = 20;
+    private static final int H_RETIRED = 28;
+
+    private final Path path;
+    private final boolean readOnly;
+    // Swapped for the new file after a rehash; only touched under processLock
+    private FileChannel channel;
+    private FileLock fileLock;
+    // Serializes this JVM's threads; the FileLock serializes processes
+    private final ReentrantLock processLock = new ReentrantLock();
+
+    public static class Entry {
+        public final String plate;
+        public final String type;
+        public final boolean discount;
+
+        Entry(String plate, String type, boolean discount) {
+            this.plate = plate;
+            this.type = type;
+            this.discount = discount;
+        }
+    }
+
+    private RentedRegistry(Path path, boolean readOnly) throws IOException {
+        this.path = path;
+        this.readOnly = readOnly;
+        this.channel = openChannel(path, readOnly);
+    }
+
+    private static FileChannel openChannel(Path path, boolean readOnly) throws IOException {
+        if(readOnly) {
+            return FileChannel.open(path, StandardOpenOption.READ);
+        }
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    public static RentedRegistry open(String indexPath, String legacyTextPath) throws IOException {
+        RentedRegistry registry = new RentedRegistry(Paths.get(indexPath), false);
+        registry.processLock.lock();
+        try {
+            registry.fileLock = registry.channel.lock();
+            if(registry.channel.size() < HEADER_SIZE) {
+                registry.initialize(INITIAL_CAPACITY);
+                if(legacyTextPath != null) {
+                    registry.importLegacyText(Paths.get(legacyTextPath));
+                }
+            } else {
+                registry.validateHeader();
+            }
+        } finally {
+            registry.unlockTable();
+        }
+        return registry;
+    }
+
+    // For lookups only: the file must exist, and every write fails
+    public static RentedRegistry openReadOnly(String indexPath) throws IOException {
+        RentedRegistry registry = new RentedRegistry(Paths.get(indexPath), true);
+        try {
+            registry.lockTable(true);
+            try {
+                registry.validateHeader();
+            } finally {
+                registry.unlockTable();
+            }
+        } catch(IOException e) {
+            registry.close();
+            throw e;
+        }
+        return registry;
+    }
+
+    public void put(String plate, String type, boolean discount) throws IOException {
+        int key = keyOf(plate);
+        if(key == EMPTY) {
+            throw new IllegalArgumentException("Invalid plate: " + plate);
+        }
+        Header header = lockTable(false);
+        try {
+            if(header.live + header.tombstones + 1 > header.capacity * MAX_LOAD) {
+                header = rehash(header, 1);
+            }
+            insert(header, key, VehicleType.codeOf(type), discount);
+            writeHeader(header);
+        } finally {
+            unlockTable();
+        }
+    }
+
+    // Registers every entry under one lock and one header write
+    public void putAll(List<Entry> entries) throws IOException {
+        int[] keys = new int[entries.size()];
+        for(int i = 0; i < keys.length; i++) {
+            keys[i] = keyOf(entries.get(i).plate);
+            if(keys[i] == EMPTY) {
+                throw new IllegalArgumentException("Invalid plate: " + entries.get(i).plate);
+            }
+        }
+        Header header = lockTable(false);
+        try {
+            if(header.live + header.tombstones + keys.length > header.capacity * MAX_LOAD) {
+                header = rehash(header, keys.length);
+            }
+            for(int i = 0; i < keys.length; i++) {
+                Entry entry = entries.get(i);
+                insert(header, keys[i], VehicleType.codeOf(entry.type), entry.discount);
+            }
+            writeHeader(header);
+        } finally {
+            unlockTable();
+        }
+    }
+
+    public Entry get(String plate) throws IOException {
+        int key = keyOf(plate);
+        if(key == EMPTY) {
+            return null;
+        }
+        Header header = lockTable(true);
+        try {
+            int bucket = find(header, key);
+            return bucket < 0 ? null : toEntry(plate, readBucket(bucket));
+        } finally {
+            unlockTable();
+        }
+    }
+
+    public boolean contains(String plate) throws IOException {
+        return get(plate) != null;
+    }
+
+    // Removes the plate and returns what was registered for it, or null if it was not rented out
+    public Entry remove(String plate) throws IOException {
+        int key = keyOf(plate);
+        if(key == EMPTY) {
+            return null;
+        }
+        Header header = lockTable(false);
+        try {
+            int bucket = find(header, key);
+            if(bucket < 0) {
+                return null;
+            }
+            ByteBuffer data = readBucket(bucket);
+            Entry entry = toEntry(plate, data);
+            data.putInt(0, TOMBSTONE);
+            writeFully(data, bucketOffset(bucket));
+            header.live--;
+            header.tombstones++;
+            writeHeader(header);
+            return entry;
+        } finally {
+            unlockTable();
+        }
+    }
+
+    // Removes every plate under one lock and one header write; the result lines up with the plates,
+    // with null for each one that was not rented out
+    public Entry[] removeAll(List<String> plates) throws IOException {
+        Entry[] removed = new Entry[plates.size()];
+        Header header = lockTable(false);
+        try {
+            boolean changed = false;
+            for(int i = 0; i < removed.length; i++) {
+                int key = keyOf(plates.get(i));
+                int bucket = key == EMPTY ? -1 : find(header, key);
+                if(bucket < 0) {
+                    continue;
+                }
+                ByteBuffer data = readBucket(bucket);
+                removed[i] = toEntry(plates.get(i), data);
+                data.putInt(0, TOMBSTONE);
+                writeFully(data, bucketOffset(bucket));
+                header.live--;
+                header.tombstones++;
+                changed = true;
+            }
+            if(changed) {
+                writeHeader(header);
+            }
+            return removed;
+        } finally {
+            unlockTable();
+        }
+    }
+
+    public int size() throws IOException {
+        Header header = lockTable(true);
+        try {
+            return header.live;
+        } finally {
+            unlockTable();
+        }
+    }
+
+    public void forEach(Consumer<Entry> action) throws IOException {
+        Header header = lockTable(true);
+        try {
+            ByteBuffer table = readFully(HEADER_SIZE, header.capacity * BUCKET_SIZE);
+            for(int i = 0; i < header.capacity; i++) {
+                int key = table.getInt(i * BUCKET_SIZE);
+                if(key != EMPTY && key != TOMBSTONE) {
+                    action.accept(toEntry(PlateCodec.decode(key - 1), table.slice(i * BUCKET_SIZE, BUCKET_SIZE)));
+                }
+            }
+        } finally {
+            unlockTable();
+        }
+    }
+
+    // Rehashes once tombstones take up a quarter of the table, shrinking it if most of it is now empty
+    public void compactIfNeeded() {
+        try {
+            Header header = lockTable(false);
+            try {
+                if(header.tombstones > header.capacity / 4) {
+                    rehash(header, 1);
+                }
+            } finally {
+                unlockTable();
+            }
+        } catch(IOException e) {
+            System.err.println("Error compacting rented registry: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        processLock.lock();
+        try {
+            channel.close();
+        } finally {
+            processLock.unlock();
+        }
+    }
+
+    private static class Header {
+        int capacity;
+        int live;
+        int tombstones;
+        long generation;
+        boolean retired;
+    }
+
+    // Takes this JVM's lock and the file lock on the current table, following it to a new file whenever a
+    // rehash has retired the one this handle has open
+    private Header lockTable(boolean shared) throws IOException {
+        if(readOnly && !shared) {
+            throw new IOException("Rented registry " + path + " is open read-only");
+        }
+        processLock.lock();
+        try {
+            return lockCurrent(shared);
+        } catch(IOException | RuntimeException e) {
+            if(fileLock != null) {
+                fileLock.release();
+                fileLock = null;
+            }
+            processLock.unlock();
+            throw e;
+        }
+    }
+
+    private void unlockTable() throws IOException {
+        try {
+            if(fileLock != null) {
+                fileLock.release();
+                fileLock = null;
+            }
+        } finally {
+            processLock.unlock();
+        }
+    }
+
+    private Header lockCurrent(boolean shared) throws IOException {
+        long followedFrom = -1;
+        while(true) {
+            fileLock = channel.lock(0L, Long.MAX_VALUE, shared);
+            Header header = readHeader();
+            if(!header.retired) {
+                return header;
+            }
+            if(header.generation == followedFrom) {
+                throw new IOException("Rented registry " + path + " was retired without a replacement");
+            }
+            followedFrom = header.generation;
+            fileLock.release();
+            fileLock = null;
+            if(readOnly) {
+                openReplacement(header.generation + 1);
+            } else {
+                followReplacement();
+            }
+        }
+    }
+
+    // Holding the retired file exclusively, no rehash of it is still running; if its replacement was never
+    // renamed into place, it is complete (it was synced before the old file was retired), so finish the rename
+    private void followReplacement() throws IOException {
+        try (FileLock lock = channel.lock()) {
+            Header header = readHeader();
+            Path replacement = rehashPath(header.generation + 1);
+            if(Files.exists(replacement)) {
+                Files.move(replacement, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+        }
+        channel.close();
+        channel = openChannel(path, false);
+    }
+
+    // A read-only handle cannot finish the rename, but the replacement is complete once the old file is
+    // retired, so it reads the temp file if the rename has not happened yet
+    private void openReplacement(long generation) throws IOException {
+        channel.close();
+        Path replacement = rehashPath(generation);
+        try {
+            channel = openChannel(replacement, true);
+        } catch(NoSuchFileException e) {
+            channel = openChannel(path, true);
+        }
+    }
+
+    private Path rehashPath(long generation) {
+        return path.resolveSibling(path.getFileName() + ".rehash-" + generation);
+    }
+
+    private static int keyOf(String plate) {
+        int code = PlateCodec.encode(plate);
+        return code == PlateCodec.INVALID ? EMPTY : code + 1;
+    }
+
+    private static int home(int key, int capacity) {
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (capacity - 1);
+    }
+
+    private int find(Header header, int key) throws IOException {
+        int mask = header.capacity - 1;
+        for(int probe = 0, bucket = home(key, header.capacity); probe < header.capacity; probe++, bucket = (bucket + 1) & mask) {
+            int current = readBucketKey(bucket);
+            if(current == key) {
+                return bucket;
+            }
+            if(current == EMPTY) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private void insert(Header header, int key, byte typeCode, boolean discount) throws IOException {
+        int mask = header.capacity - 1;
+        int firstTombstone = -1;
+        int target = -1;
+        for(int probe = 0, bucket = home(key, header.capacity); probe < header.capacity; probe++, bucket = (bucket + 1) & mask) {
+            int current = readBucketKey(bucket);
+            if(current == key) {
+                target = bucket;
+                break;
+            }
+            if(current == TOMBSTONE && firstTombstone < 0) {
+                firstTombstone = bucket;
+            } else if(current == EMPTY) {
+                target = firstTombstone >= 0 ? firstTombstone : bucket;
+                if(target == firstTombstone) {
+                    header.tombstones--;
+                }
+                header.live++;
+                break;
+            }
+        }
+        if(target < 0) {
+            throw new IOException("Rented registry " + path + " is full");
+        }
+        ByteBuffer data = ByteBuffer.allocate(BUCKET_SIZE);
+        data.putInt(0, key);
+        data.put(4, typeCode);
+        data.put(5, (byte) (discount ? 1 : 0));
+        writeFully(data, bucketOffset(target));
+    }
+
+    // Rebuilds the table without tombstones at the smallest capacity that keeps the live entries plus the
+    // incoming ones under half the load limit, and moves this handle over to it; returns the new table's header
+    // with the file lock held on it
+    private Header rehash(Header header, int incoming) throws IOException {
+        ByteBuffer table = readFully(HEADER_SIZE, header.capacity * BUCKET_SIZE);
+        int newCapacity = INITIAL_CAPACITY;
+        while(header.live + incoming > newCapacity * MAX_LOAD / 2) {
+            newCapacity *= 2;
+        }
+        ByteBuffer rebuilt = ByteBuffer.allocate(newCapacity * BUCKET_SIZE);
+        int mask = newCapacity - 1;
+        for(int i = 0; i < header.capacity; i++) {
+            int key = table.getInt(i * BUCKET_SIZE);
+            if(key == EMPTY || key == TOMBSTONE) {
+                continue;
+            }
+            int bucket = home(key, newCapacity);
+            while(rebuilt.getInt(bucket * BUCKET_SIZE) != EMPTY) {
+                bucket = (bucket + 1) & mask;
+            }
+            rebuilt.put(bucket * BUCKET_SIZE, table.array(), i * BUCKET_SIZE, BUCKET_SIZE);
+        }
+
+        Header next = new Header();
+        next.capacity = newCapacity;
+        next.live = header.live;
+        next.generation = header.generation + 1;
+        Path replacement = rehashPath(next.generation);
+        try (FileChannel out = FileChannel.open(replacement, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(out, headerBytes(next), 0);
+            writeFully(out, rebuilt, HEADER_SIZE);
+            out.force(true);
+        }
+
+        header.retired = true;
+        writeHeader(header);
+        channel.force(false);
+        Files.move(replacement, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        fileLock.release();
+        fileLock = null;
+        channel.close();
+        channel = openChannel(path, false);
+        // Another process may get to the new table first, so take it as the lock finds it
+        return lockCurrent(false);
+    }
+
+    private void initialize(int capacity) throws IOException {
+        Header header = new Header();
+        header.capacity = capacity;
+        writeFully(ByteBuffer.allocate(capacity * BUCKET_SIZE), HEADER_SIZE);
+        writeHeader(header);
+    }
+
+    private void validateHeader() throws IOException {
+        ByteBuffer data = readFully(0, HEADER_SIZE);
+        if(data.getInt(0) != MAGIC || data.getShort(6) != BUCKET_SIZE) {
+            throw new IOException("Not a rented registry: " + path);
+        }
+        if(data.getShort(4) != FORMAT_VERSION) {
+            throw new IOException("Unsupported rented registry version " + data.getShort(4) + " in " + path);
+        }
+    }
+
+    // Imports "plate,type,discount" lines from the old text registry; later lines for a plate win
+    private void importLegacyText(Path legacyPath) throws IOException {
+        if(!Files.exists(legacyPath)) {
+            return;
+        }
+        int imported = 0;
+        try (BufferedReader reader = Files.newBufferedReader(legacyPath)) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                String[] parts = line.split(",");
+                int key = parts.length >= 3 ? keyOf(parts[0].trim()) : EMPTY;
+                if(key == EMPTY) {
+                    continue;
+                }
+                Header header = readHeader();
+                if(header.live + header.tombstones + 1 > header.capacity * MAX_LOAD) {
+                    header = rehash(header, 1);
+                }
+                insert(header, key, VehicleType.codeOf(parts[1].trim()), Boolean.parseBoolean(parts[2].trim()));
+                writeHeader(header);
+                imported++;
+            }
+        }
+        channel.force(false);
+        Files.move(legacyPath, legacyPath.resolveSibling(legacyPath.getFileName() + ".migrated"), StandardCopyOption.REPLACE_EXISTING);
+        System.out.println("Imported " + imported + " rentals from legacy registry " + legacyPath + " into " + path);
+    }
+
+    private Header readHeader() throws IOException {
+        ByteBuffer data = readFully(0, HEADER_SIZE);
+        Header header = new Header();
+        header.capacity = data.getInt(H_CAPACITY);
+        header.live = data.getInt(H_LIVE);
+        header.tombstones = data.getInt(H_TOMBSTONES);
+        header.generation = data.getLong(H_GENERATION);
+        header.retired = data.getInt(H_RETIRED) != 0;
+        return header;
+    }
+
+    private void writeHeader(Header header) throws IOException {
+        writeFully(headerBytes(header), 0);
+    }
+
+    private static ByteBuffer headerBytes(Header header) {
+        ByteBuffer data = ByteBuffer.allocate(HEADER_SIZE);
+        data.putInt(0, MAGIC);
+        data.putShort(4, FORMAT_VERSION);
+        data.putShort(6, (short) BUCKET_SIZE);
+        data.putInt(H_CAPACITY, header.capacity);
+        data.putInt(H_LIVE, header.live);
+        data.putInt(H_TOMBSTONES, header.tombstones);
+        data.putLong(H_GENERATION, header.generation);
+        data.putInt(H_RETIRED, header.retired ? 1 : 0);
+        return data;
+    }
+
+    private static Entry toEntry(String plate, ByteBuffer bucket) {
+        VehicleType type = VehicleType.fromCode(bucket.get(4));
+        return new Entry(plate, type == null ? "UNKNOWN" : type.name(), bucket.get(5) != 0);
+    }
+
+    private static long bucketOffset(int bucket) {
+        return HEADER_SIZE + (long) bucket * BUCKET_SIZE;
+    }
+
+    private int readBucketKey(int bucket) throws IOException {
+        return readFully(bucketOffset(bucket), 4).getInt(0);
+    }
+
+    private ByteBuffer readBucket(int bucket) throws IOException {
+        return readFully(bucketOffset(bucket), BUCKET_SIZE);
+    }
+
+    private ByteBuffer readFully(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while(buffer.hasRemaining()) {
+            if(channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Truncated rented registry " + path);
+            }
+        }
+        return buffer;
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        writeFully(channel, buffer, position);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        buffer.rewind();
+        while(buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+}
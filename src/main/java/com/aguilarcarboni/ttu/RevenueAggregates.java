@@ -0,0 +1,145 @@
+package com.aguilarcarboni.ttu;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+
+// Running revenue totals kept up to date as transactions are recorded, so reports never rescan history.
+// Amounts are whole cents; everything here can be rebuilt from the transaction store.
+public class RevenueAggregates implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public static final int SOURCE_SHOP = 0;
+    public static final int SOURCE_LOT = 1;
+    private static final VehicleType[] TYPES = VehicleType.values();
+
+    private long transactionCount;
+    private long revenueCents;
+    private long discountCents;
+    // Indexed by VehicleType code, 0 holding transactions without a known type
+    private final long[] countByType = new long[TYPES.length + 1];
+    private final long[] revenueCentsByType = new long[TYPES.length + 1];
+    // Indexed by SOURCE_SHOP / SOURCE_LOT; lot cars are the ones rented with the lot discount
+    private final long[] countBySource = new long[2];
+    private final long[] revenueCentsBySource = new long[2];
+
+    public static RevenueAggregates rebuild(Iterable<Transaction> history) {
+        RevenueAggregates aggregates = new RevenueAggregates();
+        for(Transaction t : history) {
+            aggregates.record(t);
+        }
+        return aggregates;
+    }
+
+    public void record(Transaction t) {
+        long charge = Math.round(t.getCharge() * 100);
+        int type = VehicleType.codeOf(t.getVehicleType());
+        int source = t.isDiscountApplied() ? SOURCE_LOT : SOURCE_SHOP;
+        transactionCount++;
+        revenueCents += charge;
+        if(t.isDiscountApplied()) {
+            // The undiscounted price is one unit per kilometer
+            discountCents += (long) t.getKilometers() * 100 - charge;
+        }
+        countByType[type]++;
+        revenueCentsByType[type] += charge;
+        countBySource[source]++;
+        revenueCentsBySource[source] += charge;
+    }
+
+    // Adds another shop's totals into these, for fleet-wide reports
+    public void merge(RevenueAggregates other) {
+        transactionCount += other.transactionCount;
+        revenueCents += other.revenueCents;
+        discountCents += other.discountCents;
+        for(int i = 0; i < countByType.length; i++) {
+            countByType[i] += other.countByType[i];
+            revenueCentsByType[i] += other.revenueCentsByType[i];
+        }
+        for(int i = 0; i < countBySource.length; i++) {
+            countBySource[i] += other.countBySource[i];
+            revenueCentsBySource[i] += other.revenueCentsBySource[i];
+        }
+    }
+
+    public long transactionCount() {
+        return transactionCount;
+    }
+
+    public double totalRevenue() {
+        return revenueCents / 100.0;
+    }
+
+    public double totalDiscount() {
+        return discountCents / 100.0;
+    }
+
+    public long countByType(VehicleType type) {
+        return countByType[type == null ? VehicleType.UNKNOWN_CODE : type.code()];
+    }
+
+    public double revenueByType(VehicleType type) {
+        return revenueCentsByType[type == null ? VehicleType.UNKNOWN_CODE : type.code()] / 100.0;
+    }
+
+    public long countBySource(int source) {
+        return countBySource[source];
+    }
+
+    public double revenueBySource(int source) {
+        return revenueCentsBySource[source] / 100.0;
+    }
+
+    public RevenueAggregates copy() {
+        RevenueAggregates copy = new RevenueAggregates();
+        copy.transactionCount = transactionCount;
+        copy.revenueCents = revenueCents;
+        copy.discountCents = discountCents;
+        System.arraycopy(countByType, 0, copy.countByType, 0, countByType.length);
+        System.arraycopy(revenueCentsByType, 0, copy.revenueCentsByType, 0, revenueCentsByType.length);
+        System.arraycopy(countBySource, 0, copy.countBySource, 0, countBySource.length);
+        System.arraycopy(revenueCentsBySource, 0, copy.revenueCentsBySource, 0, revenueCentsBySource.length);
+        return copy;
+    }
+
+    // Fixed-size encoding for the shop snapshot: the three totals, then each array in turn
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeLong(transactionCount);
+        out.writeLong(revenueCents);
+        out.writeLong(discountCents);
+        writeArray(out, countByType);
+        writeArray(out, revenueCentsByType);
+        writeArray(out, countBySource);
+        writeArray(out, revenueCentsBySource);
+    }
+
+    static RevenueAggregates readFrom(DataInputStream in) throws IOException {
+        RevenueAggregates aggregates = new RevenueAggregates();
+        aggregates.transactionCount = in.readLong();
+        aggregates.revenueCents = in.readLong();
+        aggregates.discountCents = in.readLong();
+        readArray(in, aggregates.countByType);
+        readArray(in, aggregates.revenueCentsByType);
+        readArray(in, aggregates.countBySource);
+        readArray(in, aggregates.revenueCentsBySource);
+        return aggregates;
+    }
+
+    private static void writeArray(DataOutputStream out, long[] values) throws IOException {
+        out.writeByte(values.length);
+        for(long v : values) {
+            out.writeLong(v);
+        }
+    }
+
+    // Tolerates a different array length, so a snapshot written with fewer or more vehicle types still loads
+    private static void readArray(DataInputStream in, long[] into) throws IOException {
+        int length = in.readUnsignedByte();
+        for(int i = 0; i < length; i++) {
+            long v = in.readLong();
+            if(i < into.length) {
+                into[i] = v;
+            }
+        }
+    }
+}
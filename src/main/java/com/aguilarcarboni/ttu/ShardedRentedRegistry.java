@@ -0,0 +1,241 @@
+package com.aguilarcarboni.ttu;
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// The rented registry split into shard files by plate hash, each with its own lock, so shops
+// registering or returning different cars rarely wait on each other.
+//
+// <base>.shards holds the shard count, fixed when the registry is created; shards are <base>-NN.idx.
+public class ShardedRentedRegistry implements Closeable {
+    public static final int DEFAULT_SHARDS = 16;
+    private static final long COMPACTION_INTERVAL_SECONDS = 10;
+
+    private static final Map<String, ShardedRentedRegistry> SHARED = new HashMap<>();
+    private static ScheduledExecutorService compactor;
+
+    private final RentedRegistry[] shards;
+
+    private ShardedRentedRegistry(RentedRegistry[] shards) {
+        this.shards = shards;
+    }
+
+    // The registry every shop in this JVM shares for a base path, with background compaction started on first use
+    public static synchronized ShardedRentedRegistry shared(String basePath, int shardCount) throws IOException {
+        ShardedRentedRegistry registry = SHARED.get(basePath);
+        if(registry == null) {
+            registry = open(basePath, shardCount);
+            SHARED.put(basePath, registry);
+            if(compactor == null) {
+                compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "rented-registry-compactor");
+                    t.setDaemon(true);
+                    return t;
+                });
+            }
+            compactor.scheduleWithFixedDelay(registry::compactIfNeeded, COMPACTION_INTERVAL_SECONDS, COMPACTION_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
+        return registry;
+    }
+
+    // Opens the shards, creating them on first use and migrating an older single-file or text registry into them.
+    // shardCount only applies when the registry is created; afterwards the count in the manifest wins.
+    public static ShardedRentedRegistry open(String basePath, int shardCount) throws IOException {
+        Path manifest = Paths.get(basePath + ".shards");
+        try (FileChannel channel = FileChannel.open(manifest, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+             FileLock lock = channel.lock()) {
+            String recorded = new String(Files.readAllBytes(manifest), StandardCharsets.UTF_8).trim();
+            if(!recorded.isEmpty()) {
+                return new ShardedRentedRegistry(openShards(basePath, Integer.parseInt(recorded)));
+            }
+            ShardedRentedRegistry registry = new ShardedRentedRegistry(openShards(basePath, Math.max(1, shardCount)));
+            registry.migrateSingleFile(basePath);
+            Files.write(manifest, String.valueOf(registry.shards.length).getBytes(StandardCharsets.UTF_8));
+            return registry;
+        }
+    }
+
+    // Opens the shards for lookups only, taking shared locks so running shops are not held up; null when no
+    // registry has been created yet
+    public static ShardedRentedRegistry openReadOnly(String basePath) throws IOException {
+        Path manifest = Paths.get(basePath + ".shards");
+        if(!Files.exists(manifest)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(manifest, StandardOpenOption.READ);
+             FileLock lock = channel.lock(0L, Long.MAX_VALUE, true)) {
+            String recorded = new String(Files.readAllBytes(manifest), StandardCharsets.UTF_8).trim();
+            if(recorded.isEmpty()) {
+                return null;
+            }
+            int count = Integer.parseInt(recorded);
+            RentedRegistry[] opened = new RentedRegistry[count];
+            try {
+                for(int i = 0; i < count; i++) {
+                    opened[i] = RentedRegistry.openReadOnly(shardPath(basePath, i));
+                }
+            } catch(IOException e) {
+                for(RentedRegistry shard : opened) {
+                    if(shard != null) {
+                        shard.close();
+                    }
+                }
+                throw e;
+            }
+            return new ShardedRentedRegistry(opened);
+        }
+    }
+
+    public int shardCount() {
+        return shards.length;
+    }
+
+    public void put(String plate, String type, boolean discount) throws IOException {
+        shardFor(plate).put(plate, type, discount);
+    }
+
+    public RentedRegistry.Entry get(String plate) throws IOException {
+        return shardFor(plate).get(plate);
+    }
+
+    public boolean contains(String plate) throws IOException {
+        return shardFor(plate).contains(plate);
+    }
+
+    public RentedRegistry.Entry remove(String plate) throws IOException {
+        return shardFor(plate).remove(plate);
+    }
+
+    // One locked update per shard the entries fall in
+    public void putAll(List<RentedRegistry.Entry> entries) throws IOException {
+        List<List<RentedRegistry.Entry>> byShard = new ArrayList<>(shards.length);
+        for(int i = 0; i < shards.length; i++) {
+            byShard.add(new ArrayList<>());
+        }
+        for(RentedRegistry.Entry entry : entries) {
+            byShard.get(shardIndex(entry.plate)).add(entry);
+        }
+        for(int i = 0; i < shards.length; i++) {
+            if(!byShard.get(i).isEmpty()) {
+                shards[i].putAll(byShard.get(i));
+            }
+        }
+    }
+
+    // One locked update per shard the plates fall in; the result lines up with the plates
+    public RentedRegistry.Entry[] removeAll(List<String> plates) throws IOException {
+        List<List<Integer>> byShard = new ArrayList<>(shards.length);
+        for(int i = 0; i < shards.length; i++) {
+            byShard.add(new ArrayList<>());
+        }
+        for(int i = 0; i < plates.size(); i++) {
+            byShard.get(shardIndex(plates.get(i))).add(i);
+        }
+        RentedRegistry.Entry[] removed = new RentedRegistry.Entry[plates.size()];
+        for(int shard = 0; shard < shards.length; shard++) {
+            List<Integer> positions = byShard.get(shard);
+            if(positions.isEmpty()) {
+                continue;
+            }
+            List<String> shardPlates = new ArrayList<>(positions.size());
+            for(int position : positions) {
+                shardPlates.add(plates.get(position));
+            }
+            RentedRegistry.Entry[] shardRemoved = shards[shard].removeAll(shardPlates);
+            for(int i = 0; i < shardRemoved.length; i++) {
+                removed[positions.get(i)] = shardRemoved[i];
+            }
+        }
+        return removed;
+    }
+
+    public int size() throws IOException {
+        int total = 0;
+        for(RentedRegistry shard : shards) {
+            total += shard.size();
+        }
+        return total;
+    }
+
+    public void forEach(Consumer<RentedRegistry.Entry> action) throws IOException {
+        for(RentedRegistry shard : shards) {
+            shard.forEach(action);
+        }
+    }
+
+    public void compactIfNeeded() {
+        for(RentedRegistry shard : shards) {
+            shard.compactIfNeeded();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for(RentedRegistry shard : shards) {
+            shard.close();
+        }
+    }
+
+    // Mixed differently from the in-shard bucket hash so each shard still spreads its plates evenly
+    int shardIndex(String plate) {
+        int code = PlateCodec.encode(plate);
+        if(code == PlateCodec.INVALID) {
+            return 0;
+        }
+        int h = code * 0x85EBCA6B;
+        h ^= h >>> 13;
+        return (h & Integer.MAX_VALUE) % shards.length;
+    }
+
+    private RentedRegistry shardFor(String plate) {
+        return shards[shardIndex(plate)];
+    }
+
+    private static RentedRegistry[] openShards(String basePath, int count) throws IOException {
+        RentedRegistry[] opened = new RentedRegistry[count];
+        for(int i = 0; i < count; i++) {
+            opened[i] = RentedRegistry.open(shardPath(basePath, i), null);
+        }
+        return opened;
+    }
+
+    private static String shardPath(String basePath, int shard) {
+        return String.format("%s-%02d.idx", basePath, shard);
+    }
+
+    // Moves entries from <base>.idx (and through it any <base>.txt) into the shards
+    private void migrateSingleFile(String basePath) throws IOException {
+        Path single = Paths.get(basePath + ".idx");
+        Path legacyText = Paths.get(basePath + ".txt");
+        if(!Files.exists(single) && !Files.exists(legacyText)) {
+            return;
+        }
+        int[] migrated = { 0 };
+        try (RentedRegistry source = RentedRegistry.open(single.toString(), legacyText.toString())) {
+            IOException[] failure = { null };
+            source.forEach(entry -> {
+                try {
+                    put(entry.plate, entry.type, entry.discount);
+                    migrated[0]++;
+                } catch(IOException e) {
+                    failure[0] = e;
+                }
+            });
+            if(failure[0] != null) {
+                throw failure[0];
+            }
+        }
+        Files.move(single, single.resolveSibling(single.getFileName() + ".migrated"), StandardCopyOption.REPLACE_EXISTING);
+        System.out.println("Migrated " + migrated[0] + " rentals from " + single + " into " + shards.length + " registry shards.");
+    }
+}
@@ -0,0 +1,92 @@
+package com.aguilarcarboni.ttu;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Map;
+
+// Drop-in replacement for running RentalShop directly: takes the same flags but --sync, plus --socket or --port,
+// and forwards stdin commands to a running ShopServer.
+public class ShopClient implements Closeable {
+    private final SocketChannel channel;
+    private final BufferedReader in;
+    private final Writer out;
+
+    public ShopClient(SocketChannel channel) {
+        this.channel = channel;
+        this.in = new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8));
+        this.out = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8));
+    }
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String> flags = RentalShop.parseArgs(args);
+        String location = flags.get("--location");
+        if (location == null) {
+            System.err.println("Error: --location must be provided.");
+            System.exit(1);
+        }
+        if (flags.containsKey("--sync")) {
+            System.err.println("Error: --sync only applies to a standalone RentalShop; the shop server syncs every command before responding.");
+            System.exit(1);
+        }
+
+        try (ShopClient client = connect(flags)) {
+            StringBuilder open = new StringBuilder("OPEN --location=" + location);
+            for(String flag : new String[]{"--spaces-available", "--lots"}) {
+                if(flags.containsKey(flag)) {
+                    open.append(' ').append(flag).append('=').append(flags.get(flag));
+                }
+            }
+            System.out.print(client.send(open.toString()));
+            System.out.println("Available commands: RENT, RETURN, LIST, TRANSACTIONS, STATS");
+            System.out.println("Type EXIT to quit.");
+
+            BufferedReader stdin = new BufferedReader(new InputStreamReader(System.in));
+            while(true) {
+                System.out.print("> ");
+                String input = stdin.readLine();
+                if(input == null || input.trim().equalsIgnoreCase("EXIT")) {
+                    break;
+                }
+                System.out.print(client.send(input.trim()));
+            }
+            client.out.write("EXIT\n");
+            client.out.flush();
+        }
+    }
+
+    public static ShopClient connect(Map<String, String> flags) throws IOException {
+        if(flags.containsKey("--socket")) {
+            SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+            channel.connect(UnixDomainSocketAddress.of(Paths.get(flags.get("--socket"))));
+            return new ShopClient(channel);
+        }
+        int port = Integer.parseInt(flags.getOrDefault("--port", String.valueOf(ShopServer.DEFAULT_PORT)));
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        channel.socket().setTcpNoDelay(true);
+        return new ShopClient(channel);
+    }
+
+    // Sends one request line and returns the response body
+    public String send(String request) throws IOException {
+        out.write(request);
+        out.write('\n');
+        out.flush();
+        StringBuilder response = new StringBuilder();
+        String line;
+        while((line = in.readLine()) != null && !line.equals(ShopServer.END_OF_RESPONSE)) {
+            response.append(line).append(System.lineSeparator());
+        }
+        return response.toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
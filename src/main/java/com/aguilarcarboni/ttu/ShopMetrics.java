@@ -0,0 +1,107 @@
+package com.aguilarcarboni.ttu;
+import java.io.*;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+
+// Latency histograms for shop commands, I/O phases and lock wait/hold times. Recording indexes a
+// fixed array by enum ordinal and bumps atomics, so the hot path takes no locks and allocates nothing.
+// Lot header locks are shared by every shop in the JVM, so they are recorded into one shared instance.
+public class ShopMetrics {
+    public enum Timer {
+        RENT, RETURN, LIST, TRANSACTIONS,
+        LOT_CHECKOUT, LOT_CHECKIN, REGISTRY, LOG_SYNC, SNAPSHOT_SAVE, TEXT_REPORT,
+        STATE_LOCK_WAIT, STATE_LOCK_HOLD,
+        LOT_LOCK_WAIT, LOT_LOCK_HOLD
+    }
+
+    private static final ShopMetrics SHARED = new ShopMetrics();
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[Timer.values().length];
+
+    public ShopMetrics() {
+        for(int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    public static ShopMetrics shared() {
+        return SHARED;
+    }
+
+    public void record(Timer timer, long nanos) {
+        histograms[timer.ordinal()].record(nanos);
+    }
+
+    // Records the time since startNanos and returns the current time, so phases can be chained
+    public long recordSince(Timer timer, long startNanos) {
+        long now = System.nanoTime();
+        histograms[timer.ordinal()].record(now - startNanos);
+        return now;
+    }
+
+    public LatencyHistogram histogram(Timer timer) {
+        return histograms[timer.ordinal()];
+    }
+
+    // Point-in-time copy of every timer that has samples, this shop's first and then the shared ones
+    public List<Row> snapshot() {
+        List<Row> rows = new ArrayList<>();
+        for(Timer timer : Timer.values()) {
+            LatencyHistogram h = timer == Timer.LOT_LOCK_WAIT || timer == Timer.LOT_LOCK_HOLD ? SHARED.histogram(timer) : histogram(timer);
+            if(h.count() > 0) {
+                rows.add(new Row(timer.name(), h.count(), (long) h.meanNanos(), h.percentileNanos(0.50),
+                    h.percentileNanos(0.99), h.percentileNanos(0.999), h.maxNanos()));
+            }
+        }
+        return rows;
+    }
+
+    // Rewrites the dump file atomically so a reader never sees a half-written one
+    public void dump(String location, String path) {
+        File tempFile = new File(path + ".tmp");
+        try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(tempFile)))) {
+            writer.println("{");
+            writer.println("  \"location\": \"" + location + "\",");
+            writer.println("  \"timestampMillis\": " + System.currentTimeMillis() + ",");
+            writer.println("  \"timers\": {");
+            List<Row> rows = snapshot();
+            for(int i = 0; i < rows.size(); i++) {
+                Row r = rows.get(i);
+                writer.print("    \"" + r.name + "\": {\"count\": " + r.count + ", \"meanNs\": " + r.meanNanos + ", \"p50Ns\": " + r.p50Nanos
+                    + ", \"p99Ns\": " + r.p99Nanos + ", \"p999Ns\": " + r.p999Nanos + ", \"maxNs\": " + r.maxNanos + "}");
+                writer.println(i + 1 < rows.size() ? "," : "");
+            }
+            writer.println("  }");
+            writer.println("}");
+        } catch (IOException e) {
+            System.err.println("Error writing stats dump: " + e.getMessage());
+            return;
+        }
+        try {
+            Files.move(tempFile.toPath(), Paths.get(path), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Error writing stats dump: " + e.getMessage());
+        }
+    }
+
+    public static class Row {
+        public final String name;
+        public final long count;
+        public final long meanNanos;
+        public final long p50Nanos;
+        public final long p99Nanos;
+        public final long p999Nanos;
+        public final long maxNanos;
+
+        Row(String name, long count, long meanNanos, long p50Nanos, long p99Nanos, long p999Nanos, long maxNanos) {
+            this.name = name;
+            this.count = count;
+            this.meanNanos = meanNanos;
+            this.p50Nanos = p50Nanos;
+            this.p99Nanos = p99Nanos;
+            this.p999Nanos = p999Nanos;
+            this.maxNanos = maxNanos;
+        }
+    }
+}
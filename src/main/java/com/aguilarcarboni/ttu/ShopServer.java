@@ -0,0 +1,154 @@
+package com.aguilarcarboni.ttu;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Resident process hosting many shops, so a session no longer pays JVM startup and a snapshot load.
+// Shops are opened on first use and kept warm; lot files and the rented registry are shared between them.
+//
+// Protocol, one UTF-8 line per request:
+//   OPEN --location=<name> [--spaces-available=<n>] [--lots=<a,b>]   selects the shop for this connection
+//   <shop command>                                                    RENT, RETURN, LIST, TRANSACTIONS, STATS
+//   EXIT                                                              closes the connection, the shop stays loaded
+// Every response is the command output followed by a line holding only END_OF_RESPONSE.
+// A response is only sent once the command is durable, so there is no --sync policy to choose in server mode;
+// concurrent connections to a shop still share command log fsyncs through its group commit.
+public class ShopServer {
+    public static final String END_OF_RESPONSE = ".";
+    public static final int DEFAULT_PORT = 7878;
+
+    // A shop is loaded outside the map, so opening one never blocks sessions on other shops; sessions opening
+    // the same shop wait on its future
+    private final Map<String, CompletableFuture<RentalShop>> shops = new ConcurrentHashMap<>();
+    private final ExecutorService connections = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "shop-connection");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public static void main(String[] args) throws IOException {
+        RentalShop.ensureDirectoriesExist();
+        Map<String, String> flags = RentalShop.parseArgs(args);
+        RentalShop.configureRegistryShards(flags);
+        RentalShop.configureReportInterval(flags);
+        RentalShop.configurePrefetch(flags);
+
+        ShopServer server = new ShopServer();
+        Runtime.getRuntime().addShutdownHook(new Thread(server::closeAll, "shop-server-shutdown"));
+        try (ServerSocketChannel listener = bind(flags)) {
+            System.out.println("Shop server listening on " + listener.getLocalAddress());
+            server.acceptConnections(listener);
+        }
+    }
+
+    void acceptConnections(ServerSocketChannel listener) throws IOException {
+        while(true) {
+            SocketChannel client = listener.accept();
+            connections.execute(() -> serve(client));
+        }
+    }
+
+    static ServerSocketChannel bind(Map<String, String> flags) throws IOException {
+        if(flags.containsKey("--socket")) {
+            Path socketPath = Paths.get(flags.get("--socket"));
+            Files.deleteIfExists(socketPath);
+            ServerSocketChannel listener = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            listener.bind(UnixDomainSocketAddress.of(socketPath));
+            return listener;
+        }
+        int port = Integer.parseInt(flags.getOrDefault("--port", String.valueOf(DEFAULT_PORT)));
+        ServerSocketChannel listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        return listener;
+    }
+
+    // Loads the shop the first time it is asked for; later sessions get the warm instance. A shop that
+    // fails to load is dropped so the next OPEN tries again.
+    RentalShop shopFor(Map<String, String> flags) {
+        String location = flags.get("--location");
+        CompletableFuture<RentalShop> loading = new CompletableFuture<>();
+        CompletableFuture<RentalShop> existing = shops.putIfAbsent(location, loading);
+        if(existing != null) {
+            return existing.join();
+        }
+        try {
+            int spaces = Integer.parseInt(flags.getOrDefault("--spaces-available", "10"));
+            List<String> lots = RentalShop.parseLots(flags.getOrDefault("--lots", ""));
+            RentalShop shop = new RentalShop(location, spaces, lots);
+            loading.complete(shop);
+            return shop;
+        } catch(RuntimeException e) {
+            shops.remove(location, loading);
+            loading.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    private void serve(SocketChannel client) {
+        try (SocketChannel channel = client;
+             BufferedReader in = new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8));
+             Writer out = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8))) {
+            RentalShop shop = null;
+            String line;
+            while((line = in.readLine()) != null) {
+                String request = line.trim();
+                if(request.equalsIgnoreCase("EXIT")) {
+                    break;
+                }
+                if(request.toUpperCase().startsWith("OPEN")) {
+                    Map<String, String> flags = RentalShop.parseArgs(request.substring(4).trim().split("\\s+"));
+                    if(flags.get("--location") == null) {
+                        respond(out, "Error: --location must be provided.\n");
+                    } else if(flags.containsKey("--sync")) {
+                        respond(out, "Error: --sync is not supported by the shop server; every command is durable before its response.\n");
+                    } else {
+                        try {
+                            shop = shopFor(flags);
+                            respond(out, "Connected to " + shop.getLocation() + " Rental Shop.\n");
+                        } catch(RuntimeException e) {
+                            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                            respond(out, "Error opening shop: " + cause.getMessage() + "\n");
+                        }
+                    }
+                } else if(shop == null) {
+                    respond(out, "Error: send OPEN --location=<name> before any command.\n");
+                } else {
+                    respond(out, shop.executeCommand(request));
+                }
+            }
+        } catch(IOException e) {
+            System.err.println("Shop server connection error: " + e.getMessage());
+        }
+    }
+
+    private static void respond(Writer out, String body) throws IOException {
+        out.write(body);
+        if(!body.isEmpty() && !body.endsWith("\n")) {
+            out.write('\n');
+        }
+        out.write(END_OF_RESPONSE);
+        out.write('\n');
+        out.flush();
+    }
+
+    void closeAll() {
+        for(CompletableFuture<RentalShop> shop : shops.values()) {
+            if(shop.isDone() && !shop.isCompletedExceptionally()) {
+                shop.join().close();
+            }
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package com.aguilarcarboni.ttu;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+// The state a shop checkpoints, read without starting the shop: used by RentalShop on startup and by
+// tools such as FleetReport that look at shops while they run.
+//
+// <location>.snap layout, big-endian:
+//   header  magic int, version short, reserved short, body length int, crc32 of body int,
+//           command log sequence long, sealed history count long
+//   body    parking capacity int, lot count int + UTF each,
+//           inventory count int + (plate, type byte, km int, flags byte) each,
+//           rental count int + (plate, type byte, km int, discount byte) each,
+//           offload count int + (plate, type byte, km int) each,
+//           revenue aggregates, history offset int, then the unsealed history tail
+// Plates are a PlateCodec int, or INVALID followed by the raw UTF string. The history tail is
+// only decoded when asked for, since reports never need it. Revenue totals come only from the aggregates.
+// Older <location>.ser files written with ObjectOutputStream are still read.
+class ShopSnapshot {
+    static final String EXTENSION = ".snap";
+    static final String LEGACY_EXTENSION = ".ser";
+    private static final int MAGIC = 0x534E5031; // "SNP1"
+    private static final short FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final short JAVA_SERIALIZATION_MAGIC = (short) 0xACED;
+
+    String location;
+    // Row flags carry RentalShop.LOT_DISCOUNT for cars prefetched from a lot
+    VehicleTable inventory = new VehicleTable();
+    // Row flags carry RentalShop.LOT_DISCOUNT
+    VehicleTable rentals = new VehicleTable();
+    // Overflow cars out of inventory and queued for a lot, but not yet written to it
+    VehicleTable offloading = new VehicleTable();
+    int parkingCapacity;
+    List<String> lots = new ArrayList<>();
+    long sequence;
+    long sealedHistory;
+    // Null when the snapshot predates running aggregates
+    RevenueAggregates revenue;
+
+    private List<Transaction> historyTail;
+    private byte[] historyBytes;
+    private int historyOffset;
+
+    List<Transaction> historyTail() throws IOException {
+        if(historyTail == null) {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(historyBytes, historyOffset, historyBytes.length - historyOffset));
+            int count = in.readInt();
+            historyTail = new ArrayList<>(count);
+            for(int i = 0; i < count; i++) {
+                historyTail.add(TransactionStore.readRecord(in));
+            }
+            historyBytes = null;
+        }
+        return historyTail;
+    }
+
+    void setHistoryTail(List<Transaction> tail) {
+        this.historyTail = tail;
+    }
+
+    static ShopSnapshot read(String location, String path) throws IOException {
+        byte[] bytes = Files.readAllBytes(Paths.get(path));
+        if(bytes.length >= 2 && (short) (((bytes[0] & 0xFF) << 8) | (bytes[1] & 0xFF)) == JAVA_SERIALIZATION_MAGIC) {
+            return readLegacy(location, bytes);
+        }
+        return readBinary(location, path, bytes);
+    }
+
+    private static ShopSnapshot readBinary(String location, String path, byte[] bytes) throws IOException {
+        if(bytes.length < HEADER_SIZE) {
+            throw new IOException("Truncated snapshot " + path);
+        }
+        DataInputStream header = new DataInputStream(new ByteArrayInputStream(bytes, 0, HEADER_SIZE));
+        if(header.readInt() != MAGIC) {
+            throw new IOException("Not a shop snapshot: " + path);
+        }
+        short version = header.readShort();
+        if(version != FORMAT_VERSION) {
+            throw new IOException("Unsupported snapshot version " + version + " in " + path);
+        }
+        header.readShort();
+        int bodyLength = header.readInt();
+        int checksum = header.readInt();
+        if(bodyLength != bytes.length - HEADER_SIZE) {
+            throw new IOException("Truncated snapshot " + path);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes, HEADER_SIZE, bodyLength);
+        if((int) crc.getValue() != checksum) {
+            throw new IOException("Checksum mismatch in snapshot " + path);
+        }
+
+        ShopSnapshot snapshot = new ShopSnapshot();
+        snapshot.location = location;
+        snapshot.sequence = header.readLong();
+        snapshot.sealedHistory = header.readLong();
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, HEADER_SIZE, bodyLength));
+        snapshot.parkingCapacity = in.readInt();
+        int lotCount = in.readInt();
+        for(int i = 0; i < lotCount; i++) {
+            snapshot.lots.add(in.readUTF());
+        }
+        int inventoryCount = in.readInt();
+        snapshot.inventory = new VehicleTable(inventoryCount);
+        for(int i = 0; i < inventoryCount; i++) {
+            int row = readVehicle(in, snapshot.inventory);
+            byte flags = in.readByte();
+            if(row != VehicleTable.NO_ROW) {
+                snapshot.inventory.setFlags(row, flags);
+            }
+        }
+        int rentalCount = in.readInt();
+        snapshot.rentals = new VehicleTable(rentalCount);
+        for(int i = 0; i < rentalCount; i++) {
+            int row = readVehicle(in, snapshot.rentals);
+            if(in.readBoolean() && row != VehicleTable.NO_ROW) {
+                snapshot.rentals.setFlags(row, RentalShop.LOT_DISCOUNT);
+            }
+        }
+        int offloadCount = in.readInt();
+        snapshot.offloading = new VehicleTable(offloadCount);
+        for(int i = 0; i < offloadCount; i++) {
+            readVehicle(in, snapshot.offloading);
+        }
+        snapshot.revenue = RevenueAggregates.readFrom(in);
+        snapshot.historyOffset = HEADER_SIZE + in.readInt();
+        snapshot.historyBytes = bytes;
+        return snapshot;
+    }
+
+    // Writes through a temp file that is fsynced and renamed over the old snapshot
+    void write(String path) throws IOException {
+        ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream(64 + 16 * (inventory.size() + rentals.size()));
+        DataOutputStream body = new DataOutputStream(bodyBytes);
+        body.writeInt(parkingCapacity);
+        body.writeInt(lots.size());
+        for(String lot : lots) {
+            body.writeUTF(lot);
+        }
+        body.writeInt(inventory.size());
+        for(int row = 0; row < inventory.size(); row++) {
+            writeVehicle(body, inventory, row);
+            body.writeByte(inventory.flagsAt(row));
+        }
+        body.writeInt(rentals.size());
+        for(int row = 0; row < rentals.size(); row++) {
+            writeVehicle(body, rentals, row);
+            body.writeBoolean((rentals.flagsAt(row) & RentalShop.LOT_DISCOUNT) != 0);
+        }
+        body.writeInt(offloading.size());
+        for(int row = 0; row < offloading.size(); row++) {
+            writeVehicle(body, offloading, row);
+        }
+        revenue.writeTo(body);
+        body.writeInt(body.size() + 4);
+        List<Transaction> tail = historyTail();
+        body.writeInt(tail.size());
+        for(Transaction t : tail) {
+            TransactionStore.writeRecord(body, t);
+        }
+        body.flush();
+
+        CRC32 crc = new CRC32();
+        crc.update(bodyBytes.toByteArray());
+        File tempFile = new File(path + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tempFile);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+            out.writeInt(MAGIC);
+            out.writeShort(FORMAT_VERSION);
+            out.writeShort(0);
+            out.writeInt(bodyBytes.size());
+            out.writeInt((int) crc.getValue());
+            out.writeLong(sequence);
+            out.writeLong(sealedHistory);
+            bodyBytes.writeTo(out);
+            out.flush();
+            fos.getFD().sync();
+        }
+        Files.move(tempFile.toPath(), Paths.get(path), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Tables only hold encodable plates, so the raw-string form is never written any more
+    private static void writeVehicle(DataOutputStream out, VehicleTable vehicles, int row) throws IOException {
+        out.writeInt(vehicles.plateAt(row));
+        out.writeByte(vehicles.typeAt(row));
+        out.writeInt(vehicles.kilometersAt(row));
+    }
+
+    // Returns the row, or NO_ROW for a raw plate the table cannot hold
+    private static int readVehicle(DataInputStream in, VehicleTable into) throws IOException {
+        int plateCode = in.readInt();
+        if(plateCode == PlateCodec.INVALID) {
+            String plate = in.readUTF();
+            in.readByte();
+            in.readInt();
+            System.err.println("Error loading snapshot: skipping vehicle with unsupported plate " + plate);
+            return VehicleTable.NO_ROW;
+        }
+        byte type = in.readByte();
+        return into.put(plateCode, type, in.readInt(), (byte) 0);
+    }
+
+    private static VehicleTable toTable(Collection<Vehicle> vehicles) {
+        VehicleTable table = new VehicleTable(vehicles.size());
+        for(Vehicle v : vehicles) {
+            if(PlateCodec.encode(v.getLicensePlate()) == PlateCodec.INVALID) {
+                System.err.println("Error loading snapshot: skipping vehicle with unsupported plate " + v.getLicensePlate());
+                continue;
+            }
+            table.put(v, (byte) 0);
+        }
+        return table;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ShopSnapshot readLegacy(String location, byte[] bytes) throws IOException {
+        ShopSnapshot snapshot = new ShopSnapshot();
+        snapshot.location = location;
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            snapshot.inventory = toTable(((Map<String, Vehicle>) ois.readObject()).values());
+            Map<String, RentalShop.RentedRecord> rentals = (Map<String, RentalShop.RentedRecord>) ois.readObject();
+            for(RentalShop.RentedRecord r : rentals.values()) {
+                if(PlateCodec.encode(r.vehicle.getLicensePlate()) == PlateCodec.INVALID) {
+                    System.err.println("Error loading snapshot: skipping vehicle with unsupported plate " + r.vehicle.getLicensePlate());
+                    continue;
+                }
+                snapshot.rentals.put(r.vehicle, r.hasLotDiscount ? RentalShop.LOT_DISCOUNT : 0);
+            }
+            snapshot.historyTail = (List<Transaction>) ois.readObject();
+            // Total revenue, rebuilt from the history below when these snapshots carry no aggregates
+            ois.readDouble();
+            snapshot.parkingCapacity = ois.readInt();
+            snapshot.lots = (List<String>) ois.readObject();
+            // Snapshots written before the command log existed end here, and ones written before the
+            // history store carry the full history with nothing sealed
+            try {
+                snapshot.sequence = ois.readLong();
+                snapshot.sealedHistory = ois.readLong();
+                snapshot.revenue = (RevenueAggregates) ois.readObject();
+            } catch (EOFException | OptionalDataException e) {
+                // Older snapshot layout
+            }
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unreadable snapshot for " + location + ": " + e.getMessage(), e);
+        }
+        return snapshot;
+    }
+
+    // Applies command log records newer than the snapshot, so a reader sees what the running shop sees
+    void replay(String logPath) throws IOException {
+        if(revenue == null) {
+            revenue = RevenueAggregates.rebuild(historyTail());
+        }
+        CommandLog.scan(logPath, sequence, this::apply);
+    }
+
+    private void apply(CommandLog.Entry entry) {
+        switch(entry.op) {
+            case CommandLog.STOCK:
+                inventory.put(new Vehicle(entry.plate, entry.type, entry.kilometers), entry.discount ? RentalShop.LOT_DISCOUNT : 0);
+                break;
+            case CommandLog.RENT:
+                int row = inventory.find(entry.plate);
+                Vehicle vehicle = row != VehicleTable.NO_ROW ? inventory.vehicleAt(row) : new Vehicle(entry.plate, entry.type, entry.kilometers);
+                inventory.remove(entry.plate);
+                rentals.put(vehicle, entry.discount ? RentalShop.LOT_DISCOUNT : 0);
+                break;
+            case CommandLog.RETURN:
+                int rented = rentals.find(entry.plate);
+                Vehicle returned = rented != VehicleTable.NO_ROW ? rentals.vehicleAt(rented) : new Vehicle(entry.plate, entry.type, 0);
+                rentals.remove(entry.plate);
+                returned.addKilometers(entry.kilometers);
+                double charge = RentalShop.calculateCharge(entry.kilometers, entry.discount);
+                revenue.record(new Transaction(entry.plate, returned.getType(), entry.kilometers, entry.discount, charge));
+                inventory.put(returned, (byte) 0);
+                break;
+            case CommandLog.MOVE_TO_LOT:
+                inventory.remove(entry.plate);
+                offloading.put(new Vehicle(entry.plate, entry.type, entry.kilometers), (byte) 0);
+                break;
+            case CommandLog.OFFLOADED:
+                offloading.remove(entry.plate);
+                break;
+            default:
+                break;
+        }
+        sequence = entry.sequence;
+    }
+}
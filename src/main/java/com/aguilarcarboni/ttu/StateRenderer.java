@@ -0,0 +1,91 @@
+package com.aguilarcarboni.ttu;
+import java.io.*;
+import java.nio.file.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Keeps a human-readable report file up to date in the background. Commands only mark it stale; a
+// burst of changes is rendered once per interval, and each render replaces the file atomically so a
+// reader never sees a half-written one.
+public class StateRenderer {
+    public interface Report {
+        void writeTo(PrintWriter out) throws IOException;
+    }
+
+    private final String path;
+    private final Report report;
+    private final ShopMetrics metrics;
+    private final AtomicBoolean stale = new AtomicBoolean();
+    private final ScheduledExecutorService executor;
+
+    public StateRenderer(String name, String path, long intervalMs, Report report, ShopMetrics metrics) {
+        this.path = path;
+        this.report = report;
+        this.metrics = metrics;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, name + "-renderer");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.scheduleWithFixedDelay(this::renderIfStale, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    // Called on every state change, so it reads before writing to keep the flag's cache line shared
+    public void markStale() {
+        if(!stale.get()) {
+            stale.set(true);
+        }
+    }
+
+    void renderIfStale() {
+        if(stale.getAndSet(false)) {
+            render();
+        }
+    }
+
+    private void render() {
+        long start = System.nanoTime();
+        File tempFile = new File(path + ".tmp");
+        PrintWriter writer;
+        try {
+            writer = new PrintWriter(new BufferedWriter(new FileWriter(tempFile)));
+        } catch (IOException e) {
+            System.err.println("Error writing human state: " + e.getMessage());
+            return;
+        }
+        try {
+            report.writeTo(writer);
+        } catch (IOException e) {
+            System.err.println("Error writing human state: " + e.getMessage());
+            writer.close();
+            tempFile.delete();
+            return;
+        }
+        writer.close();
+        // PrintWriter keeps write and close failures to itself; a short file must not replace the last good one
+        if (writer.checkError()) {
+            System.err.println("Error writing human state: could not write " + tempFile);
+            tempFile.delete();
+            return;
+        }
+        try {
+            Files.move(tempFile.toPath(), Paths.get(path), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Error writing human state: " + e.getMessage());
+        }
+        metrics.recordSince(ShopMetrics.Timer.TEXT_REPORT, start);
+    }
+
+    // Stops the background thread and writes any change it had not caught up with yet
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        renderIfStale();
+    }
+}
@@ -7,9 +7,16 @@ public class Transaction implements Serializable {
     private int kilometers;
     private boolean discountApplied;
     private double charge;
+    // Null for transactions recorded before the type was kept
+    private String vehicleType;
 
     public Transaction(String licensePlate, int kilometers, boolean discountApplied, double charge) {
+        this(licensePlate, null, kilometers, discountApplied, charge);
+    }
+
+    public Transaction(String licensePlate, String vehicleType, int kilometers, boolean discountApplied, double charge) {
         this.licensePlate = licensePlate;
+        this.vehicleType = vehicleType;
         this.kilometers = kilometers;
         this.discountApplied = discountApplied;
         this.charge = charge;
@@ -19,6 +26,7 @@ public class Transaction implements Serializable {
     public String getLicensePlate() { return licensePlate; }
     public boolean isDiscountApplied() { return discountApplied; }
     public double getCharge() { return charge; }
+    public String getVehicleType() { return vehicleType; }
 
     @Override
     public String toString() {
@@ -0,0 +1,338 @@
+package com.aguilarcarboni.ttu;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+// Append-only transaction history. Full runs of SEGMENT_SIZE transactions are sealed into immutable,
+// deflated segment files; only the unsealed tail is kept in memory and carried in the shop snapshot.
+//
+// Segment file seg-<first index>.txs:
+//   header  magic int, version short, count int, crc32 of the uncompressed body int, first index long
+//   body    deflated records: flags byte (discount, raw plate, vehicle type code in bits 2-3),
+//           plate (int code, or UTF when it is not AAA-000 shaped),
+//           zigzag varint kilometers, zigzag varint charge in cents
+public class TransactionStore {
+    static final int SEGMENT_SIZE = 4096;
+    private static final int MAGIC = 0x54585331; // "TXS1"
+    private static final short FORMAT_VERSION = 1;
+    private static final String SEGMENT_PREFIX = "seg-";
+    private static final String SEGMENT_EXTENSION = ".txs";
+
+    private static final int FLAG_DISCOUNT = 1;
+    private static final int FLAG_RAW_PLATE = 2;
+    private static final int TYPE_SHIFT = 2;
+    private static final int TYPE_MASK = 3;
+
+    private final File directory;
+    // Replaced, never mutated, when a segment is sealed, so views can keep the list they started with
+    private volatile List<Segment> segments;
+    private long sealedCount;
+    private final List<Transaction> tail = new ArrayList<>();
+    // Command log returns that a segment sealed after the snapshot already holds; see appendReplayed
+    private long sealedAheadOfReplay;
+
+    private TransactionStore(File directory, List<Segment> segments) {
+        this.directory = directory;
+        this.segments = segments;
+        for(Segment s : segments) {
+            sealedCount += s.count;
+        }
+    }
+
+    public static TransactionStore open(String directoryPath) throws IOException {
+        File directory = new File(directoryPath);
+        if(!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Cannot create transaction history directory " + directoryPath);
+        }
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_EXTENSION));
+        Arrays.sort(files);
+        List<Segment> segments = new ArrayList<>();
+        for(File f : files) {
+            segments.add(readHeader(f));
+        }
+        return new TransactionStore(directory, Collections.unmodifiableList(segments));
+    }
+
+    // Brings the tail back from a snapshot. Segments sealed after that snapshot was taken already hold the
+    // head of its tail, so those transactions are skipped; a legacy full history is restored with 0 sealed.
+    // Whatever those segments hold beyond the tail came from returns in the command log, which the shop
+    // replays next through appendReplayed.
+    public void restore(List<Transaction> snapshotTail, long snapshotSealedCount) throws IOException {
+        long alreadySealed = sealedCount - snapshotSealedCount;
+        if(alreadySealed < 0) {
+            System.err.println("Transaction history in " + directory + " is missing " + (-alreadySealed) + " sealed transactions.");
+            alreadySealed = 0;
+        }
+        tail.clear();
+        int from = (int) Math.min(alreadySealed, snapshotTail.size());
+        tail.addAll(snapshotTail.subList(from, snapshotTail.size()));
+        sealedAheadOfReplay = alreadySealed - from;
+        while(tail.size() >= SEGMENT_SIZE) {
+            seal();
+        }
+    }
+
+    // Appends a return re-applied from the command log after restore, unless a segment already holds it
+    public void appendReplayed(Transaction transaction) {
+        if(sealedAheadOfReplay > 0) {
+            sealedAheadOfReplay--;
+            return;
+        }
+        append(transaction);
+    }
+
+    public void append(Transaction transaction) {
+        tail.add(transaction);
+        if(tail.size() >= SEGMENT_SIZE) {
+            try {
+                seal();
+            } catch(IOException e) {
+                // The tail stays in memory and in the snapshot; sealing is retried on the next append
+                System.err.println("Error sealing transaction segment: " + e.getMessage());
+            }
+        }
+    }
+
+    public long size() {
+        return sealedCount + tail.size();
+    }
+
+    public long sealedCount() {
+        return sealedCount;
+    }
+
+    public List<Transaction> tail() {
+        return new ArrayList<>(tail);
+    }
+
+    // Everything recorded so far, decoded lazily segment by segment when iterated
+    public Iterable<Transaction> view() {
+        return view(0, Long.MAX_VALUE);
+    }
+
+    // At most limit transactions from the given index on; segments wholly before it are never opened, and the
+    // segment being read is closed once the limit is reached
+    public Iterable<Transaction> view(long from, long limit) {
+        List<Segment> sealed = segments;
+        int first = 0;
+        long skip = from;
+        while(first < sealed.size() && skip >= sealed.get(first).count) {
+            skip -= sealed.get(first).count;
+            first++;
+        }
+        List<Segment> remaining = sealed.subList(first, sealed.size());
+        List<Transaction> unsealed = new ArrayList<>(tail);
+        long skipped = skip;
+        return () -> new HistoryIterator(remaining, unsealed, skipped, limit);
+    }
+
+    private void seal() throws IOException {
+        List<Transaction> batch = tail.subList(0, SEGMENT_SIZE);
+        File target = new File(directory, String.format("%s%012d%s", SEGMENT_PREFIX, sealedCount, SEGMENT_EXTENSION));
+        File tempFile = new File(target.getPath() + ".tmp");
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        CRC32 crc = new CRC32();
+        try (DataOutputStream body = new DataOutputStream(new CheckedOutputStream(
+                new DeflaterOutputStream(compressed, new Deflater(Deflater.BEST_SPEED)), crc))) {
+            for(Transaction t : batch) {
+                writeRecord(body, t);
+            }
+        }
+        try (FileOutputStream fos = new FileOutputStream(tempFile);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+            out.writeInt(MAGIC);
+            out.writeShort(FORMAT_VERSION);
+            out.writeInt(batch.size());
+            out.writeInt((int) crc.getValue());
+            out.writeLong(sealedCount);
+            compressed.writeTo(out);
+            out.flush();
+            fos.getFD().sync();
+        }
+        Files.move(tempFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        List<Segment> next = new ArrayList<>(segments);
+        next.add(new Segment(target, batch.size()));
+        segments = Collections.unmodifiableList(next);
+        sealedCount += batch.size();
+        batch.clear();
+    }
+
+    static void writeRecord(DataOutputStream out, Transaction t) throws IOException {
+        int plateCode = PlateCodec.encode(t.getLicensePlate());
+        int flags = (t.isDiscountApplied() ? FLAG_DISCOUNT : 0) | (plateCode == PlateCodec.INVALID ? FLAG_RAW_PLATE : 0)
+            | (VehicleType.codeOf(t.getVehicleType()) << TYPE_SHIFT);
+        out.writeByte(flags);
+        if(plateCode == PlateCodec.INVALID) {
+            out.writeUTF(t.getLicensePlate());
+        } else {
+            out.writeInt(plateCode);
+        }
+        writeVarLong(out, t.getKilometers());
+        writeVarLong(out, Math.round(t.getCharge() * 100));
+    }
+
+    static Transaction readRecord(DataInputStream in) throws IOException {
+        int flags = in.readUnsignedByte();
+        String plate = (flags & FLAG_RAW_PLATE) != 0 ? in.readUTF() : PlateCodec.decode(in.readInt());
+        int kilometers = (int) readVarLong(in);
+        long cents = readVarLong(in);
+        VehicleType type = VehicleType.fromCode((byte) ((flags >>> TYPE_SHIFT) & TYPE_MASK));
+        return new Transaction(plate, type == null ? null : type.name(), kilometers, (flags & FLAG_DISCOUNT) != 0, cents / 100.0);
+    }
+
+    // Zigzag LEB128, so small values of either sign take one or two bytes
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        long v = (value << 1) ^ (value >> 63);
+        while((v & ~0x7FL) != 0) {
+            out.writeByte((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long v = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.readUnsignedByte();
+            v |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while((b & 0x80) != 0);
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static Segment readHeader(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if(in.readInt() != MAGIC) {
+                throw new IOException("Not a transaction segment: " + file);
+            }
+            if(in.readShort() != FORMAT_VERSION) {
+                throw new IOException("Unsupported transaction segment version in " + file);
+            }
+            return new Segment(file, in.readInt());
+        }
+    }
+
+    private static class Segment {
+        final File file;
+        final int count;
+
+        Segment(File file, int count) {
+            this.file = file;
+            this.count = count;
+        }
+    }
+
+    // Streams one segment at a time; a damaged segment is reported and skipped rather than ending the listing
+    private static class HistoryIterator implements Iterator<Transaction> {
+        private final Iterator<Segment> segments;
+        private final Iterator<Transaction> unsealed;
+        private DataInputStream current;
+        private CRC32 currentCrc;
+        private int expectedCrc;
+        private File currentFile;
+        private int remaining;
+        private long skip;
+        private long limit;
+
+        HistoryIterator(List<Segment> segments, List<Transaction> unsealed, long skip, long limit) {
+            this.segments = segments.iterator();
+            this.unsealed = unsealed.iterator();
+            this.skip = skip;
+            this.limit = limit;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while(skip > 0 && hasMore()) {
+                skip--;
+                read();
+            }
+            if(limit <= 0) {
+                closeCurrent();
+                return false;
+            }
+            return hasMore();
+        }
+
+        @Override
+        public Transaction next() {
+            if(!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            limit--;
+            return read();
+        }
+
+        private boolean hasMore() {
+            while(remaining == 0) {
+                closeCurrent();
+                if(!segments.hasNext()) {
+                    return unsealed.hasNext();
+                }
+                openSegment(segments.next());
+            }
+            return true;
+        }
+
+        private Transaction read() {
+            if(!hasMore()) {
+                throw new NoSuchElementException();
+            }
+            if(remaining == 0) {
+                return unsealed.next();
+            }
+            try {
+                Transaction t = readRecord(current);
+                remaining--;
+                return t;
+            } catch(IOException e) {
+                System.err.println("Error reading transaction segment " + currentFile + ": " + e.getMessage());
+                remaining = 0;
+                closeCurrent();
+                return read();
+            }
+        }
+
+        private void openSegment(Segment segment) {
+            try {
+                DataInputStream header = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file)));
+                header.readInt();
+                header.readShort();
+                remaining = header.readInt();
+                expectedCrc = header.readInt();
+                header.readLong();
+                currentCrc = new CRC32();
+                current = new DataInputStream(new CheckedInputStream(new InflaterInputStream(header), currentCrc));
+                currentFile = segment.file;
+            } catch(IOException e) {
+                System.err.println("Error opening transaction segment " + segment.file + ": " + e.getMessage());
+                remaining = 0;
+            }
+        }
+
+        private void closeCurrent() {
+            if(current == null) {
+                return;
+            }
+            if((int) currentCrc.getValue() != expectedCrc) {
+                System.err.println("Checksum mismatch in transaction segment " + currentFile);
+            }
+            try {
+                current.close();
+            } catch(IOException e) {
+                System.err.println("Error closing transaction segment " + currentFile + ": " + e.getMessage());
+            }
+            current = null;
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package com.aguilarcarboni.ttu;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Vehicles as parallel primitive columns: the PlateCodec plate (25 bits), VehicleType code, kilometers and
+// a flags byte per row, with an open-addressing plate -> row index. Rows are dense; removing one moves
+// the last row into its place, so callers that keep their own per-row data are told which row moved.
+// About 20 bytes per vehicle, against well over 100 for a Vehicle with its strings in a HashMap.
+public class VehicleTable {
+    public static final int NO_ROW = -1;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private int[] plates;
+    private byte[] types;
+    private int[] kilometers;
+    private byte[] flags;
+    private int size;
+    // Row + 1 per bucket, 0 when empty; linear probing with backward-shift deletion, at most half full
+    private int[] index;
+    private int indexMask;
+    private int indexShift;
+
+    public VehicleTable() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public VehicleTable(int expectedSize) {
+        int capacity = Math.max(INITIAL_CAPACITY, expectedSize);
+        plates = new int[capacity];
+        types = new byte[capacity];
+        kilometers = new int[capacity];
+        flags = new byte[capacity];
+        allocateIndex(capacity);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int capacity() {
+        return plates.length;
+    }
+
+    public int find(int plateCode) {
+        for(int bucket = bucketOf(plateCode); ; bucket = (bucket + 1) & indexMask) {
+            int entry = index[bucket];
+            if(entry == 0) {
+                return NO_ROW;
+            }
+            if(plates[entry - 1] == plateCode) {
+                return entry - 1;
+            }
+        }
+    }
+
+    public int find(String plate) {
+        int code = PlateCodec.encode(plate);
+        return code == PlateCodec.INVALID ? NO_ROW : find(code);
+    }
+
+    public boolean contains(String plate) {
+        return find(plate) != NO_ROW;
+    }
+
+    // Adds a row, or overwrites the row already holding the plate; returns the row
+    public int put(int plateCode, byte typeCode, int km, byte rowFlags) {
+        int row = find(plateCode);
+        if(row == NO_ROW) {
+            if(size == plates.length) {
+                grow();
+            }
+            row = size++;
+            plates[row] = plateCode;
+            insertIntoIndex(row);
+        }
+        types[row] = typeCode;
+        kilometers[row] = km;
+        flags[row] = rowFlags;
+        return row;
+    }
+
+    // Vehicles whose plate is not AAA-000 shaped cannot be stored
+    public int put(Vehicle vehicle, byte rowFlags) {
+        int code = PlateCodec.encode(vehicle.getLicensePlate());
+        if(code == PlateCodec.INVALID) {
+            throw new IllegalArgumentException("Unsupported license plate " + vehicle.getLicensePlate());
+        }
+        return put(code, VehicleType.codeOf(vehicle.getType()), vehicle.getKilometers(), rowFlags);
+    }
+
+    // Removes a row by moving the last row into it. Returns the row the moved vehicle used to occupy,
+    // or NO_ROW when the removed row was the last one.
+    public int removeRow(int row) {
+        removeFromIndex(plates[row]);
+        int last = --size;
+        if(row == last) {
+            return NO_ROW;
+        }
+        plates[row] = plates[last];
+        types[row] = types[last];
+        kilometers[row] = kilometers[last];
+        flags[row] = flags[last];
+        index[bucketHolding(plates[row])] = row + 1;
+        return last;
+    }
+
+    public boolean remove(String plate) {
+        int row = find(plate);
+        if(row == NO_ROW) {
+            return false;
+        }
+        removeRow(row);
+        return true;
+    }
+
+    public void clear() {
+        size = 0;
+        Arrays.fill(index, 0);
+    }
+
+    public int plateAt(int row) {
+        return plates[row];
+    }
+
+    public byte typeAt(int row) {
+        return types[row];
+    }
+
+    public int kilometersAt(int row) {
+        return kilometers[row];
+    }
+
+    public byte flagsAt(int row) {
+        return flags[row];
+    }
+
+    public void setKilometers(int row, int km) {
+        kilometers[row] = km;
+    }
+
+    public void setFlags(int row, byte rowFlags) {
+        flags[row] = rowFlags;
+    }
+
+    public String plateStringAt(int row) {
+        return PlateCodec.decode(plates[row]);
+    }
+
+    public String typeNameAt(int row) {
+        return typeName(types[row]);
+    }
+
+    // A detached Vehicle; changing it does not change the table
+    public Vehicle vehicleAt(int row) {
+        return new Vehicle(plateStringAt(row), typeNameAt(row), kilometers[row]);
+    }
+
+    public List<Vehicle> vehicles() {
+        List<Vehicle> vehicles = new ArrayList<>(size);
+        for(int row = 0; row < size; row++) {
+            vehicles.add(vehicleAt(row));
+        }
+        return vehicles;
+    }
+
+    public int countByType(byte typeCode) {
+        int count = 0;
+        for(int row = 0; row < size; row++) {
+            if(types[row] == typeCode) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public VehicleTable copy() {
+        VehicleTable copy = new VehicleTable(plates.length);
+        for(int row = 0; row < size; row++) {
+            copy.put(plates[row], types[row], kilometers[row], flags[row]);
+        }
+        return copy;
+    }
+
+    static String typeName(byte typeCode) {
+        VehicleType type = VehicleType.fromCode(typeCode);
+        return type == null ? "UNKNOWN" : type.name();
+    }
+
+    private int bucketOf(int plateCode) {
+        return (plateCode * 0x9E3779B9) >>> indexShift;
+    }
+
+    private int bucketHolding(int plateCode) {
+        for(int bucket = bucketOf(plateCode); ; bucket = (bucket + 1) & indexMask) {
+            if(plates[index[bucket] - 1] == plateCode) {
+                return bucket;
+            }
+        }
+    }
+
+    private void insertIntoIndex(int row) {
+        int bucket = bucketOf(plates[row]);
+        while(index[bucket] != 0) {
+            bucket = (bucket + 1) & indexMask;
+        }
+        index[bucket] = row + 1;
+    }
+
+    // Backward-shift deletion keeps probe chains intact without tombstones
+    private void removeFromIndex(int plateCode) {
+        int hole = bucketHolding(plateCode);
+        int bucket = hole;
+        while(true) {
+            bucket = (bucket + 1) & indexMask;
+            int entry = index[bucket];
+            if(entry == 0) {
+                break;
+            }
+            int home = bucketOf(plates[entry - 1]);
+            // Move the entry back if its home is not in the cyclic range (hole, bucket]
+            if(((bucket - home) & indexMask) >= ((bucket - hole) & indexMask)) {
+                index[hole] = entry;
+                hole = bucket;
+            }
+        }
+        index[hole] = 0;
+    }
+
+    private void grow() {
+        int capacity = plates.length * 2;
+        plates = Arrays.copyOf(plates, capacity);
+        types = Arrays.copyOf(types, capacity);
+        kilometers = Arrays.copyOf(kilometers, capacity);
+        flags = Arrays.copyOf(flags, capacity);
+        allocateIndex(capacity);
+        for(int row = 0; row < size; row++) {
+            insertIntoIndex(row);
+        }
+    }
+
+    private void allocateIndex(int capacity) {
+        int buckets = Integer.highestOneBit(capacity * 2 - 1) << 1;
+        index = new int[buckets];
+        indexMask = buckets - 1;
+        indexShift = Integer.numberOfLeadingZeros(buckets) + 1;
+    }
+}
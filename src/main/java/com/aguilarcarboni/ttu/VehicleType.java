@@ -0,0 +1,43 @@
+package com.aguilarcarboni.ttu;
+import java.util.Locale;
+
+// Compact codes for the vehicle types a shop rents out, used by the binary storage formats
+public enum VehicleType {
+    SEDAN(1), SUV(2), VAN(3);
+
+    public static final byte UNKNOWN_CODE = 0;
+    private static final VehicleType[] BY_CODE = { null, SEDAN, SUV, VAN };
+
+    private final byte code;
+
+    VehicleType(int code) {
+        this.code = (byte) code;
+    }
+
+    public byte code() {
+        return code;
+    }
+
+    public static VehicleType fromCode(byte code) {
+        if(code <= 0 || code >= BY_CODE.length) {
+            return null;
+        }
+        return BY_CODE[code];
+    }
+
+    public static VehicleType parse(String type) {
+        if(type == null) {
+            return null;
+        }
+        try {
+            return valueOf(type.trim().toUpperCase(Locale.ROOT));
+        } catch(IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    public static byte codeOf(String type) {
+        VehicleType parsed = parse(type);
+        return parsed == null ? UNKNOWN_CODE : parsed.code;
+    }
+}
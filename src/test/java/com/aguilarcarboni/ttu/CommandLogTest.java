@@ -0,0 +1,102 @@
+package com.aguilarcarboni.ttu;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class CommandLogTest {
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    public void recoverReplaysWhatFollowsTheSnapshotAndContinuesTheSequence() throws Exception {
+        String path = new File(tempDir, "shop.wal").getPath();
+        appendRecords(path, "AAA-001", "AAA-002", "AAA-003");
+
+        CommandLog log = new CommandLog(path);
+        List<CommandLog.Entry> replayed = new ArrayList<>();
+        log.recover(1, replayed::add);
+        assertEquals(2, replayed.size());
+        assertEquals(2, replayed.get(0).sequence);
+        assertEquals("AAA-002", replayed.get(0).plate);
+        assertEquals(CommandLog.RENT, replayed.get(0).op);
+        assertEquals(3, log.lastSequence());
+        log.append(CommandLog.RETURN, "AAA-004", "VAN", 12, true);
+        log.close();
+
+        List<CommandLog.Entry> all = scan(path);
+        assertEquals(4, all.size());
+        assertEquals(4, all.get(3).sequence);
+        assertEquals(12, all.get(3).kilometers);
+        assertEquals(true, all.get(3).discount);
+    }
+
+    @Test
+    public void tornTailIsCutOffAndAppendsContinueAfterIt() throws Exception {
+        String path = new File(tempDir, "shop.wal").getPath();
+        appendRecords(path, "AAA-001", "AAA-002");
+        long intact = new File(path).length();
+        appendRecords(path, "AAA-003");
+        try (RandomAccessFile file = new RandomAccessFile(path, "rw")) {
+            file.setLength(file.length() - 5);
+        }
+
+        CommandLog log = new CommandLog(path);
+        List<CommandLog.Entry> replayed = new ArrayList<>();
+        log.recover(0, replayed::add);
+        assertEquals(2, replayed.size());
+        assertEquals(intact, new File(path).length());
+        log.append(CommandLog.STOCK, "AAA-009", "SUV", 0, false);
+        log.close();
+
+        List<CommandLog.Entry> all = scan(path);
+        assertEquals(3, all.size());
+        assertEquals("AAA-009", all.get(2).plate);
+        assertEquals(3, all.get(2).sequence);
+    }
+
+    @Test
+    public void recordFailingItsChecksumEndsReplay() throws Exception {
+        String path = new File(tempDir, "shop.wal").getPath();
+        appendRecords(path, "AAA-001");
+        long first = new File(path).length();
+        appendRecords(path, "AAA-002", "AAA-003");
+        try (RandomAccessFile file = new RandomAccessFile(path, "rw")) {
+            // A byte inside the second record's plate
+            file.seek(first + 16);
+            int b = file.read();
+            file.seek(first + 16);
+            file.write(b ^ 0x01);
+        }
+
+        CommandLog log = new CommandLog(path);
+        List<CommandLog.Entry> replayed = new ArrayList<>();
+        log.recover(0, replayed::add);
+        log.close();
+        assertEquals(1, replayed.size());
+        assertEquals("AAA-001", replayed.get(0).plate);
+        assertEquals(first, new File(path).length());
+    }
+
+    // Opens the log as a shop does on startup and appends one RENT per plate
+    private static void appendRecords(String path, String... plates) throws Exception {
+        CommandLog log = new CommandLog(path);
+        log.recover(0, entry -> { });
+        for(String plate : plates) {
+            log.append(CommandLog.RENT, plate, "SEDAN", 0, false);
+        }
+        log.close();
+    }
+
+    private static List<CommandLog.Entry> scan(String path) throws Exception {
+        List<CommandLog.Entry> entries = new ArrayList<>();
+        CommandLog.scan(path, 0, entries::add);
+        return entries;
+    }
+}
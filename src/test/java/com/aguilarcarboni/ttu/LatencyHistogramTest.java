@@ -0,0 +1,37 @@
+package com.aguilarcarboni.ttu;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void reportsPercentilesWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for(long v = 1; v <= 100_000; v++) {
+            histogram.record(v * 1000);
+        }
+        assertEquals(100_000, histogram.count());
+        assertWithin(50_000_000, histogram.percentileNanos(0.50));
+        assertWithin(99_000_000, histogram.percentileNanos(0.99));
+        assertWithin(99_900_000, histogram.percentileNanos(0.999));
+        assertEquals(100_000_000, histogram.maxNanos());
+    }
+
+    @Test
+    public void bucketsCoverEveryValueInOrder() {
+        for(long v : new long[]{0, 31, 32, 63, 64, 1_000_000, Long.MAX_VALUE / 2}) {
+            int index = LatencyHistogram.bucketIndex(v);
+            assertTrue(LatencyHistogram.bucketUpperBound(index) >= v);
+            if(index > 0) {
+                assertTrue(LatencyHistogram.bucketUpperBound(index - 1) < v);
+            }
+        }
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue(Math.abs(actual - expected) <= expected * 0.04, "expected ~" + expected + " but was " + actual);
+    }
+}
@@ -0,0 +1,133 @@
+package com.aguilarcarboni.ttu;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class LotFileTest {
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    public void directoryTracksCheckoutsAndCheckins() throws Exception {
+        try (LotFile lot = LotFile.open(new File(tempDir, "lot").getPath())) {
+            lot.checkinAll(List.of(new Vehicle("AAA-001", "SEDAN", 10), new Vehicle("AAA-002", "SEDAN", 20), new Vehicle("AAA-003", "VAN", 30)));
+            assertEquals(2, lot.available("SEDAN"));
+            assertEquals(0, lot.available("SUV"));
+            assertNull(lot.checkout("SUV"));
+
+            assertEquals("SEDAN", lot.checkout("SEDAN").getType());
+            assertEquals(1, lot.available("SEDAN"));
+            lot.checkin(new Vehicle("AAA-004", "SUV", 0));
+            assertEquals(1, lot.available("SUV"));
+            assertEquals("AAA-004", lot.checkout("SUV").getLicensePlate());
+            assertEquals(2, lot.count());
+        }
+    }
+
+    @Test
+    public void directoryIsRebuiltWhenAnotherHandleChangesTheLot() throws Exception {
+        String path = new File(tempDir, "lot").getPath();
+        try (LotFile shop = LotFile.open(path); LotFile other = LotFile.open(path)) {
+            shop.checkin(new Vehicle("AAA-001", "SEDAN", 10));
+            assertEquals(0, shop.available("VAN"));
+
+            // Stands in for another process: its changes only show up through the header's modification count
+            other.checkin(new Vehicle("BBB-001", "VAN", 5));
+            assertNotNull(other.checkout("SEDAN"));
+
+            assertEquals(1, shop.available("VAN"));
+            assertNull(shop.checkout("SEDAN"));
+            assertEquals("BBB-001", shop.checkout("VAN").getLicensePlate());
+        }
+    }
+
+    @Test
+    public void checkoutAllTakesUpToTheRequestedCarsAndFreesTheirSlots() throws Exception {
+        try (LotFile lot = LotFile.open(new File(tempDir, "lot").getPath())) {
+            for(int i = 0; i < 10; i++) {
+                lot.checkin(new Vehicle(PlateCodec.decode(100 + i), i < 7 ? "SEDAN" : "VAN", i));
+            }
+            assertEquals(5, lot.checkoutAll("SEDAN", 5).size());
+            assertEquals(2, lot.checkoutAll("SEDAN", 5).size());
+            assertEquals(0, lot.checkoutAll("SEDAN", 5).size());
+            assertEquals(3, lot.count());
+
+            // The freed slots are reused before the file grows
+            long length = new File(tempDir, "lot.lot").length();
+            for(int i = 0; i < 7; i++) {
+                lot.checkin(new Vehicle(PlateCodec.decode(200 + i), "SUV", i));
+            }
+            assertEquals(length, new File(tempDir, "lot.lot").length());
+            assertEquals(7, lot.available("SUV"));
+            assertEquals(3, lot.available("VAN"));
+        }
+    }
+
+    @Test
+    public void claimedCarsStayOutUntilReleasedOrArePutBackOnRestart() throws Exception {
+        String path = new File(tempDir, "lot").getPath();
+        long owner = LotFile.ownerStamp("A");
+        String logged;
+        try (LotFile lot = LotFile.open(path)) {
+            for(int i = 0; i < 6; i++) {
+                lot.checkin(new Vehicle(PlateCodec.decode(100 + i), "SEDAN", i));
+            }
+            LotFile.Claim released = lot.claim("SEDAN", 2, owner);
+            assertEquals(2, released.vehicles.size());
+            assertEquals(4, lot.available("SEDAN"));
+            released.release();
+
+            LotFile.Claim cancelled = lot.claim("SEDAN", 1, owner);
+            cancelled.cancel();
+            assertEquals(4, lot.available("SEDAN"));
+
+            // Left claimed, as by a shop that crashed before logging them
+            logged = lot.claim("SEDAN", 3, owner).vehicles.get(0).getLicensePlate();
+            assertEquals(1, lot.available("SEDAN"));
+        }
+        try (LotFile lot = LotFile.open(path)) {
+            assertEquals(1, lot.count());
+            assertEquals(0, lot.resolveClaims(LotFile.ownerStamp("B"), plate -> false).size());
+            // The shop's log has the first car, so only the other two go back
+            List<Vehicle> parked = lot.resolveClaims(owner, logged::equals);
+            assertEquals(2, parked.size());
+            assertEquals(3, lot.available("SEDAN"));
+            assertEquals(0, lot.resolveClaims(owner, plate -> false).size());
+
+            // Released slots are reused before the file grows
+            long length = new File(tempDir, "lot.lot").length();
+            lot.checkinAll(List.of(new Vehicle("AAA-001", "VAN", 0), new Vehicle("AAA-002", "VAN", 0)));
+            assertEquals(length, new File(tempDir, "lot.lot").length());
+        }
+    }
+
+    @Test
+    public void readOnlyHandleNeitherCreatesConvertsNorChangesALot() throws Exception {
+        String path = new File(tempDir, "lot").getPath();
+        Files.write(new File(tempDir, "lot.txt").toPath(), List.of("AAA-001,SEDAN,10"));
+        try (LotFile lot = LotFile.openReadOnly(path)) {
+            assertEquals(0, lot.readTable().size());
+        }
+        assertFalse(new File(tempDir, "lot.lot").exists());
+        assertTrue(new File(tempDir, "lot.txt").exists());
+
+        try (LotFile writer = LotFile.open(path); LotFile reader = LotFile.openReadOnly(path)) {
+            writer.checkin(new Vehicle("AAA-002", "VAN", 20));
+            assertEquals(2, reader.readTable().size());
+            assertNull(reader.checkout("VAN"));
+            reader.checkin(new Vehicle("AAA-003", "SUV", 0));
+            assertEquals(2, writer.count());
+            assertEquals(1, writer.available("VAN"));
+        }
+    }
+}
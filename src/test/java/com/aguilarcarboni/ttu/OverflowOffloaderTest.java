@@ -0,0 +1,49 @@
+package com.aguilarcarboni.ttu;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class OverflowOffloaderTest {
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    public void queuedCarsAreSpreadAcrossLotsAndReported() throws Exception {
+        String full = new File(tempDir, "full").getPath();
+        String empty = new File(tempDir, "empty").getPath();
+        List<Vehicle> parked = new ArrayList<>();
+        for(int i = 0; i < 4; i++) {
+            parked.add(new Vehicle(PlateCodec.decode(i), "SEDAN", 0));
+        }
+        LotFile.shared(full).checkinAll(parked);
+
+        List<Vehicle> offloaded = new ArrayList<>();
+        OverflowOffloader offloader = new OverflowOffloader("test", List.of(full, empty), new ShopMetrics(), new OverflowOffloader.Listener() {
+            @Override
+            public void beforeWrite() {
+            }
+
+            @Override
+            public synchronized void offloaded(List<Vehicle> vehicles) {
+                offloaded.addAll(vehicles);
+            }
+        });
+        List<String> targets = new ArrayList<>();
+        for(int i = 0; i < 6; i++) {
+            targets.add(offloader.enqueue(new Vehicle(PlateCodec.decode(100 + i), "VAN", i)));
+        }
+        offloader.close();
+
+        // The emptier lot takes each car; ties go to the first lot
+        assertEquals(List.of(empty, empty, empty, empty, full, empty), targets);
+        assertEquals(6, offloaded.size());
+        assertEquals(5, LotFile.shared(full).count());
+        assertEquals(5, LotFile.shared(empty).count());
+    }
+}
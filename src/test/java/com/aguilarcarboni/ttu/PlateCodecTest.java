@@ -0,0 +1,23 @@
+package com.aguilarcarboni.ttu;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+public class PlateCodecTest {
+
+    @Test
+    public void roundTripsBoundaryPlates() {
+        assertEquals(0, PlateCodec.encode("AAA-000"));
+        assertEquals(PlateCodec.PLATE_SPACE - 1, PlateCodec.encode("ZZZ-999"));
+        assertEquals("ABC-123", PlateCodec.decode(PlateCodec.encode("ABC-123")));
+        assertEquals("ZZZ-999", PlateCodec.decode(PlateCodec.PLATE_SPACE - 1));
+    }
+
+    @Test
+    public void rejectsPlatesOutsideTheFormat() {
+        assertEquals(PlateCodec.INVALID, PlateCodec.encode("YZ1-567"));
+        assertEquals(PlateCodec.INVALID, PlateCodec.encode("ABC123"));
+        assertEquals(PlateCodec.INVALID, PlateCodec.encode(null));
+    }
+}
@@ -0,0 +1,111 @@
+package com.aguilarcarboni.ttu;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class PlateRegistryTest {
+
+    @TempDir
+    Path dir;
+
+    // Always starts the search at the same plate
+    private static Random startingAt(int code) {
+        return new Random() {
+            @Override
+            public int nextInt(int bound) {
+                return code;
+            }
+        };
+    }
+
+    @Test
+    public void reservationsCollideAndSurviveReopening() throws Exception {
+        String path = dir.resolve("plates.bin").toString();
+        try (PlateRegistry registry = PlateRegistry.open(path, null)) {
+            assertTrue(registry.reserve("ABC-123"));
+            assertFalse(registry.reserve("ABC-123"));
+            assertTrue(registry.contains("ABC-123"));
+            assertFalse(registry.contains("ABC-124"));
+            assertFalse(registry.contains("YZ1-567"));
+        }
+        try (PlateRegistry registry = PlateRegistry.open(path, null)) {
+            assertFalse(registry.reserve("ABC-123"));
+            assertTrue(registry.reserve("ABC-124"));
+        }
+    }
+
+    @Test
+    public void reserveRandomSkipsTakenPlatesAndWrapsAround() throws Exception {
+        try (PlateRegistry registry = PlateRegistry.open(dir.resolve("plates.bin").toString(), null)) {
+            int start = PlateCodec.encode("KLM-500");
+            registry.reserve("KLM-500");
+            registry.reserve("KLM-501");
+            assertEquals("KLM-502", registry.reserveRandom(startingAt(start)));
+            assertEquals("KLM-503", registry.reserveRandom(startingAt(start)));
+
+            registry.reserve("ZZZ-999");
+            registry.reserve("AAA-000");
+            assertEquals("AAA-001", registry.reserveRandom(startingAt(PlateCodec.PLATE_SPACE - 1)));
+        }
+    }
+
+    @Test
+    public void concurrentReservationsOfTheSamePlatesSucceedOnce() throws Exception {
+        try (PlateRegistry registry = PlateRegistry.open(dir.resolve("plates.bin").toString(), null)) {
+            ExecutorService pool = Executors.newFixedThreadPool(4);
+            List<Future<Integer>> wins = new ArrayList<>();
+            for(int t = 0; t < 4; t++) {
+                wins.add(pool.submit(() -> {
+                    int won = 0;
+                    for(int i = 0; i < 2000; i++) {
+                        if(registry.reserve(PlateCodec.decode(i))) {
+                            won++;
+                        }
+                    }
+                    return won;
+                }));
+            }
+            int total = 0;
+            for(Future<Integer> w : wins) {
+                total += w.get();
+            }
+            pool.shutdown();
+            assertEquals(2000, total);
+        }
+    }
+
+    @Test
+    public void importsLegacyTextRegistryOnlyIntoANewBitmap() throws Exception {
+        Path legacy = dir.resolve("plates.txt");
+        Files.write(legacy, List.of("ABC-123", " DEF-456 ", "YZ1-567", ""));
+        String path = dir.resolve("plates.bin").toString();
+        try (PlateRegistry registry = PlateRegistry.open(path, legacy.toString())) {
+            assertTrue(registry.contains("ABC-123"));
+            assertTrue(registry.contains("DEF-456"));
+            assertFalse(registry.reserve("ABC-123"));
+            assertTrue(registry.reserve("GHI-789"));
+        }
+        assertFalse(Files.exists(legacy));
+        assertTrue(Files.exists(dir.resolve("plates.txt.migrated")));
+
+        // A legacy file that shows up later is not merged into an existing bitmap
+        Files.write(legacy, List.of("XYZ-000"));
+        try (PlateRegistry registry = PlateRegistry.open(path, legacy.toString())) {
+            assertFalse(registry.contains("XYZ-000"));
+            assertTrue(registry.contains("GHI-789"));
+        }
+        assertTrue(Files.exists(legacy));
+    }
+}
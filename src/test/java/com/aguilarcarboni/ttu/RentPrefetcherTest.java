@@ -0,0 +1,41 @@
+package com.aguilarcarboni.ttu;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import org.junit.jupiter.api.Test;
+
+public class RentPrefetcherTest {
+
+    @Test
+    public void typesBelowTheLowWaterMarkAreToppedUp() throws Exception {
+        AtomicIntegerArray stocked = new AtomicIntegerArray(VehicleType.values().length);
+        CountDownLatch filled = new CountDownLatch(VehicleType.values().length);
+        RentPrefetcher prefetcher = new RentPrefetcher("test", 2, new RentPrefetcher.Stock() {
+            @Override
+            public int available(VehicleType type) {
+                return stocked.get(type.ordinal());
+            }
+
+            @Override
+            public int prefetch(VehicleType type, int count) {
+                stocked.addAndGet(type.ordinal(), count);
+                filled.countDown();
+                return count;
+            }
+        });
+        try {
+            assertTrue(filled.await(5, TimeUnit.SECONDS));
+            for(VehicleType type : VehicleType.values()) {
+                assertEquals(2, stocked.get(type.ordinal()));
+            }
+        } finally {
+            prefetcher.close();
+        }
+        // A rent finishing while the shop closes must not fail
+        prefetcher.rented(VehicleType.SEDAN, 1, 0);
+    }
+}
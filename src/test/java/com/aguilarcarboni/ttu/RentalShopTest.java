@@ -0,0 +1,284 @@
+package com.aguilarcarboni.ttu;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class RentalShopTest {
+
+    @TempDir
+    File tempDir;
+
+    private String lot;
+
+    @BeforeEach
+    public void setUp() {
+        RentalShop.useOutputsDirectory(new File(tempDir, "outputs").getPath());
+        RentalShop.ensureDirectoriesExist();
+        lot = new File(tempDir, "Downtown").getPath();
+        List<Vehicle> cars = new ArrayList<>();
+        for(int i = 0; i < 10; i++) {
+            cars.add(new Vehicle(PlateCodec.decode(100 + i), i < 6 ? "SEDAN" : "VAN", 0));
+        }
+        LotFile.shared(lot).checkinAll(cars);
+    }
+
+    @Test
+    public void snapshotAndCommandLogRecoverTheStateAfterACrash() {
+        RentalShop shop = new RentalShop("A", 10, List.of(lot));
+        List<String> sedans = rentedPlates(shop.execute("RENT SEDAN 3"));
+        assertEquals(3, sedans.size());
+        shop.returnVehicle(sedans.get(0), 100);
+        shop.checkpoint();
+        shop.returnVehicle(sedans.get(1), 50);
+        String van = rentedPlates(shop.execute("RENT VAN")).get(0);
+        shop.sync();
+        shop.abandon();
+
+        RentalShop recovered = new RentalShop("A", 10, List.of(lot));
+        CommandResult.StatusReport status = recovered.status();
+        assertEquals(Set.of(sedans.get(2), van), new HashSet<>(plates(status.rented)));
+        assertTrue(plates(status.inventory).containsAll(sedans.subList(0, 2)));
+        // The first sedan came from shop inventory, the second from the lot at a discount
+        assertEquals(145.0, status.totalRevenue, 0.001);
+        RevenueAggregates revenue = recovered.transactions().revenue;
+        assertEquals(1, revenue.countBySource(RevenueAggregates.SOURCE_SHOP));
+        assertEquals(1, revenue.countBySource(RevenueAggregates.SOURCE_LOT));
+        assertEquals(10, status.inventory.size() + status.rented.size() + LotFile.shared(lot).count());
+        recovered.close();
+    }
+
+    @Test
+    public void returnsSealedIntoHistoryAfterTheSnapshotAreNotReplayedTwice() {
+        RentalShop shop = new RentalShop("A", 10, List.of(lot));
+        int returns = 0;
+        for(int i = 0; i < TransactionStore.SEGMENT_SIZE - 5; i++) {
+            shop.returnVehicle(rentedPlates(shop.rent("SEDAN")).get(0), 1);
+            returns++;
+        }
+        shop.checkpoint();
+        // These seal the first history segment, so it holds returns that are also in the command log
+        for(int i = 0; i < 10; i++) {
+            shop.returnVehicle(rentedPlates(shop.rent("SEDAN")).get(0), 1);
+            returns++;
+        }
+        shop.sync();
+        shop.abandon();
+
+        RentalShop recovered = new RentalShop("A", 10, List.of(lot));
+        CommandResult.TransactionReport report = recovered.transactions();
+        assertEquals(returns, report.total);
+        assertEquals(returns - RentalShop.TRANSACTION_PAGE_SIZE, report.first);
+        assertEquals(RentalShop.TRANSACTION_PAGE_SIZE, report.transactions.size());
+        assertEquals(returns, report.revenue.countBySource(RevenueAggregates.SOURCE_SHOP) + report.revenue.countBySource(RevenueAggregates.SOURCE_LOT));
+        assertEquals(returns, report.revenue.totalRevenue(), 0.001);
+
+        // A page that starts in the sealed segment and runs into the tail
+        CommandResult.TransactionReport page = (CommandResult.TransactionReport) recovered.execute("TRANSACTIONS " + (TransactionStore.SEGMENT_SIZE - 95));
+        assertEquals(TransactionStore.SEGMENT_SIZE - 96, page.first);
+        assertEquals(RentalShop.TRANSACTION_PAGE_SIZE, page.transactions.size());
+        assertTrue(page.render().contains("(Transactions " + (TransactionStore.SEGMENT_SIZE - 95) + " to "));
+        assertTrue(recovered.execute("TRANSACTIONS 0") instanceof CommandResult.Message);
+        recovered.close();
+    }
+
+    @Test
+    public void concurrentReturnsOfTheSameCarChargeItOnce() throws Exception {
+        RentalShop shop = new RentalShop("A", 20, List.of(lot));
+        List<String> rented = rentedPlates(shop.execute("RENT SEDAN 6"));
+        assertEquals(6, rented.size());
+        for(int round = 0; round < 20; round++) {
+            assertEquals(rented.size(), returnConcurrently(rented, shop, shop));
+            CommandResult.StatusReport status = shop.status();
+            assertEquals(0, status.rented.size());
+            assertEquals(new HashSet<>(rented), new HashSet<>(plates(status.inventory)));
+            assertEquals(rented.size(), status.inventory.size());
+            assertEquals(new HashSet<>(rented), new HashSet<>(rentedPlates(shop.execute("RENT SEDAN 6"))));
+        }
+        // The first round has one car from shop inventory and five from the lot at a discount; returned cars
+        // are shop inventory from then on
+        assertEquals(55.0 + 19 * 60.0, shop.status().totalRevenue, 0.001);
+        shop.close();
+    }
+
+    @Test
+    public void concurrentReturnsAtTwoShopsChargeTheCarOnce() throws Exception {
+        RentalShop a = new RentalShop("A", 20, List.of(lot));
+        RentalShop b = new RentalShop("B", 20, List.of(lot));
+        int returned = 0;
+        for(int round = 0; round < 20; round++) {
+            // Every sedan in the fleet, wherever the last round left it
+            List<String> rented = rentedPlates(a.execute("RENT SEDAN 6"));
+            rented.addAll(rentedPlates(b.execute("RENT SEDAN 6")));
+            assertEquals(6, rented.size());
+            assertEquals(rented.size(), returnConcurrently(rented, a, b));
+            assertEquals(0, a.status().rented.size() + b.status().rented.size());
+            returned += rented.size();
+        }
+        assertEquals(returned, a.transactions().revenue.countByType(VehicleType.SEDAN) + b.transactions().revenue.countByType(VehicleType.SEDAN));
+        a.close();
+        b.close();
+    }
+
+    @Test
+    public void batchRentTakesInventoryThenLotsAndReportsTheShortfall() {
+        RentalShop shop = new RentalShop("A", 20, List.of(lot));
+        CommandResult.Batch batch = (CommandResult.Batch) shop.execute("RENT SEDAN 8");
+        assertEquals(7, batch.results.size());
+        assertFalse(((CommandResult.Rented) batch.results.get(0)).fromLot);
+        for(int i = 1; i < 6; i++) {
+            assertTrue(((CommandResult.Rented) batch.results.get(i)).fromLot);
+        }
+        assertTrue(batch.results.get(6) instanceof CommandResult.NoVehicleAvailable);
+        assertEquals(0, LotFile.shared(lot).available("SEDAN"));
+        assertEquals(6, shop.status().rented.size());
+
+        // Every car is in the registry, so another shop can take any of them back
+        RentalShop other = new RentalShop("B", 20, List.of(lot));
+        assertTrue(other.returnVehicle(rentedPlates(batch).get(3), 10) instanceof CommandResult.Returned);
+        assertTrue(shop.execute("RENT SEDAN 0") instanceof CommandResult.Message);
+        assertTrue(shop.execute("RENT SEDAN two") instanceof CommandResult.Message);
+        other.close();
+        shop.close();
+    }
+
+    @Test
+    public void batchReturnChargesEachRentalOnceAndSurvivesACrash() {
+        RentalShop shop = new RentalShop("A", 20, List.of(lot));
+        List<String> rented = rentedPlates(shop.execute("RENT SEDAN 3"));
+        String a = rented.get(0);
+        String b = rented.get(1);
+
+        // Nothing is returned when any kilometer value is bad or a pair is incomplete
+        assertTrue(shop.execute("RETURN " + a + " 10 " + b + " x") instanceof CommandResult.Message);
+        assertTrue(shop.execute("RETURN " + a + " 10 " + b) instanceof CommandResult.Message);
+        assertEquals(3, shop.status().rented.size());
+
+        CommandResult.Batch batch = (CommandResult.Batch) shop.execute("RETURN " + a + " 10 " + b + " 20 " + a + " 30 ZZZ-999 5");
+        assertEquals(4, batch.results.size());
+        assertEquals(10, ((CommandResult.Returned) batch.results.get(0)).kilometers);
+        assertEquals(20, ((CommandResult.Returned) batch.results.get(1)).kilometers);
+        assertTrue(batch.results.get(2) instanceof CommandResult.NotRented);
+        assertTrue(batch.results.get(3) instanceof CommandResult.NotRented);
+        double revenue = shop.status().totalRevenue;
+        shop.sync();
+        shop.abandon();
+
+        RentalShop recovered = new RentalShop("A", 20, List.of(lot));
+        CommandResult.StatusReport status = recovered.status();
+        assertEquals(List.of(rented.get(2)), plates(status.rented));
+        assertTrue(plates(status.inventory).containsAll(List.of(a, b)));
+        assertEquals(revenue, status.totalRevenue, 0.001);
+        assertEquals(2, recovered.transactions().revenue.countByType(VehicleType.SEDAN));
+        recovered.close();
+    }
+
+    @Test
+    public void lotCheckoutsWhoseRentNeverReachedTheLogGoBackToTheLot() throws Exception {
+        RentalShop shop = new RentalShop("A", 20, List.of(lot));
+        File wal = new File(tempDir, "outputs/shops/A.wal");
+        long logged = wal.length();
+        List<String> rented = rentedPlates(shop.execute("RENT SEDAN 3"));
+        assertEquals(3, rented.size());
+        assertEquals(7, LotFile.shared(lot).count());
+        shop.abandon();
+        // The crash lost the RENT records, which were never synced
+        try (RandomAccessFile file = new RandomAccessFile(wal, "rw")) {
+            file.setLength(logged);
+        }
+
+        RentalShop recovered = new RentalShop("A", 20, List.of(lot));
+        CommandResult.StatusReport status = recovered.status();
+        assertEquals(0, status.rented.size());
+        assertEquals(9, LotFile.shared(lot).count());
+        assertEquals(10, status.inventory.size() + LotFile.shared(lot).count());
+        // Nor are the two lot cars left in the registry as rented
+        RentalShop other = new RentalShop("B", 20, List.of(lot));
+        for(String plate : rented.subList(1, 3)) {
+            assertTrue(other.returnVehicle(plate, 10) instanceof CommandResult.NotRented);
+        }
+        other.close();
+        recovered.close();
+    }
+
+    @Test
+    public void registryFailuresLeaveRentalsAndInventoryAsTheyWere() throws Exception {
+        RentalShop shop = new RentalShop("A", 20, List.of(lot));
+        List<String> rented = rentedPlates(shop.execute("RENT SEDAN 3"));
+        assertEquals(3, rented.size());
+        String registryPath = new File(tempDir, "outputs").getPath() + File.separator + "registry" + File.separator + "rented_registry";
+        // Every registry call now fails with an I/O error
+        ShardedRentedRegistry.shared(registryPath, ShardedRentedRegistry.DEFAULT_SHARDS).close();
+
+        CommandResult.Batch returned = (CommandResult.Batch) shop.execute("RETURN " + rented.get(0) + " 10 " + rented.get(1) + " 20");
+        assertTrue(returned.results.get(0) instanceof CommandResult.Message);
+        assertTrue(returned.results.get(1) instanceof CommandResult.Message);
+        assertEquals(List.of(), rentedPlates(shop.execute("RENT VAN 2")));
+        assertTrue(shop.execute("RENT VAN") instanceof CommandResult.Message);
+        shop.checkpoint();
+
+        CommandResult.StatusReport status = shop.status();
+        assertEquals(new HashSet<>(rented), new HashSet<>(plates(status.rented)));
+        assertEquals(0, status.totalRevenue, 0.001);
+        assertEquals(4, LotFile.shared(lot).available("VAN"));
+        assertEquals(10, status.inventory.size() + status.rented.size() + LotFile.shared(lot).count());
+        shop.close();
+    }
+
+    // Eight threads return every plate at once, alternating between the two shops; returns how many succeeded
+    private static int returnConcurrently(List<String> plates, RentalShop first, RentalShop second) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Integer>> returned = new ArrayList<>();
+        for(int t = 0; t < 8; t++) {
+            RentalShop shop = t % 2 == 0 ? first : second;
+            returned.add(pool.submit(() -> {
+                start.await();
+                int count = 0;
+                for(String plate : plates) {
+                    if(shop.returnVehicle(plate, 10) instanceof CommandResult.Returned) {
+                        count++;
+                    }
+                }
+                return count;
+            }));
+        }
+        start.countDown();
+        int total = 0;
+        for(Future<Integer> f : returned) {
+            total += f.get();
+        }
+        pool.shutdown();
+        return total;
+    }
+
+    static List<String> rentedPlates(CommandResult result) {
+        List<CommandResult> results = result instanceof CommandResult.Batch ? ((CommandResult.Batch) result).results : List.of(result);
+        List<String> plates = new ArrayList<>();
+        for(CommandResult r : results) {
+            if(r instanceof CommandResult.Rented) {
+                plates.add(((CommandResult.Rented) r).vehicle.getLicensePlate());
+            }
+        }
+        return plates;
+    }
+
+    private static List<String> plates(List<Vehicle> vehicles) {
+        return vehicles.stream().map(Vehicle::getLicensePlate).collect(Collectors.toList());
+    }
+}
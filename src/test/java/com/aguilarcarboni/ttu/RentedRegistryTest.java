@@ -0,0 +1,178 @@
+package com.aguilarcarboni.ttu;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class RentedRegistryTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void keepsEntriesAcrossGrowthAndCompaction() throws Exception {
+        try (RentedRegistry registry = RentedRegistry.open(dir.resolve("rented.idx").toString(), null)) {
+            for(int i = 0; i < 5000; i++) {
+                registry.put(PlateCodec.decode(i * 7), i % 2 == 0 ? "SEDAN" : "VAN", i % 3 == 0);
+            }
+            for(int i = 0; i < 5000; i += 2) {
+                assertEquals("SEDAN", registry.remove(PlateCodec.decode(i * 7)).type);
+            }
+            registry.compactIfNeeded();
+
+            assertEquals(2500, registry.size());
+            assertNull(registry.get(PlateCodec.decode(0)));
+            RentedRegistry.Entry entry = registry.get(PlateCodec.decode(3 * 7));
+            assertEquals("VAN", entry.type);
+            assertTrue(entry.discount);
+        }
+    }
+
+    @Test
+    public void importsLegacyTextRegistry() throws Exception {
+        Path legacy = dir.resolve("rented_registry.txt");
+        Files.write(legacy, List.of("ABC-123,SUV,true", "YZ1-567,VAN,false"));
+        try (RentedRegistry registry = RentedRegistry.open(dir.resolve("rented.idx").toString(), legacy.toString())) {
+            assertEquals(1, registry.size());
+            assertEquals("SUV", registry.remove("ABC-123").type);
+            assertNull(registry.remove("ABC-123"));
+        }
+    }
+
+    @Test
+    public void shardedRegistryMigratesSingleFile() throws Exception {
+        String base = dir.resolve("rented_registry").toString();
+        try (RentedRegistry single = RentedRegistry.open(base + ".idx", null)) {
+            for(int i = 0; i < 100; i++) {
+                single.put(PlateCodec.decode(i), "SUV", false);
+            }
+        }
+        try (ShardedRentedRegistry sharded = ShardedRentedRegistry.open(base, 4)) {
+            assertEquals(4, sharded.shardCount());
+            assertEquals(100, sharded.size());
+            assertEquals("SUV", sharded.remove(PlateCodec.decode(42)).type);
+        }
+        assertTrue(Files.exists(dir.resolve("rented_registry.idx.migrated")));
+        try (ShardedRentedRegistry reopened = ShardedRentedRegistry.open(base, 8)) {
+            assertEquals(4, reopened.shardCount());
+            assertEquals(99, reopened.size());
+        }
+    }
+
+    @Test
+    public void batchesSpanShardsAndLineUpWithTheirPlates() throws Exception {
+        try (ShardedRentedRegistry registry = ShardedRentedRegistry.open(dir.resolve("rented_registry").toString(), 4)) {
+            List<RentedRegistry.Entry> entries = new ArrayList<>();
+            for(int i = 0; i < 300; i++) {
+                entries.add(new RentedRegistry.Entry(PlateCodec.decode(i), i % 2 == 0 ? "SEDAN" : "SUV", i % 5 == 0));
+            }
+            registry.putAll(entries);
+            assertEquals(300, registry.size());
+
+            RentedRegistry.Entry[] removed = registry.removeAll(List.of(PlateCodec.decode(10), "ZZZ-999", PlateCodec.decode(7), PlateCodec.decode(10)));
+            assertEquals("SEDAN", removed[0].type);
+            assertTrue(removed[0].discount);
+            assertNull(removed[1]);
+            assertEquals("SUV", removed[2].type);
+            assertNull(removed[3]);
+            assertEquals(298, registry.size());
+        }
+    }
+
+    @Test
+    public void compactionShrinksTheTableAndOtherHandlesFollowIt() throws Exception {
+        Path path = dir.resolve("rented.idx");
+        try (RentedRegistry writer = RentedRegistry.open(path.toString(), null);
+             RentedRegistry reader = RentedRegistry.open(path.toString(), null)) {
+            for(int i = 0; i < 5000; i++) {
+                writer.put(PlateCodec.decode(i), "SUV", false);
+            }
+            // The reader still had the first table open when the writer grew it
+            assertEquals(5000, reader.size());
+            long grown = Files.size(path);
+            for(int i = 0; i < 4990; i++) {
+                reader.remove(PlateCodec.decode(i));
+            }
+            writer.compactIfNeeded();
+
+            assertTrue(Files.size(path) < grown);
+            assertEquals(10, reader.size());
+            assertEquals("SUV", reader.get(PlateCodec.decode(4995)).type);
+            assertNull(writer.get(PlateCodec.decode(0)));
+        }
+        try (var files = Files.list(dir)) {
+            assertEquals(1, files.count());
+        }
+    }
+
+    @Test
+    public void readOnlyHandleFollowsCompactionAndRefusesWrites() throws Exception {
+        Path path = dir.resolve("rented.idx");
+        assertThrows(NoSuchFileException.class, () -> RentedRegistry.openReadOnly(path.toString()));
+        try (RentedRegistry writer = RentedRegistry.open(path.toString(), null);
+             RentedRegistry reader = RentedRegistry.openReadOnly(path.toString())) {
+            for(int i = 0; i < 2000; i++) {
+                writer.put(PlateCodec.decode(i), "SEDAN", false);
+            }
+            for(int i = 0; i < 1990; i++) {
+                writer.remove(PlateCodec.decode(i));
+            }
+            writer.compactIfNeeded();
+            assertEquals(10, reader.size());
+            assertTrue(reader.contains(PlateCodec.decode(1995)));
+            assertThrows(IOException.class, () -> reader.put("ABC-123", "VAN", false));
+            assertThrows(IOException.class, () -> reader.remove(PlateCodec.decode(1995)));
+            assertTrue(writer.contains(PlateCodec.decode(1995)));
+        }
+    }
+
+    @Test
+    public void rehashInterruptedBeforeTheRenameIsFinishedByTheNextHandle() throws Exception {
+        Path path = dir.resolve("rented.idx");
+        try (RentedRegistry registry = RentedRegistry.open(path.toString(), null)) {
+            registry.put("ABC-123", "VAN", true);
+        }
+        // What a rehash leaves if it dies between retiring the old table and renaming the new one over it
+        Path replacement = dir.resolve("rented.idx.rehash-1");
+        Files.copy(path, replacement);
+        try (RandomAccessFile file = new RandomAccessFile(replacement.toFile(), "rw")) {
+            file.seek(20);
+            file.writeLong(1);
+        }
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.seek(28);
+            file.writeInt(1);
+        }
+
+        // A read-only handle reads the replacement but leaves the rename to a writer
+        try (RentedRegistry registry = RentedRegistry.openReadOnly(path.toString())) {
+            assertTrue(registry.get("ABC-123").discount);
+        }
+        assertTrue(Files.exists(replacement));
+
+        try (RentedRegistry registry = RentedRegistry.open(path.toString(), null)) {
+            assertTrue(registry.get("ABC-123").discount);
+            registry.put("DEF-456", "SEDAN", false);
+            assertEquals(2, registry.size());
+        }
+        assertFalse(Files.exists(replacement));
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "r")) {
+            file.seek(20);
+            assertEquals(1, file.readLong());
+            assertEquals(0, file.readInt());
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.aguilarcarboni.ttu;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ShopServerTest {
+
+    @TempDir
+    File tempDir;
+
+    private String lot;
+
+    @BeforeEach
+    public void setUp() {
+        RentalShop.useOutputsDirectory(new File(tempDir, "outputs").getPath());
+        RentalShop.ensureDirectoriesExist();
+        lot = new File(tempDir, "Downtown").getPath();
+        List<Vehicle> cars = new ArrayList<>();
+        for(int i = 0; i < 4; i++) {
+            cars.add(new Vehicle(PlateCodec.decode(200 + i), "SUV", 0));
+        }
+        LotFile.shared(lot).checkinAll(cars);
+    }
+
+    @Test
+    public void sessionsOpenAShopAndShareIt() throws Exception {
+        ShopServer server = new ShopServer();
+        Map<String, String> socket = Map.of("--socket", new File(tempDir, "shop.sock").getPath());
+        try (ServerSocketChannel listener = ShopServer.bind(socket)) {
+            Thread acceptor = new Thread(() -> {
+                try {
+                    server.acceptConnections(listener);
+                } catch(Exception e) {
+                    // The listener was closed
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+
+            try (ShopClient first = ShopClient.connect(socket);
+                 ShopClient second = ShopClient.connect(socket)) {
+                assertTrue(first.send("RENT SUV").startsWith("Error: send OPEN"));
+                assertTrue(first.send("OPEN --location=A --sync=every:10").startsWith("Error: --sync is not supported"));
+                assertTrue(first.send("OPEN --location=A --spaces-available=x").startsWith("Error opening shop"));
+                assertTrue(first.send("OPEN --location=A --spaces-available=10 --lots=" + lot).startsWith("Connected to A Rental Shop."));
+                String rented = first.send("RENT SUV");
+                assertTrue(rented.startsWith("RENT: Vehicle "), rented);
+                String plate = rented.substring("RENT: Vehicle ".length(), rented.indexOf(' ', "RENT: Vehicle ".length()));
+
+                // The second session gets the warm shop, whatever it passes along
+                assertTrue(second.send("OPEN --location=A").startsWith("Connected to A Rental Shop."));
+                assertTrue(second.send("LIST").contains(plate));
+                assertTrue(second.send("RETURN " + plate + " 10").startsWith("RETURN: Vehicle " + plate + " has been returned."));
+            }
+        } finally {
+            server.closeAll();
+        }
+    }
+
+    @Test
+    public void concurrentOpensLoadTheShopOnce() throws Exception {
+        ShopServer server = new ShopServer();
+        Map<String, String> flags = Map.of("--location", "A", "--spaces-available", "10", "--lots", lot);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<RentalShop>> opened = new ArrayList<>();
+        for(int i = 0; i < 8; i++) {
+            opened.add(pool.submit(() -> server.shopFor(flags)));
+        }
+        RentalShop shop = opened.get(0).get();
+        for(Future<RentalShop> f : opened) {
+            assertSame(shop, f.get());
+        }
+        pool.shutdown();
+        // The shop pulled one car of each type it could find when it was first loaded
+        assertEquals(3, LotFile.shared(lot).count());
+        server.closeAll();
+    }
+}
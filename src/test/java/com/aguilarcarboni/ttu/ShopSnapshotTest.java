@@ -0,0 +1,84 @@
+package com.aguilarcarboni.ttu;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ShopSnapshotTest {
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    public void binarySnapshotRoundTrips() throws Exception {
+        String path = new File(tempDir, "Shop.snap").getPath();
+        sample().write(path);
+
+        ShopSnapshot read = ShopSnapshot.read("Shop", path);
+        assertEquals(12, read.parkingCapacity);
+        assertEquals(List.of("lots/A", "lots/B"), read.lots);
+        assertEquals(42, read.sequence);
+        assertEquals(4096, read.sealedHistory);
+        assertEquals(2, read.inventory.size());
+        assertEquals("VAN", read.inventory.typeNameAt(read.inventory.find("ABC-123")));
+        assertEquals(1500, read.inventory.kilometersAt(read.inventory.find("YZA-567")));
+        assertEquals(RentalShop.LOT_DISCOUNT, read.inventory.flagsAt(read.inventory.find("YZA-567")));
+        assertEquals(RentalShop.LOT_DISCOUNT, read.rentals.flagsAt(read.rentals.find("XYZ-999")));
+        assertEquals(9000, read.offloading.kilometersAt(read.offloading.find("MOV-001")));
+        assertEquals(2, read.revenue.transactionCount());
+        assertEquals(181.0, read.revenue.totalRevenue(), 0.001);
+
+        List<Transaction> tail = read.historyTail();
+        assertEquals(2, tail.size());
+        assertEquals("YZ1-567", tail.get(1).getLicensePlate());
+        assertEquals(90, tail.get(1).getCharge(), 0.001);
+    }
+
+    @Test
+    public void corruptBodyIsRejected() throws Exception {
+        String path = new File(tempDir, "Shop.snap").getPath();
+        sample().write(path);
+        try (RandomAccessFile file = new RandomAccessFile(path, "rw")) {
+            file.seek(40);
+            file.write(file.read() ^ 0xFF);
+        }
+        assertThrows(IOException.class, () -> ShopSnapshot.read("Shop", path));
+    }
+
+    @Test
+    public void unknownVersionIsRejected() throws Exception {
+        String path = new File(tempDir, "Shop.snap").getPath();
+        sample().write(path);
+        try (RandomAccessFile file = new RandomAccessFile(path, "rw")) {
+            file.seek(4);
+            file.writeShort(2);
+        }
+        assertThrows(IOException.class, () -> ShopSnapshot.read("Shop", path));
+    }
+
+    private static ShopSnapshot sample() {
+        ShopSnapshot snapshot = new ShopSnapshot();
+        snapshot.location = "Shop";
+        snapshot.parkingCapacity = 12;
+        snapshot.lots = List.of("lots/A", "lots/B");
+        snapshot.sequence = 42;
+        snapshot.sealedHistory = 4096;
+        snapshot.inventory.put(new Vehicle("ABC-123", "VAN", 320), (byte) 0);
+        snapshot.inventory.put(new Vehicle("YZA-567", "SEDAN", 1500), RentalShop.LOT_DISCOUNT);
+        snapshot.rentals.put(new Vehicle("XYZ-999", "SUV", 80), RentalShop.LOT_DISCOUNT);
+        snapshot.offloading.put(new Vehicle("MOV-001", "SEDAN", 9000), (byte) 0);
+        List<Transaction> tail = new ArrayList<>();
+        tail.add(new Transaction("DEF-456", "SUV", 101, true, 91));
+        tail.add(new Transaction("YZ1-567", "SEDAN", 90, false, 90));
+        snapshot.setHistoryTail(tail);
+        snapshot.revenue = RevenueAggregates.rebuild(tail);
+        return snapshot;
+    }
+}
@@ -0,0 +1,121 @@
+package com.aguilarcarboni.ttu;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class TransactionStoreTest {
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    public void sealsFullSegmentsAndStreamsEverythingBack() throws Exception {
+        String path = new File(tempDir, "shop.history").getPath();
+        TransactionStore store = TransactionStore.open(path);
+        int total = TransactionStore.SEGMENT_SIZE * 2 + 10;
+        for(int i = 0; i < total; i++) {
+            store.append(transaction(i));
+        }
+        assertEquals(TransactionStore.SEGMENT_SIZE * 2, store.sealedCount());
+        assertEquals(10, store.tail().size());
+
+        List<Transaction> read = new ArrayList<>();
+        store.view().forEach(read::add);
+        assertEquals(total, read.size());
+        for(int i = 0; i < total; i++) {
+            assertSame(transaction(i), read.get(i));
+        }
+    }
+
+    @Test
+    public void pagedViewsStartMidSegmentAndStopAtTheLimit() throws Exception {
+        TransactionStore store = TransactionStore.open(new File(tempDir, "shop.history").getPath());
+        int total = TransactionStore.SEGMENT_SIZE * 2 + 10;
+        for(int i = 0; i < total; i++) {
+            store.append(transaction(i));
+        }
+        List<Transaction> page = new ArrayList<>();
+        store.view(TransactionStore.SEGMENT_SIZE - 5, 20).forEach(page::add);
+        assertEquals(20, page.size());
+        for(int i = 0; i < page.size(); i++) {
+            assertSame(transaction(TransactionStore.SEGMENT_SIZE - 5 + i), page.get(i));
+        }
+
+        page.clear();
+        store.view(total - 5, 100).forEach(page::add);
+        assertEquals(5, page.size());
+        assertSame(transaction(total - 1), page.get(4));
+
+        page.clear();
+        store.view(total, 100).forEach(page::add);
+        assertEquals(0, page.size());
+    }
+
+    @Test
+    public void revenueAggregatesRebuildFromTheStore() throws Exception {
+        TransactionStore store = TransactionStore.open(new File(tempDir, "shop.history").getPath());
+        RevenueAggregates running = new RevenueAggregates();
+        for(int i = 0; i < TransactionStore.SEGMENT_SIZE + 100; i++) {
+            store.append(transaction(i));
+            running.record(transaction(i));
+        }
+        RevenueAggregates rebuilt = RevenueAggregates.rebuild(store.view());
+        assertEquals(running.totalRevenue(), rebuilt.totalRevenue(), 0.001);
+        assertEquals(running.totalDiscount(), rebuilt.totalDiscount(), 0.001);
+        for(VehicleType type : VehicleType.values()) {
+            assertEquals(running.countByType(type), rebuilt.countByType(type));
+            assertEquals(running.revenueByType(type), rebuilt.revenueByType(type), 0.001);
+        }
+        assertEquals(running.countBySource(RevenueAggregates.SOURCE_LOT), rebuilt.countBySource(RevenueAggregates.SOURCE_LOT));
+    }
+
+    @Test
+    public void replayAfterRestoreSkipsReturnsSealedSinceTheSnapshot() throws Exception {
+        String path = new File(tempDir, "shop.history").getPath();
+        TransactionStore store = TransactionStore.open(path);
+        for(int i = 0; i < 100; i++) {
+            store.append(transaction(i));
+        }
+        List<Transaction> snapshotTail = store.tail();
+        long snapshotSealed = store.sealedCount();
+
+        // Returns logged after the snapshot, enough to seal a segment before the shop crashed
+        List<Transaction> logged = new ArrayList<>();
+        for(int i = 100; i < TransactionStore.SEGMENT_SIZE + 120; i++) {
+            logged.add(transaction(i));
+            store.append(transaction(i));
+        }
+        assertEquals(TransactionStore.SEGMENT_SIZE, store.sealedCount());
+
+        TransactionStore reopened = TransactionStore.open(path);
+        reopened.restore(snapshotTail, snapshotSealed);
+        logged.forEach(reopened::appendReplayed);
+        assertEquals(TransactionStore.SEGMENT_SIZE + 120, reopened.size());
+        List<Transaction> read = new ArrayList<>();
+        reopened.view().forEach(read::add);
+        for(int i = 0; i < read.size(); i++) {
+            assertSame(transaction(i), read.get(i));
+        }
+    }
+
+    private static Transaction transaction(int i) {
+        boolean discount = i % 3 == 0;
+        int km = i % 700;
+        String plate = i % 50 == 0 ? "YZ1-567" : PlateCodec.decode(i * 31);
+        String type = VehicleType.values()[i % 3].name();
+        return new Transaction(plate, type, km, discount, discount ? km * 0.9 : km);
+    }
+
+    private static void assertSame(Transaction expected, Transaction actual) {
+        assertEquals(expected.getLicensePlate(), actual.getLicensePlate());
+        assertEquals(expected.getKilometers(), actual.getKilometers());
+        assertEquals(expected.isDiscountApplied(), actual.isDiscountApplied());
+        assertEquals(expected.getCharge(), actual.getCharge(), 0.001);
+        assertEquals(expected.getVehicleType(), actual.getVehicleType());
+    }
+}
@@ -0,0 +1,71 @@
+package com.aguilarcarboni.ttu;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+public class VehicleTableTest {
+
+    @Test
+    public void randomPutsAndRemovesMatchAMap() {
+        VehicleTable table = new VehicleTable();
+        Map<Integer, Integer> expected = new HashMap<>();
+        Random rng = new Random(7);
+        for(int i = 0; i < 20000; i++) {
+            // A small plate range so removes and overwrites hit often
+            int plate = rng.nextInt(2000);
+            if(rng.nextInt(3) == 0) {
+                int row = table.find(plate);
+                assertEquals(expected.containsKey(plate), row != VehicleTable.NO_ROW);
+                if(row != VehicleTable.NO_ROW) {
+                    table.removeRow(row);
+                    expected.remove(plate);
+                }
+            } else {
+                table.put(plate, (byte) 1, i, (byte) 0);
+                expected.put(plate, i);
+            }
+        }
+        assertEquals(expected.size(), table.size());
+        for(Map.Entry<Integer, Integer> e : expected.entrySet()) {
+            assertEquals((int) e.getValue(), table.kilometersAt(table.find(e.getKey())));
+        }
+    }
+
+    @Test
+    public void inventoryKeepsTypeOrderAndHighestKilometers() {
+        InventoryIndex inventory = new InventoryIndex();
+        inventory.put(new Vehicle("AAA-001", "SEDAN", 300));
+        inventory.put(new Vehicle("AAA-002", "SUV", 900));
+        inventory.put(new Vehicle("AAA-003", "SEDAN", 500));
+        inventory.put(new Vehicle("AAA-004", "SEDAN", 900));
+
+        assertEquals("AAA-001", inventory.findByType("SEDAN").getLicensePlate());
+        assertEquals("AAA-004", inventory.highestKilometers().getLicensePlate());
+        assertEquals(3, inventory.countByType("SEDAN"));
+
+        // Removing the first row moves the last one into it; both orderings must follow
+        inventory.remove("AAA-001");
+        assertEquals("AAA-003", inventory.findByType("SEDAN").getLicensePlate());
+        inventory.remove("AAA-004");
+        assertEquals("AAA-002", inventory.highestKilometers().getLicensePlate());
+        inventory.remove("AAA-002");
+        assertNull(inventory.findByType("SUV"));
+        assertEquals("AAA-003", inventory.highestKilometers().getLicensePlate());
+
+        List<Vehicle> many = new ArrayList<>();
+        for(int i = 0; i < 100; i++) {
+            many.add(new Vehicle(PlateCodec.decode(1000 + i), "VAN", i * 10));
+        }
+        many.forEach(inventory::put);
+        assertEquals(990, inventory.highestKilometers().getKilometers());
+        assertEquals(PlateCodec.decode(1000), inventory.findByType("VAN").getLicensePlate());
+        assertEquals(101, inventory.size());
+    }
+}